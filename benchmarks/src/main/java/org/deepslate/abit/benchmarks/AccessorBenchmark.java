@@ -0,0 +1,66 @@
+package org.deepslate.abit.benchmarks;
+
+import org.deepslate.abit.ABITArray;
+import org.deepslate.abit.ABITObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Typed getters of a decoded document, every benchmark reads one entry of each kind.
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class AccessorBenchmark {
+
+    private ABITObject wide;
+    private ABITObject deep;
+    private ABITArray ints;
+
+    @Setup
+    public void setup() {
+        this.wide = Corpus.WIDE.generate();
+        this.deep = Corpus.DEEP.generate();
+        this.ints = Corpus.INTS.generate().getArray("ints 0");
+    }
+
+    @Benchmark
+    public void treeGetters(Blackhole blackhole) {
+        blackhole.consume(this.wide.getInteger("int 4000"));
+        blackhole.consume(this.wide.getString("str 4001"));
+        blackhole.consume(this.wide.getBoolean("bool 4002"));
+        blackhole.consume(this.wide.getBlob("blob 4003"));
+        blackhole.consume(this.wide.getType("int 8000"));
+    }
+
+    @Benchmark
+    public long nestedGetters() {
+        ABITObject tree = this.deep.getTree("chain 25");
+        for (int depth = 0; depth < 64; depth++) {
+            tree = tree.getTree("child");
+        }
+        return tree.getInteger("leaf");
+    }
+
+    @Benchmark
+    public long arrayGetters() {
+        long sum = 0;
+        for (int i = 0; i < this.ints.size(); i++) {
+            sum+= this.ints.getInteger(i);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,50 @@
+package org.deepslate.abit.benchmarks;
+
+import org.deepslate.abit.ABITObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Encoding a document with toByteArray() and decoding it with ABITObject(byte[]).
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+
+    @Param({"WIDE", "DEEP", "BLOBS", "INTS", "UNICODE"})
+    public Corpus corpus;
+
+    private ABITObject tree;
+    private byte[] document;
+
+    @Setup
+    public void setup() throws IOException {
+        this.tree = this.corpus.generate();
+        this.document = this.tree.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return this.tree.toByteArray();
+    }
+
+    @Benchmark
+    public ABITObject decode() {
+        return new ABITObject(this.document);
+    }
+}
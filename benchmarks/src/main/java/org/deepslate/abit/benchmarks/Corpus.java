@@ -0,0 +1,110 @@
+package org.deepslate.abit.benchmarks;
+
+import org.deepslate.abit.ABITArray;
+import org.deepslate.abit.ABITObject;
+
+import java.util.Random;
+
+// Generated documents shaped like the ones we see in production, seeded so every run measures the same bytes.
+// Integers stay inside the int range so the documents survive a round trip through org.json.
+
+public enum Corpus {
+    // 10000 leaf entries side by side
+    WIDE {
+        ABITObject generate(Random rand) {
+            ABITObject tree = new ABITObject();
+            for (int i = 0; i < 10000; i++) {
+                switch (i % 4) {
+                    case 0:
+                        tree.put("int "+i, rand.nextInt());
+                        break;
+                    case 1:
+                        tree.put("str "+i, text(rand, 32));
+                        break;
+                    case 2:
+                        tree.put("bool "+i, rand.nextBoolean());
+                        break;
+                    case 3:
+                        tree.put("blob "+i, bytes(rand, 16));
+                        break;
+                }
+            }
+            return tree;
+        }
+    },
+    // Chains of trees 64 levels deep
+    DEEP {
+        ABITObject generate(Random rand) {
+            ABITObject root = new ABITObject();
+            for (int i = 0; i < 50; i++) {
+                ABITObject tree = new ABITObject();
+                tree.put("leaf", rand.nextInt());
+                for (int depth = 0; depth < 64; depth++) {
+                    ABITObject parent = new ABITObject();
+                    parent.put("child", tree);
+                    parent.put("depth", depth);
+                    tree = parent;
+                }
+                root.put("chain "+i, tree);
+            }
+            return root;
+        }
+    },
+    // A few large blobs
+    BLOBS {
+        ABITObject generate(Random rand) {
+            ABITObject tree = new ABITObject();
+            for (int i = 0; i < 16; i++) {
+                tree.put("blob "+i, bytes(rand, 256 * 1024));
+            }
+            return tree;
+        }
+    },
+    // Long arrays of small integers
+    INTS {
+        ABITObject generate(Random rand) {
+            ABITObject tree = new ABITObject();
+            for (int i = 0; i < 4; i++) {
+                ABITArray arr = new ABITArray();
+                for (int j = 0; j < 25000; j++) {
+                    arr.add(rand.nextInt(2000) - 1000);
+                }
+                tree.put("ints "+i, arr);
+            }
+            return tree;
+        }
+    },
+    // Keys and strings outside of ASCII
+    UNICODE {
+        ABITObject generate(Random rand) {
+            ABITObject tree = new ABITObject();
+            for (int i = 0; i < 5000; i++) {
+                tree.put("ключ "+i+" 鍵", "値 "+text(rand, 24)+" ✓");
+            }
+            return tree;
+        }
+    };
+
+    // Regex passed to ABITObject(JSONObject, String) so the blob entries come back as blobs
+    public static final String BINARY_REGEX = "blob.*";
+
+    abstract ABITObject generate(Random rand);
+
+    public ABITObject generate() {
+        return generate(new Random(42));
+    }
+
+    private static String text(Random rand, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) ('a' + rand.nextInt(26)));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] bytes(Random rand, int length) {
+        byte[] out = new byte[length];
+        rand.nextBytes(out);
+        return out;
+    }
+}
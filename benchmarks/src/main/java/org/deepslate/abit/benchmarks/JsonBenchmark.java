@@ -0,0 +1,94 @@
+package org.deepslate.abit.benchmarks;
+
+import org.deepslate.abit.ABITJson;
+import org.deepslate.abit.ABITObject;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// The JSON bridge, getJson() and ABITObject(JSONObject, String).
+// The JSON document is parsed once up front so only the conversion is measured.
+// The text benchmarks compare the bridge plus org.json's parser and printer against the streaming ABITJson.
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class JsonBenchmark {
+
+    @Param({"WIDE", "DEEP", "BLOBS", "INTS", "UNICODE"})
+    public Corpus corpus;
+
+    private ABITObject tree;
+    private JSONObject json;
+    private String text;
+    private byte[] document;
+    private final Pattern binaryKeys = Pattern.compile(Corpus.BINARY_REGEX);
+
+    @Setup
+    public void setup() throws IOException {
+        this.tree = this.corpus.generate();
+        this.json = new JSONObject(this.tree.getJson().toString());
+        this.text = this.json.toString();
+        this.document = this.tree.toByteArray();
+    }
+
+    @Benchmark
+    public JSONObject toJson() {
+        return this.tree.getJson();
+    }
+
+    @Benchmark
+    public ABITObject fromJson() {
+        return new ABITObject(this.json, Corpus.BINARY_REGEX);
+    }
+
+    @Benchmark
+    public ABITObject fromJsonParallel() {
+        return new ABITObject(this.json, this.binaryKeys, ForkJoinPool.commonPool());
+    }
+
+    @Benchmark
+    public byte[] fromJsonText() throws IOException {
+        return new ABITObject(new JSONObject(this.text), Corpus.BINARY_REGEX).toByteArray();
+    }
+
+    @Benchmark
+    public byte[] streamFromJsonText() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(this.document.length);
+        ABITJson.readJson(new StringReader(this.text), out, Corpus.BINARY_REGEX);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public String toJsonText() {
+        return new ABITObject(this.document).getJson().toString();
+    }
+
+    @Benchmark
+    public String streamToJsonText() throws IOException {
+        StringWriter out = new StringWriter(this.text.length());
+        ABITJson.writeJson(new ByteArrayInputStream(this.document), out, 32);
+        return out.toString();
+    }
+}
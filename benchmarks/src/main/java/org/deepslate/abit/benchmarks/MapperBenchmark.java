@@ -0,0 +1,70 @@
+package org.deepslate.abit.benchmarks;
+
+import org.deepslate.abit.ABITMapper;
+import org.deepslate.abit.ABITObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// A small record encoded and decoded by ABITMapper against the same conversion written by hand with put and get calls.
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class MapperBenchmark {
+
+    public record Order(long id, int quantity, boolean paid, String customer, String item, byte[] token) {}
+
+    private ABITMapper mapper;
+    private Order order;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        this.mapper = new ABITMapper();
+        this.order = new Order(123456789L, 7, true, "Anton", "pickaxe", new byte[16]);
+        this.encoded = this.mapper.encode(this.order);
+    }
+
+    @Benchmark
+    public byte[] mapperEncode() {
+        return this.mapper.encode(this.order);
+    }
+
+    @Benchmark
+    public byte[] domEncode() throws IOException {
+        ABITObject tree = new ABITObject();
+        tree.put("id", this.order.id());
+        tree.put("quantity", this.order.quantity());
+        tree.put("paid", this.order.paid());
+        tree.put("customer", this.order.customer());
+        tree.put("item", this.order.item());
+        tree.put("token", this.order.token());
+        return tree.toByteArray();
+    }
+
+    @Benchmark
+    public Order mapperDecode() {
+        return this.mapper.decode(this.encoded, Order.class);
+    }
+
+    @Benchmark
+    public Order domDecode() {
+        ABITObject tree = new ABITObject(this.encoded);
+        return new Order(tree.getInteger("id"), (int) tree.getInteger("quantity"), tree.getBoolean("paid"),
+                tree.getString("customer"), tree.getString("item"), tree.getBlob("token"));
+    }
+}
@@ -1,80 +1,33 @@
 package org.deepslate.abit;
 
-import java.util.List;
-
-import org.json.JSONArray;
-import org.json.JSONObject;
-
-import io.ipfs.multibase.Multibase;
-import java.util.Iterator;
 
 import java.util.ArrayList;
 
 public class ABITArray {
-    List<ABITObject> array = new ArrayList<>();
+    // The array entry this ABITArray reads and changes, its list is looked up on every call
+    // as putting the array into a concurrent tree swaps it
+    ABITObject node;
 
     ABITArray (ABITArray array) {
-        this.array.clear();
-        this.array = array.array;
+        this.node = array.node;
     }
 
-    ABITArray (List<ABITObject> array) {
-        this.array.clear();
-        this.array = array;
+    ABITArray (ABITObject node) {
+        this.node = node;
     }
 
     /**
      * Initialize an empty ABITArray.
      */
     public ABITArray () {
-        this.array.clear();
-    }
-
-    ABITArray(JSONArray json, String binaryRegex, String selfKey) throws ABITException, IllegalStateException {
-        this.array.clear();
-
-        boolean arrayHoldsBinary = selfKey.matches(binaryRegex);
-
-        for (Iterator<Object> iterator = json.iterator(); iterator.hasNext(); ) {
-            Object obj = iterator.next();
-            switch (obj) {
-                case Boolean b -> {
-                    this.add(b);
-                }
-                case Integer i -> {
-                    this.add(i);
-                }
-                case String s -> {
-                    if (arrayHoldsBinary) {
-                        this.add(Multibase.decode(s));
-                    }
-                    else {
-                        this.add(s);
-                    }
-                }
-                case JSONArray a -> {
-                    this.add(new ABITArray(a, binaryRegex, selfKey));
-                }
-                case JSONObject o -> {
-                    this.add(new ABITObject(o, binaryRegex));
-                }
-                default -> {
-                    if (JSONObject.NULL.equals(obj)) {
-                        this.add(ABITObject.NULL);
-                    }
-                    else {
-                        throw new ABITException("Unsupported object type in json document");
-                    }
-                }
-            }
-        }
+        this(new ABITObject(new ArrayList<ABITObject>()));
     }
 
     /**
      * Removes all of the elements from this list (optional operation). The list will be empty after this call returns.
      */
     public void clear() {
-        this.array.clear();
+        this.node.clearElements();
     }
 
     /**
@@ -85,7 +38,7 @@ public class ABITArray {
      */
     public String getType(int index) throws ABITException {
 
-        int obj = this.array.get(index).type;
+        int obj = this.node.array().get(index).type;
         switch (obj) {
             case 0:
                 return "null";
@@ -113,7 +66,7 @@ public class ABITArray {
      * @throws ABITException
      */
     public ABITObject.NULL_t getNull(int index) throws ABITException {
-        if(this.array.get(index).type == 0) {
+        if(this.node.array().get(index).type == 0) {
             return ABITObject.NULL;
         }
         else {
@@ -128,8 +81,8 @@ public class ABITArray {
      * @throws ABITException
      */
     public boolean getBoolean(int index) throws ABITException {
-        if(this.array.get(index).type == 1) {
-            return this.array.get(index).booleanValue;
+        if(this.node.array().get(index).type == 1) {
+            return this.node.array().get(index).booleanValue();
         }
         else {
             throw new ABITException("Object is not of type boolean");
@@ -143,8 +96,8 @@ public class ABITArray {
      * @throws ABITException
      */
     public long getInteger(int index) throws ABITException {
-        if(this.array.get(index).type == 2) {
-            return this.array.get(index).intValue;
+        if(this.node.array().get(index).type == 2) {
+            return this.node.array().get(index).intValue;
         }
         else {
             throw new ABITException("Object is not of type integer");
@@ -158,8 +111,8 @@ public class ABITArray {
      * @throws ABITException
      */
     public byte[] getBlob(int index) throws ABITException {
-        if(this.array.get(index).type == 3) {
-            return this.array.get(index).blob;
+        if(this.node.array().get(index).type == 3) {
+            return this.node.array().get(index).blob();
         }
         else {
             throw new ABITException("Object is not of type blob");
@@ -173,8 +126,23 @@ public class ABITArray {
      * @throws ABITException
      */
     public String getString(int index) throws ABITException {
-        if(this.array.get(index).type == 4) {
-            return this.array.get(index).string;
+        if(this.node.array().get(index).type == 4) {
+            return this.node.array().get(index).string();
+        }
+        else {
+            throw new ABITException("Object is not of type string");
+        }
+    }
+
+    /**
+     * Get object at index from array without decoding it, see ABITString.
+     * @param index
+     * @return string holding its UTF-8 encoding
+     * @throws ABITException
+     */
+    public ABITString getStringUtf8(int index) throws ABITException {
+        if(this.node.array().get(index).type == 4) {
+            return this.node.array().get(index).utf8String();
         }
         else {
             throw new ABITException("Object is not of type string");
@@ -188,8 +156,8 @@ public class ABITArray {
      * @throws ABITException
      */
     public ABITArray getArray(int index) throws ABITException {
-        if(this.array.get(index).type == 5) {
-            return new ABITArray(this.array.get(index).array);
+        if(this.node.array().get(index).type == 5) {
+            return new ABITArray(this.node.array().get(index));
         }
         else {
             throw new ABITException("Object is not of type array");
@@ -203,8 +171,8 @@ public class ABITArray {
      * @throws ABITException
      */
     public ABITObject getTree(int index) throws ABITException {
-        if(this.array.get(index).type == 6) {
-            return this.array.get(index);
+        if(this.node.array().get(index).type == 6) {
+            return this.node.array().get(index);
         }
         else {
             throw new ABITException("Object is not of type tree");
@@ -212,11 +180,11 @@ public class ABITArray {
     }
 
     public boolean isEmpty() {
-        return this.array.isEmpty();
+        return this.node.array().isEmpty();
     }
 
     public void remove(int index) {
-        this.array.remove(index);
+        this.node.removeElement(index);
     }
 
     /**
@@ -226,7 +194,7 @@ public class ABITArray {
      */
     public void add(int index, ABITObject.NULL_t element) {
         ABITObject.isCompatibleNull(element);
-        this.array.add(index, new ABITObject(ABITObject.NULL));
+        this.node.addElement(index, ABITObject.NULL_OBJECT);
     }
     
     /**
@@ -236,7 +204,7 @@ public class ABITArray {
      */
     public void add(int index, boolean element) {
         ABITObject.isCompatibleBoolean(element);
-        this.array.add(index, new ABITObject(element));
+        this.node.addElement(index, ABITObject.ofBoolean(element));
     }
 
     /**
@@ -246,7 +214,7 @@ public class ABITArray {
      */
     public void add(int index, long element) {
         ABITObject.isCompatibleInteger(element);
-        this.array.add(index, new ABITObject(element));
+        this.node.addElement(index, ABITObject.ofInteger(element));
     }
 
     /**
@@ -256,7 +224,7 @@ public class ABITArray {
      */
     public void add(int index, byte[] element) {
         ABITObject.isCompatibleBlob(element);
-        this.array.add(index, new ABITObject(element, true));
+        this.node.addElement(index, ABITObject.ofBlob(element));
     }
 
     /**
@@ -266,7 +234,16 @@ public class ABITArray {
      */
     public void add(int index, String element) throws ABITException {
         ABITObject.isCompatibleString(element);
-        this.array.add(index, new ABITObject(element));
+        this.node.addElement(index, new ABITObject(element));
+    }
+
+    /**
+     * Inserts the specified element at the specified position in this list (optional operation). Shifts the element currently at that position (if any) and any subsequent elements to the right (adds one to their indices).
+     * @param index index at which the specified element is to be inserted
+     * @param element element to be inserted
+     */
+    public void add(int index, ABITString element) {
+        this.node.addElement(index, new ABITObject(element));
     }
 
     /**
@@ -275,7 +252,7 @@ public class ABITArray {
      * @param element element to be inserted
      */
     public void add(int index, ABITArray element) {
-        this.array.add(index, new ABITObject(element.array));
+        this.node.addElement(index, element.node);
     }
 
     /**
@@ -284,7 +261,7 @@ public class ABITArray {
      * @param element element to be inserted
      */
     public void add(int index, ABITObject element) {
-        this.array.add(index, element);
+        this.node.addElement(index, element);
     }
 
     /**
@@ -293,7 +270,7 @@ public class ABITArray {
      */
     public void add(ABITObject.NULL_t element) {
         ABITObject.isCompatibleNull(element);
-        this.array.add(new ABITObject(ABITObject.NULL));
+        this.node.addElement(-1, ABITObject.NULL_OBJECT);
     }
 
     /**
@@ -302,7 +279,7 @@ public class ABITArray {
      */
     public void add(boolean element) {
         ABITObject.isCompatibleBoolean(element);
-        this.array.add(new ABITObject(element));
+        this.node.addElement(-1, ABITObject.ofBoolean(element));
     }
 
     /**
@@ -311,7 +288,7 @@ public class ABITArray {
      */
     public void add(long element) {
         ABITObject.isCompatibleInteger(element);
-        this.array.add(new ABITObject(element));
+        this.node.addElement(-1, ABITObject.ofInteger(element));
     }
 
     /**
@@ -320,7 +297,7 @@ public class ABITArray {
      */
     public void add(byte[] element) {
         ABITObject.isCompatibleBlob(element);
-        this.array.add(new ABITObject(element, true));
+        this.node.addElement(-1, ABITObject.ofBlob(element));
     }
 
     /**
@@ -329,7 +306,15 @@ public class ABITArray {
      */
     public void add(String element) throws ABITException {
         ABITObject.isCompatibleString(element);
-        this.array.add(new ABITObject(element));
+        this.node.addElement(-1, new ABITObject(element));
+    }
+
+    /**
+     * Appends the specified element to the end of this list.
+     * @param element element to be appended to this list
+     */
+    public void add(ABITString element) {
+        this.node.addElement(-1, new ABITObject(element));
     }
 
     /**
@@ -337,7 +322,7 @@ public class ABITArray {
      * @param element element to be appended to this list
      */
     public void add(ABITArray element) {
-        this.array.add(new ABITObject(element.array));
+        this.node.addElement(-1, element.node);
     }
 
     /**
@@ -345,7 +330,7 @@ public class ABITArray {
      * @param element element to be appended to this list
      */
     public void add(ABITObject element) {
-        this.array.add(element);
+        this.node.addElement(-1, element);
     }
 
     /**
@@ -356,6 +341,6 @@ public class ABITArray {
      * @return the number of elements in this list
      */
     public int size() {
-        return this.array.size();
+        return this.node.array().size();
     }
 }
@@ -0,0 +1,162 @@
+package org.deepslate.abit;
+
+import java.nio.ByteBuffer;
+
+// Read-only view over an encoded abit array, see ABITView.
+
+public class ABITArrayView {
+
+    final ByteBuffer buffer;
+    final int offset;
+    final int end;
+    // Published once complete, so threads sharing the view see either none or all of it
+    private volatile int[] offsets;
+
+    ABITArrayView(ByteBuffer buffer, int offset, int end) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.end = end;
+    }
+
+    /**
+     * Offset of the object at index, the element offsets are located on first use.
+     */
+    int find(int index) throws ABITException {
+        int[] offsets = this.offsets;
+        if (offsets == null) {
+            int count = 0;
+            int idx = this.offset;
+            while (idx < this.end) {
+                idx+= ABITView.valueLength(this.buffer, idx, this.end);
+                count++;
+            }
+            offsets = new int[count];
+            idx = this.offset;
+            for (int i = 0; i < count; i++) {
+                offsets[i] = idx;
+                idx+= ABITView.valueLength(this.buffer, idx, this.end);
+            }
+            this.offsets = offsets;
+        }
+        if (index < 0 || index >= offsets.length) {
+            throw new IndexOutOfBoundsException("Index "+index+" out of bounds for length "+offsets.length);
+        }
+        return offsets[index];
+    }
+
+    private int require(int index, int type) throws ABITException {
+        int idx = find(index);
+        if (ABITView.decodeType(this.buffer, idx) != type) {
+            throw new ABITException("Object is not of type "+ABITView.typeName(type));
+        }
+        return idx;
+    }
+
+    /**
+     * Returns the number of elements in this array.
+     * @return the number of elements in this array
+     * @throws ABITException
+     */
+    public int size() throws ABITException {
+        if (this.offset == this.end) {
+            return 0;
+        }
+        find(0);
+        return this.offsets.length;
+    }
+
+    public boolean isEmpty() {
+        return this.offset == this.end;
+    }
+
+    /**
+     * Get the type of the object at specified index.
+     * @param index index of the object to check the type of
+     * @return string of type: "null" / "boolean" / "integer" / "blob" / "string" / "array" / "tree"
+     * @throws ABITException
+     */
+    public String getType(int index) throws ABITException {
+        return ABITView.typeName(ABITView.decodeType(this.buffer, find(index)));
+    }
+
+    /**
+     * Get object at index from array
+     * @param index
+     * @return null object
+     * @throws ABITException
+     */
+    public ABITObject.NULL_t getNull(int index) throws ABITException {
+        ABITView.decodeNull(this.buffer, require(index, 0));
+        return ABITObject.NULL;
+    }
+
+    /**
+     * Get object at index from array
+     * @param index
+     * @return boolean
+     * @throws ABITException
+     */
+    public boolean getBoolean(int index) throws ABITException {
+        return ABITView.decodeBoolean(this.buffer, require(index, 1));
+    }
+
+    /**
+     * Get object at index from array
+     * @param index
+     * @return integer
+     * @throws ABITException
+     */
+    public long getInteger(int index) throws ABITException {
+        return ABITView.decodeInteger(this.buffer, require(index, 2), 8);
+    }
+
+    /**
+     * Get object at index from array, the bytes are copied out of the document.
+     * @param index
+     * @return blob
+     * @throws ABITException
+     */
+    public byte[] getBlob(int index) throws ABITException {
+        return ABITView.decodeBlob(this.buffer, require(index, 3), this.end);
+    }
+
+    /**
+     * Get object at index from array without copying it.
+     * @param index
+     * @return read-only buffer spanning the blob inside the document
+     * @throws ABITException
+     */
+    public ByteBuffer getBlobBuffer(int index) throws ABITException {
+        return ABITView.slice(this.buffer, require(index, 3), this.end);
+    }
+
+    /**
+     * Get object at index from array
+     * @param index
+     * @return string
+     * @throws ABITException
+     */
+    public String getString(int index) throws ABITException {
+        return ABITView.decodeString(this.buffer, require(index, 4), this.end);
+    }
+
+    /**
+     * Get object at index from array
+     * @param index
+     * @return ABITArrayView over the nested array
+     * @throws ABITException
+     */
+    public ABITArrayView getArray(int index) throws ABITException {
+        return ABITView.decodeArray(this.buffer, require(index, 5), this.end);
+    }
+
+    /**
+     * Get object at index from array
+     * @param index
+     * @return ABITView over the nested tree
+     * @throws ABITException
+     */
+    public ABITView getTree(int index) throws ABITException {
+        return ABITView.decodeTree(this.buffer, require(index, 6), this.end);
+    }
+}
@@ -0,0 +1,224 @@
+package org.deepslate.abit;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
+// Elements of an array inside a concurrent tree, see ABITObject.concurrent().
+// Appends claim an index with a single increment and store into segments that double in size, so writers appending
+// at once neither wait for each other nor copy what's there. Inserting, removing and clearing shift elements and
+// take the lock for themselves, appends share it. Reads are optimistic and only take the lock while elements move.
+// Elements are never null, a null slot below the size belongs to an append that hasn't stored its element yet.
+
+final class ABITConcurrentArray extends AbstractList<ABITObject> {
+
+    // Segment k holds FIRST << k elements, enough segments for any int index
+    private static final int FIRST = 16;
+    private static final int SEGMENTS = 28;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<ABITObject>> segments = new AtomicReferenceArray<>(SEGMENTS);
+    private final AtomicInteger size = new AtomicInteger();
+    private final StampedLock lock = new StampedLock();
+
+    ABITConcurrentArray(Collection<ABITObject> elements) {
+        for (ABITObject element: elements) {
+            this.store(this.size.getAndIncrement(), element);
+        }
+    }
+
+    private static int segment(int index) {
+        return 27 - Integer.numberOfLeadingZeros(index + FIRST);
+    }
+
+    private static int slot(int index, int segment) {
+        return index + FIRST - (FIRST << segment);
+    }
+
+    private AtomicReferenceArray<ABITObject> segmentOf(int index) {
+        int segment = segment(index);
+        AtomicReferenceArray<ABITObject> slots = this.segments.get(segment);
+        if (slots == null) {
+            this.segments.compareAndSet(segment, null, new AtomicReferenceArray<ABITObject>(FIRST << segment));
+            slots = this.segments.get(segment);
+        }
+        return slots;
+    }
+
+    private void store(int index, ABITObject element) {
+        this.segmentOf(index).set(slot(index, segment(index)), element);
+    }
+
+    // Element at index or null if it isn't there yet, never throws so it's safe to call while elements move
+    private ABITObject peek(int index) {
+        if (index < 0 || index >= this.size.get()) {
+            return null;
+        }
+        int segment = segment(index);
+        AtomicReferenceArray<ABITObject> slots = this.segments.get(segment);
+        return slots == null ? null : slots.get(slot(index, segment));
+    }
+
+    // Only called with the lock held, a missing element is an append about to store it
+    private ABITObject element(int index) {
+        Objects.checkIndex(index, this.size.get());
+        ABITObject element;
+        while ((element = this.peek(index)) == null) {
+            Thread.onSpinWait();
+        }
+        return element;
+    }
+
+    @Override
+    public ABITObject get(int index) {
+        long stamp = this.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            ABITObject element = this.peek(index);
+            if (element != null && this.lock.validate(stamp)) {
+                return element;
+            }
+        }
+        stamp = this.lock.readLock();
+        try {
+            return this.element(index);
+        }
+        finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        return this.size.get();
+    }
+
+    @Override
+    public boolean add(ABITObject element) {
+        Objects.requireNonNull(element);
+        long stamp = this.lock.readLock();
+        try {
+            this.store(this.size.getAndIncrement(), element);
+        }
+        finally {
+            this.lock.unlockRead(stamp);
+        }
+        return true;
+    }
+
+    @Override
+    public ABITObject set(int index, ABITObject element) {
+        Objects.requireNonNull(element);
+        long stamp = this.lock.readLock();
+        try {
+            ABITObject previous = this.element(index);
+            this.store(index, element);
+            return previous;
+        }
+        finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void add(int index, ABITObject element) {
+        Objects.requireNonNull(element);
+        long stamp = this.lock.writeLock();
+        try {
+            int size = this.size.get();
+            Objects.checkIndex(index, size + 1);
+            for (int i = size; i > index; i--) {
+                this.store(i, this.peek(i - 1));
+            }
+            this.store(index, element);
+            this.size.set(size + 1);
+        }
+        finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends ABITObject> elements) {
+        Object[] added = elements.toArray();
+        long stamp = this.lock.writeLock();
+        try {
+            int size = this.size.get();
+            Objects.checkIndex(index, size + 1);
+            for (int i = size - 1; i >= index; i--) {
+                this.store(i + added.length, this.peek(i));
+            }
+            for (int i = 0; i < added.length; i++) {
+                this.store(index + i, (ABITObject) Objects.requireNonNull(added[i]));
+            }
+            this.size.set(size + added.length);
+        }
+        finally {
+            this.lock.unlockWrite(stamp);
+        }
+        return added.length > 0;
+    }
+
+    @Override
+    public ABITObject remove(int index) {
+        long stamp = this.lock.writeLock();
+        try {
+            ABITObject previous = this.element(index);
+            this.removeElements(index, index + 1);
+            return previous;
+        }
+        finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        long stamp = this.lock.writeLock();
+        try {
+            Objects.checkFromToIndex(fromIndex, toIndex, this.size.get());
+            this.removeElements(fromIndex, toIndex);
+        }
+        finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void clear() {
+        this.removeAll();
+    }
+
+    /**
+     * Remove every element at once.
+     * @return the elements that were removed, in order
+     */
+    ABITObject[] removeAll() {
+        long stamp = this.lock.writeLock();
+        try {
+            ABITObject[] elements = new ABITObject[this.size.get()];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = this.peek(i);
+            }
+            this.removeElements(0, elements.length);
+            return elements;
+        }
+        finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    // Only called with the lock held exclusively
+    private void removeElements(int fromIndex, int toIndex) {
+        int size = this.size.get();
+        int count = toIndex - fromIndex;
+        for (int i = toIndex; i < size; i++) {
+            this.store(i - count, this.peek(i));
+        }
+        for (int i = size - count; i < size; i++) {
+            this.store(i, null);
+        }
+        this.size.set(size - count);
+    }
+}
@@ -0,0 +1,517 @@
+package org.deepslate.abit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.locks.Lock;
+
+// Difference between two abit documents, encoded as an abit document itself.
+// The delta is a tree holding a record for every key that changed, a record is a tree with one of these entries:
+//   s  the new value
+//   d  true, the key was removed
+//   t  delta of a nested tree
+//   a  splice of an array, d the number of elements removed at index i and v the array of elements inserted there
+// Trees are sorted, so both documents are walked side by side once. Arrays are compared from both ends and
+// whatever differs in between becomes one splice. Identical documents give an empty delta.
+
+public class ABITDiff {
+
+    private static final ABITKey SET = ABITKey.of("s");
+    private static final ABITKey DELETE = ABITKey.of("d");
+    private static final ABITKey TREE = ABITKey.of("t");
+    private static final ABITKey ARRAY = ABITKey.of("a");
+    private static final ABITKey INDEX = ABITKey.of("i");
+    private static final ABITKey VALUES = ABITKey.of("v");
+
+    private ABITDiff() {}
+
+    /**
+     * Get the delta turning one tree into another.
+     * @param from the tree before the changes
+     * @param to the tree after the changes
+     * @return byte array containing the delta
+     * @throws ABITException if the delta is too big to be encoded
+     */
+    public static byte[] diff(ABITObject from, ABITObject to) throws ABITException {
+        Lock fromLock = from.lock(true);
+        Lock toLock = to.lock(true);
+        try {
+            ABITObject delta = diffTree(from.tree(), to.tree());
+            if (delta == null) {
+                return new byte[0];
+            }
+            byte[] out = new byte[delta.encodedSize()];
+            delta.writeTo(ByteBuffer.wrap(out));
+            return out;
+        }
+        finally {
+            ABITObject.unlock(toLock);
+            ABITObject.unlock(fromLock);
+        }
+    }
+
+    /**
+     * Get the delta turning one encoded document into another without decoding them, values are compared by
+     * their encoding so both documents need to be encoded the way toByteArray() does.
+     * @param from the document before the changes
+     * @param to the document after the changes
+     * @return byte array containing the delta
+     * @throws ABITException if a document is corrupt
+     */
+    public static byte[] diff(byte[] from, byte[] to) throws ABITException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ABITWriter writer = new ABITWriter(out)) {
+            writer.beginTree();
+            diffTree(writer, ByteBuffer.wrap(from), 0, from.length, ByteBuffer.wrap(to), 0, to.length);
+            writer.endTree();
+        }
+        catch (IOException e) {
+            throw new ABITException(e.getMessage());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Apply a delta to a tree, changing it in place.
+     * @param target the tree to change
+     * @param delta byte array containing the delta
+     * @throws ABITException if the delta is corrupt or doesn't fit the tree
+     */
+    public static void apply(ABITObject target, byte[] delta) throws ABITException {
+        Lock lock = target.lock(true);
+        try {
+            applyTree(target, new ABITObject(delta));
+        }
+        finally {
+            ABITObject.unlock(lock);
+        }
+    }
+
+    /**
+     * Apply a delta to an encoded document without decoding it, everything the delta doesn't touch is copied.
+     * @param document byte array containing the document before the changes
+     * @param delta byte array containing the delta
+     * @return byte array containing the document after the changes
+     * @throws ABITException if the document or the delta is corrupt or they don't fit
+     */
+    public static byte[] apply(byte[] document, byte[] delta) throws ABITException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(document.length);
+        try (ABITWriter writer = new ABITWriter(out)) {
+            writer.beginTree();
+            applyTree(writer, ByteBuffer.wrap(document), 0, document.length, ByteBuffer.wrap(delta), 0, delta.length);
+            writer.endTree();
+        }
+        catch (IOException e) {
+            throw new ABITException(e.getMessage());
+        }
+        return out.toByteArray();
+    }
+
+    private static ABITObject record(ABITKey key, ABITObject value) {
+        ABITObject record = new ABITObject();
+        record.tree().put(key, value);
+        return record;
+    }
+
+    private static <T> T next(Iterator<T> iterator) {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    private static ABITObject diffTree(SortedMap<ABITKey, ABITObject> from, SortedMap<ABITKey, ABITObject> to) {
+        ABITObject delta = null;
+        Iterator<Map.Entry<ABITKey, ABITObject>> fromEntries = from.entrySet().iterator();
+        Iterator<Map.Entry<ABITKey, ABITObject>> toEntries = to.entrySet().iterator();
+        Map.Entry<ABITKey, ABITObject> fromEntry = next(fromEntries);
+        Map.Entry<ABITKey, ABITObject> toEntry = next(toEntries);
+        while (fromEntry != null || toEntry != null) {
+            int cmp = fromEntry == null ? 1 : toEntry == null ? -1 : fromEntry.getKey().compareTo(toEntry.getKey());
+            ABITKey key;
+            ABITObject record;
+            if (cmp < 0) {
+                key = fromEntry.getKey();
+                record = record(DELETE, ABITObject.TRUE_OBJECT);
+                fromEntry = next(fromEntries);
+            }
+            else if (cmp > 0) {
+                key = toEntry.getKey();
+                record = record(SET, toEntry.getValue());
+                toEntry = next(toEntries);
+            }
+            else {
+                key = toEntry.getKey();
+                record = diffValue(fromEntry.getValue(), toEntry.getValue());
+                fromEntry = next(fromEntries);
+                toEntry = next(toEntries);
+            }
+            if (record != null) {
+                if (delta == null) {
+                    delta = new ABITObject();
+                }
+                delta.tree().put(key, record);
+            }
+        }
+        return delta;
+    }
+
+    private static ABITObject diffValue(ABITObject from, ABITObject to) {
+        if (from == to) {
+            return null;
+        }
+        if (from.type == 6 && to.type == 6) {
+            ABITObject nested = diffTree(from.tree(), to.tree());
+            return nested == null ? null : record(TREE, nested);
+        }
+        if (from.type == 5 && to.type == 5) {
+            List<ABITObject> fromArray = from.array();
+            List<ABITObject> toArray = to.array();
+            int shorter = Math.min(fromArray.size(), toArray.size());
+            int prefix = 0;
+            while (prefix < shorter && equal(fromArray.get(prefix), toArray.get(prefix))) {
+                prefix++;
+            }
+            if (prefix == fromArray.size() && prefix == toArray.size()) {
+                return null;
+            }
+            int suffix = 0;
+            while (suffix < shorter - prefix && equal(fromArray.get(fromArray.size()-1-suffix), toArray.get(toArray.size()-1-suffix))) {
+                suffix++;
+            }
+            ABITObject splice = new ABITObject();
+            splice.tree().put(DELETE, ABITObject.ofInteger(fromArray.size() - prefix - suffix));
+            splice.tree().put(INDEX, ABITObject.ofInteger(prefix));
+            splice.tree().put(VALUES, new ABITObject(new ArrayList<>(toArray.subList(prefix, toArray.size() - suffix))));
+            return record(ARRAY, splice);
+        }
+        return equal(from, to) ? null : record(SET, to);
+    }
+
+    static boolean equal(ABITObject a, ABITObject b) {
+        if (a == b) {
+            return true;
+        }
+        if (a.type != b.type) {
+            return false;
+        }
+        switch (a.type) {
+            case 0:
+                return true;
+            case 1:
+            case 2:
+                return a.intValue == b.intValue;
+            case 3:
+                return Arrays.equals(a.blob(), b.blob());
+            case 4:
+                return a.utf8String().equals(b.utf8String());
+            case 5:
+                List<ABITObject> aArray = a.array();
+                List<ABITObject> bArray = b.array();
+                if (aArray.size() != bArray.size()) {
+                    return false;
+                }
+                for (int i = 0; i < aArray.size(); i++) {
+                    if (!equal(aArray.get(i), bArray.get(i))) {
+                        return false;
+                    }
+                }
+                return true;
+            case 6:
+                if (a.tree().size() != b.tree().size()) {
+                    return false;
+                }
+                Iterator<Map.Entry<ABITKey, ABITObject>> bEntries = b.tree().entrySet().iterator();
+                for (Map.Entry<ABITKey, ABITObject> aEntry: a.tree().entrySet()) {
+                    Map.Entry<ABITKey, ABITObject> bEntry = bEntries.next();
+                    if (!aEntry.getKey().equals(bEntry.getKey()) || !equal(aEntry.getValue(), bEntry.getValue())) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                throw new ABITException("Invalid ABITObject");
+        }
+    }
+
+    private static ABITObject field(ABITObject record, ABITKey key, int type) throws ABITException {
+        ABITObject value = record.tree().get(key);
+        if (value == null || value.type != type) {
+            throw new ABITException("Corrupt delta");
+        }
+        return value;
+    }
+
+    private static void applyTree(ABITObject target, ABITObject delta) throws ABITException {
+        for (Map.Entry<ABITKey, ABITObject> entry: delta.tree().entrySet()) {
+            ABITKey key = entry.getKey();
+            if (entry.getValue().type != 6 || entry.getValue().tree().size() != 1) {
+                throw new ABITException("Corrupt delta");
+            }
+            ABITObject record = entry.getValue();
+            ABITObject current = target.tree().get(key);
+            if (record.tree().containsKey(SET)) {
+                target.putEntry(key, record.tree().get(SET));
+            }
+            else if (record.tree().containsKey(DELETE)) {
+                target.removeEntry(key);
+            }
+            else if (record.tree().containsKey(TREE)) {
+                if (current == null || current.type != 6) {
+                    throw new ABITException("Delta doesn't fit the document");
+                }
+                applyTree(current, field(record, TREE, 6));
+            }
+            else if (record.tree().containsKey(ARRAY)) {
+                if (current == null || current.type != 5) {
+                    throw new ABITException("Delta doesn't fit the document");
+                }
+                ABITObject splice = field(record, ARRAY, 6);
+                long index = field(splice, INDEX, 2).intValue;
+                long count = field(splice, DELETE, 2).intValue;
+                List<ABITObject> values = field(splice, VALUES, 5).array();
+                List<ABITObject> array = current.array();
+                if (index < 0 || count < 0 || index + count > array.size()) {
+                    throw new ABITException("Delta doesn't fit the document");
+                }
+                List<ABITObject> range = array.subList((int) index, (int) (index + count));
+                ABITObject[] removed = range.toArray(new ABITObject[0]);
+                range.clear();
+                for (ABITObject element: removed) {
+                    current.removed(element);
+                }
+                for (int i = 0; i < values.size(); i++) {
+                    current.adopt(values.get(i));
+                }
+                array.addAll((int) index, values);
+                current.changed();
+            }
+            else {
+                throw new ABITException("Corrupt delta");
+            }
+        }
+    }
+
+    private static int compareKeys(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset) {
+        int aLength = (a.get(aOffset)&0xff)+1;
+        int bLength = (b.get(bOffset)&0xff)+1;
+        if (aLength != bLength) {
+            return Integer.compare(aLength, bLength);
+        }
+        for (int i = 1; i <= aLength; i++) {
+            int cmp = Byte.compare(a.get(aOffset+i), b.get(bOffset+i));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Offset of the value of the entry at offset, after checking its key fits before end.
+     */
+    private static int valueOffset(ByteBuffer blob, int offset, int end) throws ABITException {
+        int valueOffset = offset + 2 + (blob.get(offset)&0xff);
+        if (valueOffset >= end) {
+            throw new ABITException("Corrupt ABIT at "+offset);
+        }
+        return valueOffset;
+    }
+
+    private static int payloadOffset(ByteBuffer blob, int offset) {
+        return offset + 1 + ABITView.decodeMetadataLength(blob, offset);
+    }
+
+    private static void writeEntry(ABITWriter writer, ByteBuffer blob, int offset, int valueOffset, int valueLength) throws IOException {
+        writer.key(blob.array(), offset+1, valueOffset - offset - 1);
+        writer.writeEncoded(blob.array(), valueOffset, valueLength);
+    }
+
+    private static void diffTree(ABITWriter writer, ByteBuffer from, int fromIdx, int fromEnd, ByteBuffer to, int toIdx, int toEnd) throws IOException, ABITException {
+        while (fromIdx < fromEnd || toIdx < toEnd) {
+            int cmp = fromIdx >= fromEnd ? 1 : toIdx >= toEnd ? -1 : compareKeys(from, fromIdx, to, toIdx);
+            if (cmp < 0) {
+                int fromValue = valueOffset(from, fromIdx, fromEnd);
+                writer.key(from.array(), fromIdx+1, fromValue - fromIdx - 1);
+                writer.beginTree().key("d").writeBoolean(true).endTree();
+                fromIdx = fromValue + ABITView.valueLength(from, fromValue, fromEnd);
+                continue;
+            }
+            if (cmp > 0) {
+                int toValue = valueOffset(to, toIdx, toEnd);
+                int toLength = ABITView.valueLength(to, toValue, toEnd);
+                writer.key(to.array(), toIdx+1, toValue - toIdx - 1);
+                writer.beginTree().key("s").writeEncoded(to.array(), toValue, toLength).endTree();
+                toIdx = toValue + toLength;
+                continue;
+            }
+            int fromValue = valueOffset(from, fromIdx, fromEnd);
+            int fromLength = ABITView.valueLength(from, fromValue, fromEnd);
+            int toValue = valueOffset(to, toIdx, toEnd);
+            int toLength = ABITView.valueLength(to, toValue, toEnd);
+            if (!Arrays.equals(from.array(), fromValue, fromValue + fromLength, to.array(), toValue, toValue + toLength)) {
+                int fromType = ABITView.decodeType(from, fromValue);
+                int toType = ABITView.decodeType(to, toValue);
+                writer.key(to.array(), toIdx+1, toValue - toIdx - 1);
+                writer.beginTree();
+                if (fromType == 6 && toType == 6) {
+                    writer.key("t").beginTree();
+                    diffTree(writer, from, payloadOffset(from, fromValue), fromValue + fromLength, to, payloadOffset(to, toValue), toValue + toLength);
+                    writer.endTree();
+                }
+                else if (fromType == 5 && toType == 5) {
+                    writer.key("a").beginTree();
+                    diffArray(writer, from, payloadOffset(from, fromValue), fromValue + fromLength, to, payloadOffset(to, toValue), toValue + toLength);
+                    writer.endTree();
+                }
+                else {
+                    writer.key("s").writeEncoded(to.array(), toValue, toLength);
+                }
+                writer.endTree();
+            }
+            fromIdx = fromValue + fromLength;
+            toIdx = toValue + toLength;
+        }
+    }
+
+    /**
+     * Offsets of the elements of an array followed by its end.
+     */
+    private static int[] elements(ByteBuffer blob, int offset, int end) throws ABITException {
+        int[] offsets = new int[16];
+        int count = 0;
+        int idx = offset;
+        while (idx < end) {
+            if (count + 1 >= offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length*2);
+            }
+            offsets[count++] = idx;
+            idx+= ABITView.valueLength(blob, idx, end);
+        }
+        offsets[count] = idx;
+        return Arrays.copyOf(offsets, count+1);
+    }
+
+    private static void diffArray(ABITWriter writer, ByteBuffer from, int fromOffset, int fromEnd, ByteBuffer to, int toOffset, int toEnd) throws IOException, ABITException {
+        int[] fromElements = elements(from, fromOffset, fromEnd);
+        int[] toElements = elements(to, toOffset, toEnd);
+        int fromCount = fromElements.length - 1;
+        int toCount = toElements.length - 1;
+        int shorter = Math.min(fromCount, toCount);
+        int prefix = 0;
+        while (prefix < shorter && sameElement(from, fromElements, prefix, to, toElements, prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < shorter - prefix && sameElement(from, fromElements, fromCount-1-suffix, to, toElements, toCount-1-suffix)) {
+            suffix++;
+        }
+        writer.key("d").writeInteger(fromCount - prefix - suffix);
+        writer.key("i").writeInteger(prefix);
+        writer.key("v").beginArray();
+        int insertedOffset = toElements[prefix];
+        int insertedEnd = toElements[toCount - suffix];
+        if (insertedEnd > insertedOffset) {
+            writer.writeEncoded(to.array(), insertedOffset, insertedEnd - insertedOffset);
+        }
+        writer.endArray();
+    }
+
+    private static boolean sameElement(ByteBuffer a, int[] aElements, int aIdx, ByteBuffer b, int[] bElements, int bIdx) {
+        return Arrays.equals(a.array(), aElements[aIdx], aElements[aIdx+1], b.array(), bElements[bIdx], bElements[bIdx+1]);
+    }
+
+    private static void applyTree(ABITWriter writer, ByteBuffer document, int docIdx, int docEnd, ByteBuffer delta, int deltaIdx, int deltaEnd) throws IOException, ABITException {
+        while (docIdx < docEnd || deltaIdx < deltaEnd) {
+            int cmp = docIdx >= docEnd ? 1 : deltaIdx >= deltaEnd ? -1 : compareKeys(document, docIdx, delta, deltaIdx);
+            int docValue = -1;
+            int docLength = 0;
+            if (cmp <= 0) {
+                docValue = valueOffset(document, docIdx, docEnd);
+                docLength = ABITView.valueLength(document, docValue, docEnd);
+            }
+            if (cmp < 0) {
+                // Untouched entry
+                writeEntry(writer, document, docIdx, docValue, docLength);
+                docIdx = docValue + docLength;
+                continue;
+            }
+
+            int recordValue = valueOffset(delta, deltaIdx, deltaEnd);
+            int recordEnd = recordValue + ABITView.valueLength(delta, recordValue, deltaEnd);
+            if (ABITView.decodeType(delta, recordValue) != 6) {
+                throw new ABITException("Corrupt delta");
+            }
+            int recordOffset = payloadOffset(delta, recordValue);
+            if (recordOffset + 2 >= recordEnd || delta.get(recordOffset) != 0) {
+                throw new ABITException("Corrupt delta");
+            }
+            int changeValue = recordOffset + 2;
+            int changeEnd = changeValue + ABITView.valueLength(delta, changeValue, recordEnd);
+            if (changeEnd != recordEnd) {
+                throw new ABITException("Corrupt delta");
+            }
+            int changeType = ABITView.decodeType(delta, changeValue);
+            switch (delta.get(recordOffset+1)) {
+                case 's':
+                    writer.key(delta.array(), deltaIdx+1, recordValue - deltaIdx - 1);
+                    writer.writeEncoded(delta.array(), changeValue, changeEnd - changeValue);
+                    break;
+                case 'd':
+                    break;
+                case 't':
+                    if (docValue < 0 || ABITView.decodeType(document, docValue) != 6 || changeType != 6) {
+                        throw new ABITException("Delta doesn't fit the document");
+                    }
+                    writer.key(delta.array(), deltaIdx+1, recordValue - deltaIdx - 1);
+                    writer.beginTree();
+                    applyTree(writer, document, payloadOffset(document, docValue), docValue + docLength, delta, payloadOffset(delta, changeValue), changeEnd);
+                    writer.endTree();
+                    break;
+                case 'a':
+                    if (docValue < 0 || ABITView.decodeType(document, docValue) != 5 || changeType != 6) {
+                        throw new ABITException("Delta doesn't fit the document");
+                    }
+                    writer.key(delta.array(), deltaIdx+1, recordValue - deltaIdx - 1);
+                    writer.beginArray();
+                    applyArray(writer, document, payloadOffset(document, docValue), docValue + docLength, new ABITView(delta, payloadOffset(delta, changeValue), changeEnd));
+                    writer.endArray();
+                    break;
+                default:
+                    throw new ABITException("Corrupt delta");
+            }
+            if (cmp == 0) {
+                docIdx = docValue + docLength;
+            }
+            deltaIdx = recordEnd;
+        }
+    }
+
+    private static void applyArray(ABITWriter writer, ByteBuffer document, int offset, int end, ABITView splice) throws IOException, ABITException {
+        long index = splice.getInteger("i");
+        long count = splice.getInteger("d");
+        int values = splice.find("v");
+        if (values < 0 || ABITView.decodeType(splice.buffer, values) != 5) {
+            throw new ABITException("Corrupt delta");
+        }
+        int[] elements = elements(document, offset, end);
+        if (index < 0 || count < 0 || index + count > elements.length - 1) {
+            throw new ABITException("Delta doesn't fit the document");
+        }
+        if (index > 0) {
+            writer.writeEncoded(document.array(), offset, elements[(int) index] - offset);
+        }
+        int valuesOffset = payloadOffset(splice.buffer, values);
+        int valuesEnd = values + ABITView.valueLength(splice.buffer, values, splice.end);
+        if (valuesEnd > valuesOffset) {
+            writer.writeEncoded(splice.buffer.array(), valuesOffset, valuesEnd - valuesOffset);
+        }
+        int rest = elements[(int) (index + count)];
+        if (end > rest) {
+            writer.writeEncoded(document.array(), rest, end - rest);
+        }
+    }
+}
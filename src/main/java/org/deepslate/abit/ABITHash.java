@@ -0,0 +1,206 @@
+package org.deepslate.abit;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// Merkle hashing of abit documents, built on SHA-256.
+// The hash of a tree or an array is the SHA-256 of its payload, where every nested tree or array is replaced by
+// the byte 0xf6 or 0xf5 followed by its own hash. A document without nested containers hashes to the SHA-256 of
+// its bytes. The encoding is canonical, so equal documents have equal hashes whether they are hashed from their
+// bytes or from decoded trees, and a subtree's hash doesn't depend on where it sits.
+// Content addresses are the hash as a sha2-256 multihash in base58btc multibase.
+
+public class ABITHash {
+
+    // Multihash prefix of a 32 byte sha2-256 digest
+    private static final byte[] MULTIHASH_PREFIX = new byte[]{0x12, 0x20};
+
+    private ABITHash() {}
+
+    /**
+     * Get the hash of an abit document straight from its bytes, in a single pass without decoding it.
+     * @param document the byte array containing the abit document.
+     * @return 32 byte hash
+     * @throws ABITException if the document is corrupt
+     */
+    public static byte[] hash(byte[] document) throws ABITException {
+        return hash(ByteBuffer.wrap(document));
+    }
+
+    /**
+     * Get the hash of the abit document in the remaining bytes of a buffer, the buffer's position is left untouched.
+     * @param document the buffer containing the abit document.
+     * @return 32 byte hash
+     * @throws ABITException if the document is corrupt
+     */
+    public static byte[] hash(ByteBuffer document) throws ABITException {
+        MessageDigest[] digests = new MessageDigest[8];
+        int[] ends = new int[8];
+        int[] runs = new int[8];
+        int[] types = new int[8];
+        int depth = 0;
+        digests[0] = newDigest();
+        ends[0] = document.limit();
+        runs[0] = document.position();
+        types[0] = 6;
+
+        int idx = document.position();
+        while (true) {
+            int end = ends[depth];
+            if (idx == end) {
+                update(digests[depth], document, runs[depth], idx);
+                byte[] hash = digests[depth].digest();
+                if (depth == 0) {
+                    return hash;
+                }
+                depth--;
+                digests[depth].update((byte) (0xf0 | types[depth+1]));
+                digests[depth].update(hash);
+                runs[depth] = idx;
+                continue;
+            }
+
+            if (types[depth] == 6) {
+                idx+= 2 + (document.get(idx)&0xff);
+                if (idx >= end) {
+                    throw new ABITException("Corrupt ABIT at "+idx);
+                }
+            }
+            int type = ABITView.decodeType(document, idx);
+            int length = ABITView.valueLength(document, idx, end);
+            if (type != 5 && type != 6) {
+                // Leaves stay part of the current run of bytes
+                idx+= length;
+                continue;
+            }
+
+            update(digests[depth], document, runs[depth], idx);
+            depth++;
+            if (depth == digests.length) {
+                digests = Arrays.copyOf(digests, depth*2);
+                ends = Arrays.copyOf(ends, depth*2);
+                runs = Arrays.copyOf(runs, depth*2);
+                types = Arrays.copyOf(types, depth*2);
+            }
+            if (digests[depth] == null) {
+                digests[depth] = newDigest();
+            }
+            ends[depth] = idx + length;
+            types[depth] = type;
+            idx+= 1 + ABITView.decodeMetadataLength(document, idx);
+            runs[depth] = idx;
+        }
+    }
+
+    /**
+     * Get the content address of an abit document straight from its bytes.
+     * @param document the byte array containing the abit document.
+     * @return the hash as a base58btc multibase string
+     * @throws ABITException if the document is corrupt
+     */
+    public static String contentAddress(byte[] document) throws ABITException {
+        return toContentAddress(hash(document));
+    }
+
+    static String toContentAddress(byte[] hash) {
+        byte[] multihash = new byte[MULTIHASH_PREFIX.length + hash.length];
+        System.arraycopy(MULTIHASH_PREFIX, 0, multihash, 0, MULTIHASH_PREFIX.length);
+        System.arraycopy(hash, 0, multihash, MULTIHASH_PREFIX.length, hash.length);
+        return ABITMultibase.encodeBase58btc(multihash);
+    }
+
+    /**
+     * Hash of an object. Hashes kept by containers are used either way, when caching the containers which had none
+     * keep theirs and register with the containers inside, otherwise the objects are left untouched.
+     */
+    static byte[] hash(ABITObject obj, boolean cache) throws ABITException {
+        if (obj.type != 5 && obj.type != 6) {
+            MessageDigest digest = newDigest();
+            updateLeaf(digest, obj);
+            return digest.digest();
+        }
+        if (obj.encoding != null && obj.encoding.hash != null) {
+            return obj.encoding.hash;
+        }
+        MessageDigest digest = newDigest();
+        if (obj.type == 6) {
+            for (Map.Entry<ABITKey, ABITObject> entry: obj.tree().entrySet()) {
+                byte[] key = entry.getKey().bytes;
+                digest.update((byte) (key.length-1));
+                digest.update(key);
+                updateValue(digest, entry.getValue(), obj, cache);
+            }
+        }
+        else {
+            List<ABITObject> array = obj.array();
+            for (int i = 0; i < array.size(); i++) {
+                updateValue(digest, array.get(i), obj, cache);
+            }
+        }
+        byte[] hash = digest.digest();
+        if (cache) {
+            obj.encoding().hash = hash;
+        }
+        return hash;
+    }
+
+    private static void updateValue(MessageDigest digest, ABITObject value, ABITObject parent, boolean cache) throws ABITException {
+        if (value.type == 5 || value.type == 6) {
+            byte[] hash = hash(value, cache);
+            if (cache) {
+                value.encoding().addParent(parent);
+            }
+            digest.update((byte) (0xf0 | value.type));
+            digest.update(hash);
+        }
+        else {
+            updateLeaf(digest, value);
+        }
+    }
+
+    private static void updateLeaf(MessageDigest digest, ABITObject leaf) throws ABITException {
+        ByteBuffer header = ByteBuffer.allocate(9);
+        switch (leaf.type) {
+            case 0:
+            case 1:
+            case 2:
+                ABITObject.writeValue(leaf, header, null);
+                digest.update(header.array(), 0, header.position());
+                break;
+            case 3:
+                byte[] blob = leaf.blob();
+                ABITObject.writeInteger(ABITObject.checkedLength(blob.length), 3, header);
+                digest.update(header.array(), 0, header.position());
+                digest.update(blob);
+                break;
+            case 4:
+                byte[] string = leaf.utf8String().utf8();
+                ABITObject.writeInteger(ABITObject.checkedLength(string.length), 4, header);
+                digest.update(header.array(), 0, header.position());
+                digest.update(string);
+                break;
+            default:
+                throw new ABITException("Invalid ABITObject");
+        }
+    }
+
+    private static void update(MessageDigest digest, ByteBuffer document, int from, int to) {
+        if (to > from) {
+            digest.update(document.slice(from, to - from));
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,761 @@
+package org.deepslate.abit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+
+// Streaming transcoder between JSON text and abit documents, following the rules of the JSON bridge in ABITObject.
+// JSON to abit tokenizes the text and encodes every value as it is read, only the entries of each tree are buffered
+// in their encoded form until the tree closes, when they are put in key order. Memory use is bounded by the encoded
+// size of the document instead of a parsed JSON tree plus an ABITObject.
+// abit to JSON walks the document with an ABITReader and writes the text as it goes.
+// It also converts parsed org.json objects for ABITObject(JSONObject, Pattern), optionally in parallel.
+
+public class ABITJson {
+
+    private static final int BUFFER_SIZE = 8192;
+    // Arrays and objects with at least twice as many elements or entries are converted in ranges of this size
+    private static final int IMPORT_RANGE = 256;
+
+    private ABITJson() {}
+
+    /**
+     * Transcode a JSON object into an abit document. Strings under keys matching binaryRegex, also inside arrays under
+     * such keys, are decoded from multibase into blobs. Numbers have to be integers within 64 bits.
+     * @param json reader of the JSON text
+     * @param out stream to write the abit document to, it is neither flushed nor closed
+     * @param binaryRegex regex matching the keys of binary values
+     * @throws IOException if reading or writing fails
+     * @throws ABITException if the JSON is invalid or holds a value abit can't represent
+     * @throws IllegalArgumentException if a key is incompatible
+     */
+    public static void readJson(Reader json, OutputStream out, String binaryRegex) throws IOException, ABITException, IllegalArgumentException {
+        new JsonEncoder(json, Pattern.compile(binaryRegex)).encode(out);
+    }
+
+    /**
+     * Transcode an abit document into JSON text. Blobs up to base58CutOff bytes are written as base58btc multibase,
+     * longer ones as base64url multibase.
+     * @param abit stream of the abit document
+     * @param out writer for the JSON text, it is flushed but not closed
+     * @param base58CutOff maximum length of blobs written in base58btc
+     * @throws IOException if reading or writing fails
+     * @throws ABITException if the document is corrupt
+     */
+    public static void writeJson(InputStream abit, Writer out, int base58CutOff) throws IOException, ABITException {
+        ABITReader reader = new ABITReader(abit);
+        // Whether each open container is an array and still empty
+        boolean[] arrays = new boolean[16];
+        boolean[] empty = new boolean[16];
+        // Buffers reused by every blob
+        byte[] blob = new byte[64];
+        char[] text = new char[128];
+        int depth = -1;
+        ABITReader.Token token;
+        while ((token = reader.nextToken()) != null) {
+            if (token == ABITReader.Token.END_ARRAY || token == ABITReader.Token.END_TREE) {
+                out.write(token == ABITReader.Token.END_ARRAY ? ']' : '}');
+                depth--;
+                continue;
+            }
+            if (token == ABITReader.Token.KEY || (depth >= 0 && arrays[depth])) {
+                if (!empty[depth]) {
+                    out.write(',');
+                }
+                empty[depth] = false;
+            }
+            switch (token) {
+                case KEY:
+                    writeString(out, reader.getKey());
+                    out.write(':');
+                    break;
+                case NULL:
+                    out.write("null");
+                    break;
+                case BOOLEAN:
+                    out.write(reader.getBoolean() ? "true" : "false");
+                    break;
+                case INTEGER:
+                    out.write(Long.toString(reader.getInteger()));
+                    break;
+                case BLOB:
+                    int length = (int) reader.getRemainingLength();
+                    boolean base58 = length <= base58CutOff;
+                    if (blob.length < length) {
+                        blob = new byte[Math.max(length, blob.length * 2)];
+                    }
+                    int maxChars = ABITMultibase.maxEncodedLength(length, base58);
+                    if (text.length < maxChars) {
+                        text = new char[Math.max(maxChars, text.length * 2)];
+                    }
+                    reader.getBlobStream().readNBytes(blob, 0, length);
+                    int chars = base58 ? ABITMultibase.encodeBase58btc(blob, 0, length, text, 0)
+                                       : ABITMultibase.encodeBase64url(blob, 0, length, text, 0);
+                    out.write('"');
+                    out.write(text, 0, chars);
+                    out.write('"');
+                    break;
+                case STRING:
+                    writeString(out, reader.getString());
+                    break;
+                default:
+                    depth++;
+                    if (depth == arrays.length) {
+                        arrays = Arrays.copyOf(arrays, depth*2);
+                        empty = Arrays.copyOf(empty, depth*2);
+                    }
+                    arrays[depth] = token == ABITReader.Token.START_ARRAY;
+                    empty[depth] = true;
+                    out.write(arrays[depth] ? '[' : '{');
+                    break;
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Integer value of a JSON number, which has to be an integer within 64 bits whatever its notation.
+     */
+    static long integer(Number number) throws ABITException {
+        switch (number) {
+            case Integer i -> {
+                return i;
+            }
+            case Long l -> {
+                return l;
+            }
+            case BigInteger b -> {
+                if (b.bitLength() < 64) {
+                    return b.longValue();
+                }
+            }
+            case BigDecimal d -> {
+                try {
+                    return d.longValueExact();
+                }
+                catch (ArithmeticException e) {}
+            }
+            default -> {
+                double d = number.doubleValue();
+                if (d == Math.rint(d) && d >= -0x1p63 && d < 0x1p63) {
+                    return (long) d;
+                }
+            }
+        }
+        throw new ABITException("Unsupported number in json document: "+number);
+    }
+
+    static SortedMap<ABITKey, ABITObject> importTree(JSONObject json, Pattern binaryKeys, ForkJoinPool pool) throws ABITException {
+        Importer importer = new Importer(binaryKeys, pool != null);
+        if (pool == null) {
+            return importer.tree(json);
+        }
+        return pool.invoke(ForkJoinTask.adapt(() -> importer.tree(json)));
+    }
+
+    private static class Importer {
+
+        private final Pattern binaryKeys;
+        private final Map<String, Boolean> binary;
+        private final boolean parallel;
+
+        Importer(Pattern binaryKeys, boolean parallel) {
+            this.binaryKeys = binaryKeys;
+            this.binary = parallel ? new ConcurrentHashMap<>() : new HashMap<>();
+            this.parallel = parallel;
+        }
+
+        private boolean isBinary(String key) {
+            Boolean binary = this.binary.get(key);
+            if (binary == null) {
+                binary = this.binaryKeys.matcher(key).matches();
+                this.binary.put(key, binary);
+            }
+            return binary;
+        }
+
+        @SuppressWarnings("unchecked")
+        SortedMap<ABITKey, ABITObject> tree(JSONObject json) throws ABITException {
+            if (!this.parallel || json.length() < 2 * IMPORT_RANGE) {
+                SortedMap<ABITKey, ABITObject> out = new TreeMap<>();
+                for (String key: json.keySet()) {
+                    this.entry(json, key, out);
+                }
+                return out;
+            }
+            String[] keys = json.keySet().toArray(new String[0]);
+            List<ImportTask> tasks = new ArrayList<>();
+            for (int start = 0; start < keys.length; start+= IMPORT_RANGE) {
+                int from = start;
+                int to = Math.min(from + IMPORT_RANGE, keys.length);
+                tasks.add(new ImportTask(() -> {
+                    SortedMap<ABITKey, ABITObject> part = new TreeMap<>();
+                    for (int i = from; i < to; i++) {
+                        this.entry(json, keys[i], part);
+                    }
+                    return part;
+                }));
+            }
+            ForkJoinTask.invokeAll(tasks);
+            SortedMap<ABITKey, ABITObject> out = new TreeMap<>();
+            for (ImportTask task: tasks) {
+                out.putAll((SortedMap<ABITKey, ABITObject>) task.join());
+            }
+            return out;
+        }
+
+        private void entry(JSONObject json, String key, SortedMap<ABITKey, ABITObject> out) throws ABITException {
+            Object obj = json.opt(key);
+            boolean binary = (obj instanceof String || obj instanceof JSONArray) && this.isBinary(key);
+            out.put(ABITKey.of(key), this.value(obj, binary));
+        }
+
+        @SuppressWarnings("unchecked")
+        List<ABITObject> array(JSONArray json, boolean binary) throws ABITException {
+            int length = json.length();
+            List<ABITObject> out = new ArrayList<>(length);
+            if (!this.parallel || length < 2 * IMPORT_RANGE) {
+                for (int i = 0; i < length; i++) {
+                    out.add(this.value(json.opt(i), binary));
+                }
+                return out;
+            }
+            List<ImportTask> tasks = new ArrayList<>();
+            for (int start = 0; start < length; start+= IMPORT_RANGE) {
+                int from = start;
+                int to = Math.min(from + IMPORT_RANGE, length);
+                tasks.add(new ImportTask(() -> {
+                    List<ABITObject> part = new ArrayList<>(to - from);
+                    for (int i = from; i < to; i++) {
+                        part.add(this.value(json.opt(i), binary));
+                    }
+                    return part;
+                }));
+            }
+            ForkJoinTask.invokeAll(tasks);
+            for (ImportTask task: tasks) {
+                out.addAll((List<ABITObject>) task.join());
+            }
+            return out;
+        }
+
+        private ABITObject value(Object obj, boolean binary) throws ABITException {
+            switch (obj) {
+                case null -> {
+                    // JSONArray.opt() returns null for slots holding null
+                    return ABITObject.NULL_OBJECT;
+                }
+                case Boolean b -> {
+                    return ABITObject.ofBoolean(b);
+                }
+                case Number n -> {
+                    return ABITObject.ofInteger(integer(n));
+                }
+                case String s -> {
+                    if (binary) {
+                        return ABITObject.ofBlob(ABITMultibase.decode(s));
+                    }
+                    ABITObject.isCompatibleString(s);
+                    return new ABITObject(s);
+                }
+                case JSONArray a -> {
+                    return new ABITObject(this.array(a, binary));
+                }
+                case JSONObject o -> {
+                    return new ABITObject(this.tree(o));
+                }
+                default -> {
+                    if (JSONObject.NULL.equals(obj)) {
+                        return ABITObject.NULL_OBJECT;
+                    }
+                    throw new ABITException("Unsupported object type in json document");
+                }
+            }
+        }
+    }
+
+    private interface ImportRange {
+        Object convert() throws ABITException;
+    }
+
+    private static class ImportTask extends RecursiveTask<Object> {
+
+        private final ImportRange range;
+
+        ImportTask(ImportRange range) {
+            this.range = range;
+        }
+
+        @Override
+        protected Object compute() {
+            return this.range.convert();
+        }
+    }
+
+    private static void writeString(Writer out, String string) throws IOException {
+        out.write('"');
+        int run = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            out.write(string, run, i - run);
+            run = i + 1;
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                case '\b':
+                    out.write("\\b");
+                    break;
+                case '\f':
+                    out.write("\\f");
+                    break;
+                default:
+                    out.write(String.format("\\u%04x", (int) c));
+                    break;
+            }
+        }
+        out.write(string, run, string.length() - run);
+        out.write('"');
+    }
+
+    private static class JsonEncoder {
+
+        private final Reader in;
+        private final Pattern binaryKeys;
+        private final Map<String, Boolean> binaryKeyCache = new HashMap<>();
+        private final char[] chars = new char[BUFFER_SIZE];
+        private int pos = 0;
+        private int limit = 0;
+        private long consumed = 0;
+        private final StringBuilder string = new StringBuilder();
+
+        // One entry per open object or array, holding its encoded entries or elements
+        private byte[][] buffers = new byte[16][];
+        private int[] lengths = new int[16];
+        private boolean[] trees = new boolean[16];
+        // Arrays under a binary key hold blobs
+        private boolean[] binary = new boolean[16];
+        private int[] counts = new int[16];
+        // Offsets of the entries of each tree and whether they arrived in key order
+        private int[][] entries = new int[16][];
+        private boolean[] sorted = new boolean[16];
+        private int depth = -1;
+
+        JsonEncoder(Reader in, Pattern binaryKeys) {
+            this.in = in;
+            this.binaryKeys = binaryKeys;
+        }
+
+        void encode(OutputStream out) throws IOException, ABITException {
+            if (this.skipWhitespace() != '{') {
+                throw this.invalid("Expected an object");
+            }
+            this.pos++;
+            this.push(true, false);
+            while (true) {
+                int c = this.skipWhitespace();
+                int d = this.depth;
+                char close = this.trees[d] ? '}' : ']';
+                if (c == close) {
+                    this.pos++;
+                    if (this.pop(out)) {
+                        break;
+                    }
+                    continue;
+                }
+                if (this.counts[d] > 0) {
+                    if (c != ',') {
+                        throw this.invalid("Expected ',' or '"+close+"'");
+                    }
+                    this.pos++;
+                    c = this.skipWhitespace();
+                }
+                boolean binary = this.binary[d];
+                if (this.trees[d]) {
+                    if (c != '"') {
+                        throw this.invalid("Expected a key");
+                    }
+                    this.pos++;
+                    String key = this.readString();
+                    this.addKey(ABITKey.of(key).bytes);
+                    if (this.skipWhitespace() != ':') {
+                        throw this.invalid("Expected ':'");
+                    }
+                    this.pos++;
+                    c = this.skipWhitespace();
+                    Boolean isBinary = this.binaryKeyCache.get(key);
+                    if (isBinary == null) {
+                        isBinary = this.binaryKeys.matcher(key).matches();
+                        this.binaryKeyCache.put(key, isBinary);
+                    }
+                    binary = isBinary;
+                }
+                this.counts[d]++;
+                this.readValue(c, binary);
+            }
+            if (this.skipWhitespace() != -1) {
+                throw this.invalid("Unexpected text after the object");
+            }
+        }
+
+        private void readValue(int c, boolean binary) throws IOException, ABITException {
+            switch (c) {
+                case '{':
+                    this.pos++;
+                    this.push(true, false);
+                    break;
+                case '[':
+                    this.pos++;
+                    this.push(false, binary);
+                    break;
+                case '"':
+                    this.pos++;
+                    String value = this.readString();
+                    if (binary) {
+                        byte[] blob = ABITMultibase.decode(value);
+                        this.putHeader(blob.length, 3);
+                        this.put(blob, 0, blob.length);
+                    }
+                    else {
+                        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                        this.putHeader(utf8.length, 4);
+                        this.put(utf8, 0, utf8.length);
+                    }
+                    break;
+                case 't':
+                    this.readLiteral("true");
+                    this.put((byte) 0b00010001);
+                    break;
+                case 'f':
+                    this.readLiteral("false");
+                    this.put((byte) 0b00000001);
+                    break;
+                case 'n':
+                    this.readLiteral("null");
+                    this.put((byte) 0);
+                    break;
+                default:
+                    if (c == '-' || (c >= '0' && c <= '9')) {
+                        this.putHeader(this.readInteger(), 2);
+                        break;
+                    }
+                    throw this.invalid("Expected a value");
+            }
+        }
+
+        private void push(boolean tree, boolean binary) {
+            this.depth++;
+            int d = this.depth;
+            if (d == this.buffers.length) {
+                this.buffers = Arrays.copyOf(this.buffers, d*2);
+                this.lengths = Arrays.copyOf(this.lengths, d*2);
+                this.trees = Arrays.copyOf(this.trees, d*2);
+                this.binary = Arrays.copyOf(this.binary, d*2);
+                this.counts = Arrays.copyOf(this.counts, d*2);
+                this.entries = Arrays.copyOf(this.entries, d*2);
+                this.sorted = Arrays.copyOf(this.sorted, d*2);
+            }
+            if (this.buffers[d] == null) {
+                this.buffers[d] = new byte[256];
+                this.entries[d] = new int[16];
+            }
+            this.lengths[d] = 0;
+            this.trees[d] = tree;
+            this.binary[d] = binary;
+            this.counts[d] = 0;
+            this.sorted[d] = true;
+        }
+
+        // Close the current object or array, true once the document itself is written
+        private boolean pop(OutputStream out) throws IOException, ABITException {
+            int d = this.depth;
+            byte[] content = this.buffers[d];
+            int length = this.lengths[d];
+            if (this.trees[d] && !this.sorted[d]) {
+                content = this.sortEntries(d);
+            }
+            this.depth--;
+            if (this.depth < 0) {
+                out.write(content, 0, length);
+                return true;
+            }
+            this.putHeader(length, this.trees[d] ? 6 : 5);
+            this.put(content, 0, length);
+            if (this.buffers[d].length > 1 << 16) {
+                // Don't hold on to the buffer of an unusually big subtree
+                this.buffers[d] = null;
+            }
+            return false;
+        }
+
+        private void addKey(byte[] key) throws ABITException {
+            int d = this.depth;
+            int count = this.counts[d];
+            if (count == this.entries[d].length) {
+                this.entries[d] = Arrays.copyOf(this.entries[d], count*2);
+            }
+            if (count > 0 && this.sorted[d]) {
+                int last = this.entries[d][count - 1];
+                int cmp = compareKey(key, this.buffers[d], last);
+                if (cmp == 0) {
+                    throw this.invalid("Duplicate key");
+                }
+                this.sorted[d] = cmp > 0;
+            }
+            this.entries[d][count] = this.lengths[d];
+            this.put((byte) (key.length - 1));
+            this.put(key, 0, key.length);
+        }
+
+        private byte[] sortEntries(int d) throws ABITException {
+            byte[] buffer = this.buffers[d];
+            int count = this.counts[d];
+            int[] starts = this.entries[d];
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> compareKeys(buffer, starts[a], starts[b]));
+            byte[] out = new byte[this.lengths[d]];
+            int idx = 0;
+            for (int i = 0; i < count; i++) {
+                int entry = order[i];
+                if (i > 0 && compareKeys(buffer, starts[order[i - 1]], starts[entry]) == 0) {
+                    throw new ABITException("Invalid json: Duplicate key");
+                }
+                int end = entry + 1 < count ? starts[entry + 1] : this.lengths[d];
+                System.arraycopy(buffer, starts[entry], out, idx, end - starts[entry]);
+                idx+= end - starts[entry];
+            }
+            return out;
+        }
+
+        // Same order as ABITObject.keyCompare
+        private static int compareKey(byte[] key, byte[] buffer, int offset) {
+            int cmp = Integer.compare(key.length, (buffer[offset]&0xff) + 1);
+            for (int i = 0; cmp == 0 && i < key.length; i++) {
+                cmp = Byte.compare(key[i], buffer[offset + 1 + i]);
+            }
+            return cmp;
+        }
+
+        private static int compareKeys(byte[] buffer, int a, int b) {
+            int cmp = Integer.compare(buffer[a]&0xff, buffer[b]&0xff);
+            for (int i = 0; cmp == 0 && i <= (buffer[a]&0xff); i++) {
+                cmp = Byte.compare(buffer[a + 1 + i], buffer[b + 1 + i]);
+            }
+            return cmp;
+        }
+
+        private byte[] reserve(int n) throws ABITException {
+            int d = this.depth;
+            byte[] buffer = this.buffers[d];
+            int length = this.lengths[d];
+            if (length + n > buffer.length) {
+                if ((long) length + n > Integer.MAX_VALUE) {
+                    throw new ABITException("Incompatible object, it's too long to encode");
+                }
+                buffer = Arrays.copyOf(buffer, (int) Math.max(length + n, Math.min(Integer.MAX_VALUE, buffer.length*2L)));
+                this.buffers[d] = buffer;
+            }
+            return buffer;
+        }
+
+        private void put(byte b) throws ABITException {
+            byte[] buffer = this.reserve(1);
+            buffer[this.lengths[this.depth]++] = b;
+        }
+
+        private void put(byte[] b, int off, int len) throws ABITException {
+            byte[] buffer = this.reserve(len);
+            System.arraycopy(b, off, buffer, this.lengths[this.depth], len);
+            this.lengths[this.depth]+= len;
+        }
+
+        // Header of a blob, string, array or tree with its length, or a whole integer
+        private void putHeader(long integer, int type) throws ABITException {
+            int size = ABITObject.integerSize(integer);
+            byte[] buffer = this.reserve(1 + size);
+            int idx = this.lengths[this.depth];
+            buffer[idx++] = (byte) ((type & 0x0f) | ((size-1) << 4));
+            for (int i = 0; i < size; i++) {
+                buffer[idx++] = (byte) ((integer >> (i * 8))&0xff);
+            }
+            this.lengths[this.depth] = idx;
+        }
+
+        private boolean fill() throws IOException {
+            if (this.pos < this.limit) {
+                return true;
+            }
+            this.consumed+= this.limit;
+            this.pos = 0;
+            this.limit = 0;
+            int read;
+            do {
+                read = this.in.read(this.chars, 0, this.chars.length);
+            } while (read == 0);
+            if (read < 0) {
+                return false;
+            }
+            this.limit = read;
+            return true;
+        }
+
+        private int skipWhitespace() throws IOException {
+            while (this.fill()) {
+                char c = this.chars[this.pos];
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                    return c;
+                }
+                this.pos++;
+            }
+            return -1;
+        }
+
+        private int next() throws IOException, ABITException {
+            if (!this.fill()) {
+                throw this.invalid("Unexpected end of text");
+            }
+            return this.chars[this.pos++];
+        }
+
+        // Read a string after its opening quote
+        private String readString() throws IOException, ABITException {
+            StringBuilder string = this.string;
+            string.setLength(0);
+            while (true) {
+                if (!this.fill()) {
+                    throw this.invalid("Unterminated string");
+                }
+                int start = this.pos;
+                while (this.pos < this.limit) {
+                    char c = this.chars[this.pos];
+                    if (c == '"' || c == '\\' || c < 0x20) {
+                        break;
+                    }
+                    this.pos++;
+                }
+                string.append(this.chars, start, this.pos - start);
+                if (this.pos == this.limit) {
+                    continue;
+                }
+                char c = this.chars[this.pos++];
+                if (c == '"') {
+                    return string.toString();
+                }
+                if (c < 0x20) {
+                    throw this.invalid("Control character in string");
+                }
+                int escaped = this.next();
+                switch (escaped) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        string.append((char) escaped);
+                        break;
+                    case 'b':
+                        string.append('\b');
+                        break;
+                    case 'f':
+                        string.append('\f');
+                        break;
+                    case 'n':
+                        string.append('\n');
+                        break;
+                    case 'r':
+                        string.append('\r');
+                        break;
+                    case 't':
+                        string.append('\t');
+                        break;
+                    case 'u':
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(this.next(), 16);
+                            if (digit < 0) {
+                                throw this.invalid("Invalid unicode escape");
+                            }
+                            code = (code << 4) | digit;
+                        }
+                        string.append((char) code);
+                        break;
+                    default:
+                        throw this.invalid("Invalid escape");
+                }
+            }
+        }
+
+        private void readLiteral(String literal) throws IOException, ABITException {
+            for (int i = 0; i < literal.length(); i++) {
+                if (this.next() != literal.charAt(i)) {
+                    throw this.invalid("Expected "+literal);
+                }
+            }
+        }
+
+        private long readInteger() throws IOException, ABITException {
+            StringBuilder number = this.string;
+            number.setLength(0);
+            while (this.fill()) {
+                char c = this.chars[this.pos];
+                if ((c < '0' || c > '9') && c != '-' && c != '+' && c != '.' && c != 'e' && c != 'E') {
+                    break;
+                }
+                number.append(c);
+                this.pos++;
+            }
+            try {
+                return Long.parseLong(number, 0, number.length(), 10);
+            }
+            catch (NumberFormatException e) {
+                // Integers in decimal or exponent notation are accepted like in the JSON bridge
+                try {
+                    return integer(new BigDecimal(number.toString()));
+                }
+                catch (NumberFormatException | ABITException e2) {
+                    throw this.invalid("Unsupported number "+number);
+                }
+            }
+        }
+
+        private ABITException invalid(String message) {
+            return new ABITException("Invalid json at character "+(this.consumed + this.pos)+": "+message);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.deepslate.abit;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Key of a tree entry, it keeps its UTF-8 encoding around so keys can be ordered and written
+// the way the abit format needs without encoding them again.
+
+public final class ABITKey implements Comparable<ABITKey> {
+
+    final byte[] bytes;
+    // Decoded keys only become a String when they are read
+    private String string;
+    private int hash;
+
+    ABITKey(String string, byte[] bytes) {
+        this.string = string;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Create a key from a string.
+     * @param key the key
+     * @return ABITKey holding the key and its UTF-8 encoding
+     * @throws IllegalArgumentException if the key is incompatible
+     */
+    public static ABITKey of(String key) throws IllegalArgumentException {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 256 || bytes.length < 1) {
+            throw new IllegalArgumentException("Incompatible key, must be between 1 - 256 bytes when encoded with UTF-8");
+        }
+        return new ABITKey(key, bytes);
+    }
+
+    /**
+     * Create a key for looking up entries, it isn't checked for compatibility as an incompatible
+     * key simply won't be found.
+     */
+    static ABITKey probe(String key) {
+        return new ABITKey(key, key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Create a key from its encoded form inside a document.
+     */
+    static ABITKey decode(byte[] blob, int offset, int length) {
+        return new ABITKey(null, Arrays.copyOfRange(blob, offset, offset+length));
+    }
+
+    /**
+     * Get the number of bytes the key uses when encoded with UTF-8.
+     * @return length of the key in bytes
+     */
+    public int length() {
+        return this.bytes.length;
+    }
+
+    /**
+     * Compare keys in the order they have inside an abit tree, shorter keys first and keys of equal
+     * length byte by byte.
+     */
+    @Override
+    public int compareTo(ABITKey other) {
+        return ABITObject.keyCompare(this.bytes, other.bytes);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ABITKey key && Arrays.equals(this.bytes, key.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = this.hash;
+        if (h == 0) {
+            h = Arrays.hashCode(this.bytes);
+            this.hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        String s = this.string;
+        if (s == null) {
+            s = new String(this.bytes, StandardCharsets.UTF_8);
+            this.string = s;
+        }
+        return s;
+    }
+}
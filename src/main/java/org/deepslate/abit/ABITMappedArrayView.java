@@ -0,0 +1,162 @@
+package org.deepslate.abit;
+
+import java.nio.ByteBuffer;
+
+// Read-only view over an abit array inside an ABITMappedFile, see ABITMappedView.
+
+public class ABITMappedArrayView {
+
+    final ABITMappedFile file;
+    final long offset;
+    final long end;
+    // Published once complete, so threads sharing the view see either none or all of it
+    private volatile long[] offsets;
+
+    ABITMappedArrayView(ABITMappedFile file, long offset, long end) {
+        this.file = file;
+        this.offset = offset;
+        this.end = end;
+    }
+
+    /**
+     * Offset of the object at index, the element offsets are located on first use.
+     */
+    long find(int index) throws ABITException {
+        long[] offsets = this.offsets;
+        if (offsets == null) {
+            int count = 0;
+            long idx = this.offset;
+            while (idx < this.end) {
+                idx+= ABITMappedView.valueLength(this.file, idx, this.end);
+                count++;
+            }
+            offsets = new long[count];
+            idx = this.offset;
+            for (int i = 0; i < count; i++) {
+                offsets[i] = idx;
+                idx+= ABITMappedView.valueLength(this.file, idx, this.end);
+            }
+            this.offsets = offsets;
+        }
+        if (index < 0 || index >= offsets.length) {
+            throw new IndexOutOfBoundsException("Index "+index+" out of bounds for length "+offsets.length);
+        }
+        return offsets[index];
+    }
+
+    private long require(int index, int type) throws ABITException {
+        long idx = find(index);
+        if (ABITMappedView.decodeType(this.file, idx) != type) {
+            throw new ABITException("Object is not of type "+ABITView.typeName(type));
+        }
+        return idx;
+    }
+
+    /**
+     * Returns the number of elements in this array.
+     * @return the number of elements in this array
+     * @throws ABITException
+     */
+    public int size() throws ABITException {
+        if (this.offset == this.end) {
+            return 0;
+        }
+        find(0);
+        return this.offsets.length;
+    }
+
+    public boolean isEmpty() {
+        return this.offset == this.end;
+    }
+
+    /**
+     * Get the type of the object at specified index.
+     * @param index index of the object to check the type of
+     * @return string of type: "null" / "boolean" / "integer" / "blob" / "string" / "array" / "tree"
+     * @throws ABITException
+     */
+    public String getType(int index) throws ABITException {
+        return ABITView.typeName(ABITMappedView.decodeType(this.file, find(index)));
+    }
+
+    /**
+     * Get object at index from array
+     * @param index
+     * @return null object
+     * @throws ABITException
+     */
+    public ABITObject.NULL_t getNull(int index) throws ABITException {
+        ABITMappedView.decodeNull(this.file, require(index, 0));
+        return ABITObject.NULL;
+    }
+
+    /**
+     * Get object at index from array
+     * @param index
+     * @return boolean
+     * @throws ABITException
+     */
+    public boolean getBoolean(int index) throws ABITException {
+        return ABITMappedView.decodeBoolean(this.file, require(index, 1));
+    }
+
+    /**
+     * Get object at index from array
+     * @param index
+     * @return integer
+     * @throws ABITException
+     */
+    public long getInteger(int index) throws ABITException {
+        return ABITMappedView.decodeInteger(this.file, require(index, 2), 8);
+    }
+
+    /**
+     * Get object at index from array, the bytes are copied out of the mapping.
+     * @param index
+     * @return blob
+     * @throws ABITException
+     */
+    public byte[] getBlob(int index) throws ABITException {
+        return ABITMappedView.decodeBlob(this.file, require(index, 3), this.end);
+    }
+
+    /**
+     * Get object at index from array, without copying it unless it crosses a mapping chunk.
+     * @param index
+     * @return read-only buffer spanning the blob
+     * @throws ABITException
+     */
+    public ByteBuffer getBlobBuffer(int index) throws ABITException {
+        return ABITMappedView.slice(this.file, require(index, 3), this.end);
+    }
+
+    /**
+     * Get object at index from array
+     * @param index
+     * @return string
+     * @throws ABITException
+     */
+    public String getString(int index) throws ABITException {
+        return ABITMappedView.decodeString(this.file, require(index, 4), this.end);
+    }
+
+    /**
+     * Get object at index from array
+     * @param index
+     * @return ABITMappedArrayView over the nested array
+     * @throws ABITException
+     */
+    public ABITMappedArrayView getArray(int index) throws ABITException {
+        return ABITMappedView.decodeArray(this.file, require(index, 5), this.end);
+    }
+
+    /**
+     * Get object at index from array
+     * @param index
+     * @return ABITMappedView over the nested tree
+     * @throws ABITException
+     */
+    public ABITMappedView getTree(int index) throws ABITException {
+        return ABITMappedView.decodeTree(this.file, require(index, 6), this.end);
+    }
+}
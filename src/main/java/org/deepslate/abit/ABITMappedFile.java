@@ -0,0 +1,131 @@
+package org.deepslate.abit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+
+// Read-only memory mapping of a file holding abit documents, addressed with 64-bit offsets.
+// The file is mapped in chunks of 1 GiB by default, so neither the file nor a document inside it is limited to 2 GB, and values
+// may cross chunk boundaries. Nothing is read into the heap until a value is asked for through ABITMappedView.
+// Only absolute reads are used, so any number of threads can read the same ABITMappedFile and its views at once.
+
+public class ABITMappedFile implements Closeable {
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] chunks;
+    private final int chunkShift;
+    private final long chunkMask;
+    private final long size;
+
+    /**
+     * Map a file read-only.
+     * @param path path of the file
+     * @throws IOException if the file can't be opened or mapped
+     */
+    public ABITMappedFile(Path path) throws IOException {
+        this(path, 1 << 30);
+    }
+
+    /**
+     * Map a file read-only in chunks of a given size.
+     * @param path path of the file
+     * @param chunkSize size of each mapped chunk, a power of two of at most 1 GiB
+     * @throws IOException if the file can't be opened or mapped
+     * @throws IllegalArgumentException if the chunk size is invalid
+     */
+    public ABITMappedFile(Path path, int chunkSize) throws IOException, IllegalArgumentException {
+        if (chunkSize <= 0 || chunkSize > 1 << 30 || Integer.bitCount(chunkSize) != 1) {
+            throw new IllegalArgumentException("Chunk size has to be a power of two of at most 1 GiB");
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            this.size = this.channel.size();
+            this.chunkShift = Integer.numberOfTrailingZeros(chunkSize);
+            this.chunkMask = chunkSize - 1;
+            this.chunks = new MappedByteBuffer[(int) ((this.size + this.chunkMask) >>> this.chunkShift)];
+            for (int i = 0; i < this.chunks.length; i++) {
+                long start = (long) i << this.chunkShift;
+                this.chunks[i] = this.channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(this.size - start, chunkSize));
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the size of the mapped file.
+     * @return size in bytes
+     */
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * Get a view over the whole file as one abit document.
+     * @return view over the root tree
+     */
+    public ABITMappedView root() {
+        return new ABITMappedView(this, 0, this.size);
+    }
+
+    /**
+     * Get a view over an abit document inside the file.
+     * @param offset offset of the document in the file
+     * @param length length of the document in bytes
+     * @return view over the document's tree
+     * @throws IndexOutOfBoundsException if the document doesn't lie inside the file
+     */
+    public ABITMappedView view(long offset, long length) throws IndexOutOfBoundsException {
+        Objects.checkFromIndexSize(offset, length, this.size);
+        return new ABITMappedView(this, offset, offset + length);
+    }
+
+    byte get(long offset) {
+        return this.chunks[(int) (offset >>> this.chunkShift)].get((int) (offset & this.chunkMask));
+    }
+
+    void get(long offset, byte[] out, int outOffset, int length) {
+        while (length > 0) {
+            MappedByteBuffer chunk = this.chunks[(int) (offset >>> this.chunkShift)];
+            int chunkOffset = (int) (offset & this.chunkMask);
+            int n = Math.min(length, chunk.limit() - chunkOffset);
+            chunk.get(chunkOffset, out, outOffset, n);
+            offset+= n;
+            outOffset+= n;
+            length-= n;
+        }
+    }
+
+    /**
+     * Read-only buffer spanning length bytes at offset, only copied when they cross a chunk boundary.
+     */
+    ByteBuffer slice(long offset, int length) {
+        if (length == 0) {
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        }
+        MappedByteBuffer chunk = this.chunks[(int) (offset >>> this.chunkShift)];
+        int chunkOffset = (int) (offset & this.chunkMask);
+        if (chunkOffset + length <= chunk.limit()) {
+            return chunk.slice(chunkOffset, length).asReadOnlyBuffer();
+        }
+        byte[] out = new byte[length];
+        this.get(offset, out, 0, length);
+        return ByteBuffer.wrap(out).asReadOnlyBuffer();
+    }
+
+    /**
+     * Close the file. The mapping stays readable through existing views and is released once none of them is reachable.
+     * @throws IOException if the file can't be closed
+     */
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
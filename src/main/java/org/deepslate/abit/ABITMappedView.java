@@ -0,0 +1,326 @@
+package org.deepslate.abit;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Read-only view over an abit tree inside an ABITMappedFile, see ABITView.
+// Offsets are 64-bit: a nested value is at most 2 GB by its length header, but the root tree of a document has no
+// header, so a document spanning a whole multi-GB file can be read without ever being copied into the heap.
+
+public class ABITMappedView {
+
+    final ABITMappedFile file;
+    final long offset;
+    final long end;
+
+    ABITMappedView(ABITMappedFile file, long offset, long end) {
+        this.file = file;
+        this.offset = offset;
+        this.end = end;
+    }
+
+    static int decodeType(ABITMappedFile file, long offset) {
+        return file.get(offset) & 0x0f;
+    }
+
+    static int decodeMetadataLength(ABITMappedFile file, long offset) {
+        return ((file.get(offset) & 0xf0) >> 4) + 1;
+    }
+
+    static long decodeInteger(ABITMappedFile file, long offset, int maxSize) throws ABITException {
+        int size = decodeMetadataLength(file, offset);
+
+        if (size > maxSize) {
+            throw new ABITException("Invalid integer size at "+offset);
+        }
+
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value <<= 8;
+            value |= (file.get(offset+1 +size - 1 - i) & 0xFF);
+        }
+        if ((file.get(offset+size) & 0x80) != 0 && size < 8) {
+            value -= (1L << size*8);
+        }
+        return value;
+    }
+
+    /**
+     * Length of the payload following the header of a blob, string, array or tree.
+     */
+    static long decodeLength(ABITMappedFile file, long offset, long end) throws ABITException {
+        if (offset+1+decodeMetadataLength(file, offset) > end) {
+            throw new ABITException("Corrupt ABIT at "+offset);
+        }
+        long length = decodeInteger(file, offset, 4);
+        long payloadOffset = offset+1+decodeMetadataLength(file, offset);
+        if (length < 0 || length > end - payloadOffset) {
+            throw new ABITException("Corrupt ABIT at "+offset);
+        }
+        return length;
+    }
+
+    /**
+     * Total number of bytes used by the value starting at offset, header included.
+     */
+    static long valueLength(ABITMappedFile file, long offset, long end) throws ABITException {
+        switch (decodeType(file, offset)) {
+            case 0:
+            case 1:
+                return 1;
+            case 2:
+                int size = 1 + decodeMetadataLength(file, offset);
+                if (size > end - offset) {
+                    throw new ABITException("Corrupt ABIT at "+offset);
+                }
+                return size;
+            case 3:
+            case 4:
+            case 5:
+            case 6:
+                return 1 + decodeMetadataLength(file, offset) + decodeLength(file, offset, end);
+            default:
+                throw new ABITException("Invalid type at "+offset);
+        }
+    }
+
+    static int compareKey(ABITMappedFile file, long offset, byte[] key) {
+        int keyLength = (file.get(offset)&0xff)+1;
+        if (keyLength != key.length) {
+            return Integer.compare(keyLength, key.length);
+        }
+        for (int i = 0; i < keyLength; i++) {
+            int cmp = Byte.compare(file.get(offset+1+i), key[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Offset of the value stored under key, or -1 when the tree doesn't contain the key.
+     */
+    long find(String key) throws ABITException {
+        byte[] keyRaw = key.getBytes(StandardCharsets.UTF_8);
+
+        long idx = this.offset;
+        while (idx < this.end) {
+            if (idx + 2 + (this.file.get(idx)&0xff) >= this.end) {
+                throw new ABITException("Corrupt ABIT");
+            }
+            int cmp = compareKey(this.file, idx, keyRaw);
+            idx+= 2 + (this.file.get(idx)&0xff);
+            if (cmp == 0) {
+                return idx;
+            }
+            if (cmp > 0) {
+                return -1;
+            }
+            idx+= valueLength(this.file, idx, this.end);
+        }
+        return -1;
+    }
+
+    private long require(String key, int type) throws ABITException {
+        long idx = find(key);
+        if (idx < 0) {
+            throw new ABITException("Key not found");
+        }
+        if (decodeType(this.file, idx) != type) {
+            throw new ABITException("Object is not of type "+ABITView.typeName(type));
+        }
+        return idx;
+    }
+
+    static void decodeNull(ABITMappedFile file, long offset) throws ABITException {
+        if (file.get(offset) != 0x00) {
+            throw new ABITException("Byte at "+offset+" is not a null");
+        }
+    }
+
+    static boolean decodeBoolean(ABITMappedFile file, long offset) throws ABITException {
+        switch (file.get(offset)) {
+            case 0b00000001:
+                return false;
+            case 0b00010001:
+                return true;
+            default:
+                throw new ABITException("Byte at "+offset+" is not a boolean");
+        }
+    }
+
+    // Length of a blob or string that has to fit a Java array
+    private static int arrayLength(ABITMappedFile file, long offset, long end) throws ABITException {
+        long length = decodeLength(file, offset, end);
+        if (length > Integer.MAX_VALUE - 8) {
+            throw new ABITException("Value at "+offset+" is too big for a Java array");
+        }
+        return (int) length;
+    }
+
+    static ByteBuffer slice(ABITMappedFile file, long offset, long end) throws ABITException {
+        int length = arrayLength(file, offset, end);
+        return file.slice(offset+1+decodeMetadataLength(file, offset), length);
+    }
+
+    static byte[] decodeBlob(ABITMappedFile file, long offset, long end) throws ABITException {
+        int length = arrayLength(file, offset, end);
+        byte[] out = new byte[length];
+        file.get(offset+1+decodeMetadataLength(file, offset), out, 0, length);
+        return out;
+    }
+
+    static String decodeString(ABITMappedFile file, long offset, long end) throws ABITException {
+        return new String(decodeBlob(file, offset, end), StandardCharsets.UTF_8);
+    }
+
+    static ABITMappedView decodeTree(ABITMappedFile file, long offset, long end) throws ABITException {
+        long length = decodeLength(file, offset, end);
+        long treeOffset = offset+1+decodeMetadataLength(file, offset);
+        return new ABITMappedView(file, treeOffset, treeOffset+length);
+    }
+
+    static ABITMappedArrayView decodeArray(ABITMappedFile file, long offset, long end) throws ABITException {
+        long length = decodeLength(file, offset, end);
+        long arrayOffset = offset+1+decodeMetadataLength(file, offset);
+        return new ABITMappedArrayView(file, arrayOffset, arrayOffset+length);
+    }
+
+    /**
+     * Check if the tree contains an object under the specified key.
+     * @param key key to look for
+     * @return true if the key is present
+     * @throws ABITException
+     */
+    public boolean containsKey(String key) throws ABITException {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Get the type of the object at specified key.
+     * @param key key of the object to check the type of
+     * @return string of type: "null" / "boolean" / "integer" / "blob" / "string" / "array" / "tree"
+     * @throws ABITException
+     */
+    public String getType(String key) throws ABITException {
+        long idx = find(key);
+        if (idx < 0) {
+            throw new ABITException("Key not found");
+        }
+        return ABITView.typeName(decodeType(this.file, idx));
+    }
+
+    /**
+     * Get object associated with key from tree
+     * @param key
+     * @return null object
+     * @throws ABITException
+     */
+    public ABITObject.NULL_t getNull(String key) throws ABITException {
+        decodeNull(this.file, require(key, 0));
+        return ABITObject.NULL;
+    }
+
+    /**
+     * Get object associated with key from tree
+     * @param key
+     * @return boolean
+     * @throws ABITException
+     */
+    public boolean getBoolean(String key) throws ABITException {
+        return decodeBoolean(this.file, require(key, 1));
+    }
+
+    /**
+     * Get object associated with key from tree
+     * @param key
+     * @return integer
+     * @throws ABITException
+     */
+    public long getInteger(String key) throws ABITException {
+        long idx = require(key, 2);
+        valueLength(this.file, idx, this.end);
+        return decodeInteger(this.file, idx, 8);
+    }
+
+    /**
+     * Get object associated with key from tree, the bytes are copied out of the mapping.
+     * @param key
+     * @return blob
+     * @throws ABITException if the blob doesn't fit a Java array
+     */
+    public byte[] getBlob(String key) throws ABITException {
+        return decodeBlob(this.file, require(key, 3), this.end);
+    }
+
+    /**
+     * Get object associated with key from tree, without copying it unless it crosses a mapping chunk.
+     * @param key
+     * @return read-only buffer spanning the blob
+     * @throws ABITException if the blob doesn't fit a Java array
+     */
+    public ByteBuffer getBlobBuffer(String key) throws ABITException {
+        return slice(this.file, require(key, 3), this.end);
+    }
+
+    /**
+     * Get object associated with key from tree
+     * @param key
+     * @return string
+     * @throws ABITException if the string doesn't fit a Java array
+     */
+    public String getString(String key) throws ABITException {
+        return decodeString(this.file, require(key, 4), this.end);
+    }
+
+    /**
+     * Get object associated with key from tree
+     * @param key
+     * @return ABITMappedArrayView over the nested array
+     * @throws ABITException
+     */
+    public ABITMappedArrayView getArray(String key) throws ABITException {
+        return decodeArray(this.file, require(key, 5), this.end);
+    }
+
+    /**
+     * Get object associated with key from tree
+     * @param key
+     * @return ABITMappedView over the nested tree
+     * @throws ABITException
+     */
+    public ABITMappedView getTree(String key) throws ABITException {
+        return decodeTree(this.file, require(key, 6), this.end);
+    }
+
+    /**
+     * Get the offset of this tree's entries in the file.
+     * @return offset in bytes
+     */
+    public long offset() {
+        return this.offset;
+    }
+
+    /**
+     * Get the length of this tree's entries.
+     * @return length in bytes
+     */
+    public long length() {
+        return this.end - this.offset;
+    }
+
+    /**
+     * Fully decode the viewed tree into the heap.
+     * @return ABITObject containing every entry of this tree
+     * @throws ABITException if the tree doesn't fit a Java array
+     */
+    public ABITObject toABITObject() throws ABITException {
+        if (this.end - this.offset > Integer.MAX_VALUE - 8) {
+            throw new ABITException("Tree at "+this.offset+" is too big for a Java array");
+        }
+        byte[] document = new byte[(int) (this.end - this.offset)];
+        this.file.get(this.offset, document, 0, document.length);
+        return new ABITObject(document);
+    }
+}
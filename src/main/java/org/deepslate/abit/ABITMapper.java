@@ -0,0 +1,739 @@
+package org.deepslate.abit;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.RecordComponent;
+import java.lang.reflect.Type;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Binds records and beans to abit documents without building ABITObjects in between.
+// Every class gets a codec made once from MethodHandles to its accessors and constructor, with its keys encoded
+// and sorted in abit key order up front. Encoding sizes the value first and then writes the properties in that
+// order straight into an array of the exact size, decoding walks the entries of the document and the sorted
+// properties side by side.
+// Supported property types: boolean, byte, short, int, long and their boxes, String, byte[], enums (as strings),
+// List of any supported type, and nested records and beans. null is written as null.
+// Beans need a public no-arg constructor and a public getter and setter for every property.
+
+public class ABITMapper {
+
+    private interface Codec {
+        // Bytes used by the value, header included, the lengths of arrays and trees are kept in the plan for write()
+        long size(Object value, ABITObject.EncodePlan plan) throws ABITException;
+        void write(Object value, ByteBuffer out, ABITObject.EncodePlan plan);
+        // offset is the header of the value, end the end of the array or tree holding it
+        Object read(ByteBuffer blob, int offset, int end) throws ABITException;
+    }
+
+    // How a property's getter is called, primitives are read without boxing them
+    private static final int INTEGER = 0;
+    private static final int BOOLEAN = 1;
+    private static final int OBJECT = 2;
+
+    private static final class Property implements Comparable<Property> {
+        final ABITKey key;
+        final int kind;
+        final Codec codec;
+        // (Object)long, (Object)boolean or (Object)Object depending on kind
+        final MethodHandle getter;
+        // (Object, Object)void for beans, null for records
+        final MethodHandle setter;
+        // Position of the property in the canonical constructor of a record
+        final int index;
+
+        Property(ABITKey key, int kind, Codec codec, MethodHandle getter, MethodHandle setter, int index) {
+            this.key = key;
+            this.kind = kind;
+            this.codec = codec;
+            this.getter = getter;
+            this.setter = setter;
+            this.index = index;
+        }
+
+        @Override
+        public int compareTo(Property other) {
+            return this.key.compareTo(other.key);
+        }
+    }
+
+    private final MethodHandles.Lookup lookup;
+    private final ConcurrentHashMap<Class<?>, ClassCodec> codecs = new ConcurrentHashMap<>();
+
+    /**
+     * Initialize an ABITMapper for public records and beans.
+     */
+    public ABITMapper() {
+        this(MethodHandles.publicLookup());
+    }
+
+    /**
+     * Initialize an ABITMapper accessing records and beans through a lookup, pass MethodHandles.lookup()
+     * to bind classes that are only visible inside the caller's package.
+     * @param lookup lookup used to find accessors and constructors
+     */
+    public ABITMapper(MethodHandles.Lookup lookup) {
+        this.lookup = lookup;
+    }
+
+    /**
+     * Encode a record or bean as an abit document.
+     * @param value the record or bean
+     * @return byte array containing the abit document
+     * @throws ABITException if the value is too big to be encoded
+     * @throws IllegalArgumentException if the class can't be bound
+     */
+    public byte[] encode(Object value) throws ABITException, IllegalArgumentException {
+        ClassCodec codec = this.codec(value.getClass());
+        ABITObject.EncodePlan plan = new ABITObject.EncodePlan();
+        byte[] out = new byte[(int) ABITObject.checkedLength(codec.sizeEntries(value, plan))];
+        codec.writeEntries(value, ByteBuffer.wrap(out), plan);
+        return out;
+    }
+
+    /**
+     * Write a record or bean as an abit document into a buffer, starting at its position.
+     * @param value the record or bean
+     * @param buffer buffer to write into
+     * @return number of bytes written
+     * @throws ABITException if the value is too big to be encoded
+     * @throws IllegalArgumentException if the class can't be bound
+     * @throws java.nio.BufferOverflowException if the buffer doesn't have enough space left
+     */
+    public int writeTo(Object value, ByteBuffer buffer) throws ABITException, IllegalArgumentException {
+        ClassCodec codec = this.codec(value.getClass());
+        ABITObject.EncodePlan plan = new ABITObject.EncodePlan();
+        int length = (int) ABITObject.checkedLength(codec.sizeEntries(value, plan));
+        if (buffer.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        codec.writeEntries(value, buffer, plan);
+        return length;
+    }
+
+    /**
+     * Decode an abit document into a record or bean, entries without a property are skipped and properties
+     * without an entry are left at their default.
+     * @param document the byte array containing the abit document
+     * @param type class of the record or bean
+     * @return the record or bean
+     * @throws ABITException if the document is corrupt or an entry doesn't fit its property
+     * @throws IllegalArgumentException if the class can't be bound
+     */
+    public <T> T decode(byte[] document, Class<T> type) throws ABITException, IllegalArgumentException {
+        return this.decode(ByteBuffer.wrap(document), type);
+    }
+
+    /**
+     * Decode the abit document in the remaining bytes of a buffer into a record or bean, the buffer's position is left untouched.
+     * @param document the buffer containing the abit document
+     * @param type class of the record or bean
+     * @return the record or bean
+     * @throws ABITException if the document is corrupt or an entry doesn't fit its property
+     * @throws IllegalArgumentException if the class can't be bound
+     */
+    public <T> T decode(ByteBuffer document, Class<T> type) throws ABITException, IllegalArgumentException {
+        return type.cast(this.codec(type).readEntries(document, document.position(), document.limit()));
+    }
+
+    private ClassCodec codec(Class<?> type) throws IllegalArgumentException {
+        ClassCodec codec = this.codecs.get(type);
+        if (codec == null) {
+            // Built outside of the map, nested classes are looked up while building
+            codec = new ClassCodec(type);
+            ClassCodec previous = this.codecs.putIfAbsent(type, codec);
+            if (previous != null) {
+                codec = previous;
+            }
+        }
+        return codec;
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException runtime) {
+            throw runtime;
+        }
+        if (e instanceof Error error) {
+            throw error;
+        }
+        throw new ABITException(e.toString());
+    }
+
+    private final class ClassCodec implements Codec {
+        private final Property[] properties;
+        private final boolean record;
+        // Canonical constructor spread over an Object[] for records, no-arg constructor for beans
+        private final MethodHandle constructor;
+        // Arguments for properties missing from a document
+        private final Object[] defaults;
+
+        ClassCodec(Class<?> type) throws IllegalArgumentException {
+            List<Property> properties = new ArrayList<>();
+            try {
+                if (type.isRecord()) {
+                    this.record = true;
+                    RecordComponent[] components = type.getRecordComponents();
+                    Class<?>[] parameters = new Class<?>[components.length];
+                    this.defaults = new Object[components.length];
+                    for (int i = 0; i < components.length; i++) {
+                        Class<?> componentType = components[i].getType();
+                        parameters[i] = componentType;
+                        this.defaults[i] = defaultValue(componentType);
+                        MethodHandle getter = lookup.unreflect(components[i].getAccessor());
+                        properties.add(property(components[i].getName(), components[i].getGenericType(), getter, null, i));
+                    }
+                    this.constructor = lookup.findConstructor(type, MethodType.methodType(void.class, parameters))
+                            .asSpreader(Object[].class, components.length)
+                            .asType(MethodType.methodType(Object.class, Object[].class));
+                }
+                else {
+                    this.record = false;
+                    this.defaults = null;
+                    this.constructor = lookup.findConstructor(type, MethodType.methodType(void.class))
+                            .asType(MethodType.methodType(Object.class));
+                    Set<String> names = new HashSet<>();
+                    for (Method method: type.getMethods()) {
+                        String name = propertyName(method);
+                        if (name == null || names.contains(name)) {
+                            continue;
+                        }
+                        Method setter = setter(type, "set" + method.getName().substring(method.getName().startsWith("is") ? 2 : 3), method.getReturnType());
+                        if (setter == null) {
+                            continue;
+                        }
+                        names.add(name);
+                        MethodHandle setterHandle = lookup.unreflect(setter).asType(MethodType.methodType(void.class, Object.class, Object.class));
+                        properties.add(property(name, method.getGenericReturnType(), lookup.unreflect(method), setterHandle, -1));
+                    }
+                }
+            }
+            catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new IllegalArgumentException("Can't bind "+type.getName()+", "+e.getMessage());
+            }
+            this.properties = properties.toArray(new Property[0]);
+            Arrays.sort(this.properties);
+        }
+
+        private Property property(String name, Type type, MethodHandle getter, MethodHandle setter, int index) throws IllegalArgumentException {
+            Class<?> raw = getter.type().returnType();
+            int kind = OBJECT;
+            if (raw == long.class || raw == int.class || raw == short.class || raw == byte.class) {
+                kind = INTEGER;
+                getter = getter.asType(MethodType.methodType(long.class, Object.class));
+            }
+            else if (raw == boolean.class) {
+                kind = BOOLEAN;
+                getter = getter.asType(MethodType.methodType(boolean.class, Object.class));
+            }
+            else {
+                getter = getter.asType(MethodType.methodType(Object.class, Object.class));
+            }
+            return new Property(ABITKey.of(name), kind, codecFor(type), getter, setter, index);
+        }
+
+        @Override
+        public long size(Object value, ABITObject.EncodePlan plan) throws ABITException {
+            if (value == null) {
+                return 1;
+            }
+            int slot = plan.reserve();
+            long length = ABITObject.checkedLength(this.sizeEntries(value, plan));
+            plan.sizes[slot] = (int) length;
+            return 1 + ABITObject.integerSize(length) + length;
+        }
+
+        long sizeEntries(Object value, ABITObject.EncodePlan plan) throws ABITException {
+            long length = 0;
+            try {
+                for (Property property: this.properties) {
+                    length+= 1 + property.key.bytes.length;
+                    switch (property.kind) {
+                        case INTEGER:
+                            length+= 1 + ABITObject.integerSize((long) property.getter.invokeExact(value));
+                            break;
+                        case BOOLEAN:
+                            length+= 1;
+                            break;
+                        default:
+                            length+= property.codec.size((Object) property.getter.invokeExact(value), plan);
+                            break;
+                    }
+                }
+            }
+            catch (Throwable e) {
+                throw rethrow(e);
+            }
+            return length;
+        }
+
+        @Override
+        public void write(Object value, ByteBuffer out, ABITObject.EncodePlan plan) {
+            if (value == null) {
+                out.put((byte) 0);
+                return;
+            }
+            ABITObject.writeInteger(plan.sizes[plan.sizeIdx++], 6, out);
+            this.writeEntries(value, out, plan);
+        }
+
+        void writeEntries(Object value, ByteBuffer out, ABITObject.EncodePlan plan) {
+            try {
+                for (Property property: this.properties) {
+                    out.put((byte) (property.key.bytes.length-1));
+                    out.put(property.key.bytes);
+                    switch (property.kind) {
+                        case INTEGER:
+                            ABITObject.writeInteger((long) property.getter.invokeExact(value), 2, out);
+                            break;
+                        case BOOLEAN:
+                            out.put((boolean) property.getter.invokeExact(value) ? (byte) 0b00010001 : (byte) 0b00000001);
+                            break;
+                        default:
+                            property.codec.write((Object) property.getter.invokeExact(value), out, plan);
+                            break;
+                    }
+                }
+            }
+            catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public Object read(ByteBuffer blob, int offset, int end) throws ABITException {
+            int type = ABITView.decodeType(blob, offset);
+            if (type == 0) {
+                return null;
+            }
+            if (type != 6) {
+                throw new ABITException("Object is not of type tree");
+            }
+            int treeOffset = offset + 1 + ABITView.decodeMetadataLength(blob, offset);
+            return this.readEntries(blob, treeOffset, treeOffset + ABITView.decodeLength(blob, offset, end));
+        }
+
+        Object readEntries(ByteBuffer blob, int idx, int end) throws ABITException {
+            try {
+                Object[] args = this.record ? this.defaults.clone() : null;
+                Object bean = this.record ? null : (Object) this.constructor.invokeExact();
+                int next = 0;
+                while (idx < end) {
+                    int valueOffset = idx + 2 + (blob.get(idx)&0xff);
+                    if (valueOffset >= end) {
+                        throw new ABITException("Corrupt ABIT at "+idx);
+                    }
+                    // Entries and properties are both sorted, so every property is compared at most once per entry
+                    while (next < this.properties.length && ABITView.compareKey(blob, idx, this.properties[next].key.bytes) > 0) {
+                        next++;
+                    }
+                    if (next < this.properties.length && ABITView.compareKey(blob, idx, this.properties[next].key.bytes) == 0) {
+                        Property property = this.properties[next];
+                        Object value = property.codec.read(blob, valueOffset, end);
+                        if (this.record) {
+                            args[property.index] = value;
+                        }
+                        else {
+                            property.setter.invokeExact(bean, value);
+                        }
+                    }
+                    idx = valueOffset + ABITView.valueLength(blob, valueOffset, end);
+                }
+                return this.record ? (Object) this.constructor.invokeExact(args) : bean;
+            }
+            catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+    }
+
+    // Setter taking the getter's type, or a supertype of it when the getter's return type is covariant
+    private static Method setter(Class<?> type, String name, Class<?> valueType) {
+        Method found = null;
+        for (Method method: type.getMethods()) {
+            if (method.isBridge() || Modifier.isStatic(method.getModifiers()) || method.getParameterCount() != 1 || !method.getName().equals(name)) {
+                continue;
+            }
+            Class<?> parameter = method.getParameterTypes()[0];
+            if (parameter == valueType) {
+                return method;
+            }
+            if (parameter.isAssignableFrom(valueType) && (found == null || found.getParameterTypes()[0].isAssignableFrom(parameter))) {
+                found = method;
+            }
+        }
+        return found;
+    }
+
+    private static String propertyName(Method method) {
+        if (method.isBridge() || Modifier.isStatic(method.getModifiers()) || method.getParameterCount() != 0 || method.getDeclaringClass() == Object.class) {
+            return null;
+        }
+        String name = method.getName();
+        String property;
+        if (name.startsWith("get") && name.length() > 3 && method.getReturnType() != void.class) {
+            property = name.substring(3);
+        }
+        else if (name.startsWith("is") && name.length() > 2 && (method.getReturnType() == boolean.class || method.getReturnType() == Boolean.class)) {
+            property = name.substring(2);
+        }
+        else {
+            return null;
+        }
+        return Character.toLowerCase(property.charAt(0)) + property.substring(1);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        if (type == boolean.class) {
+            return false;
+        }
+        return null;
+    }
+
+    private Codec codecFor(Type type) throws IllegalArgumentException {
+        if (type instanceof ParameterizedType parameterized && parameterized.getRawType() == List.class) {
+            return new ListCodec(this.codecFor(parameterized.getActualTypeArguments()[0]));
+        }
+        if (!(type instanceof Class<?> raw)) {
+            throw new IllegalArgumentException("Unsupported property type "+type);
+        }
+        if (raw == long.class || raw == Long.class) {
+            return new IntegerCodec(raw.isPrimitive(), Long.MIN_VALUE, Long.MAX_VALUE, Long.class);
+        }
+        if (raw == int.class || raw == Integer.class) {
+            return new IntegerCodec(raw.isPrimitive(), Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.class);
+        }
+        if (raw == short.class || raw == Short.class) {
+            return new IntegerCodec(raw.isPrimitive(), Short.MIN_VALUE, Short.MAX_VALUE, Short.class);
+        }
+        if (raw == byte.class || raw == Byte.class) {
+            return new IntegerCodec(raw.isPrimitive(), Byte.MIN_VALUE, Byte.MAX_VALUE, Byte.class);
+        }
+        if (raw == boolean.class || raw == Boolean.class) {
+            return new BooleanCodec(raw.isPrimitive());
+        }
+        if (raw == String.class) {
+            return new StringCodec();
+        }
+        if (raw == byte[].class) {
+            return new BlobCodec();
+        }
+        if (raw.isEnum()) {
+            return new EnumCodec(raw);
+        }
+        if (raw.isPrimitive() || raw.isArray() || raw.isInterface()) {
+            throw new IllegalArgumentException("Unsupported property type "+type);
+        }
+        return new NestedCodec(raw);
+    }
+
+    private static long sizeString(String str) throws ABITException {
+        long length = ABITObject.checkedLength(ABITObject.utf8Length(str));
+        return 1 + ABITObject.integerSize(length) + length;
+    }
+
+    private static void writeString(String str, ByteBuffer out) {
+        ABITObject.writeInteger(ABITObject.utf8Length(str), 4, out);
+        ABITObject.writeUtf8(str, out);
+    }
+
+    private static boolean isNull(ByteBuffer blob, int offset, boolean primitive) throws ABITException {
+        if (ABITView.decodeType(blob, offset) != 0) {
+            return false;
+        }
+        if (primitive) {
+            throw new ABITException("Object is null");
+        }
+        return true;
+    }
+
+    private static void checkType(ByteBuffer blob, int offset, int type) throws ABITException {
+        if (ABITView.decodeType(blob, offset) != type) {
+            throw new ABITException("Object is not of type "+ABITView.typeName(type));
+        }
+    }
+
+    private static final class IntegerCodec implements Codec {
+        private final boolean primitive;
+        private final long min;
+        private final long max;
+        private final Class<?> box;
+
+        IntegerCodec(boolean primitive, long min, long max, Class<?> box) {
+            this.primitive = primitive;
+            this.min = min;
+            this.max = max;
+            this.box = box;
+        }
+
+        @Override
+        public long size(Object value, ABITObject.EncodePlan plan) {
+            return value == null ? 1 : 1 + ABITObject.integerSize(((Number) value).longValue());
+        }
+
+        @Override
+        public void write(Object value, ByteBuffer out, ABITObject.EncodePlan plan) {
+            if (value == null) {
+                out.put((byte) 0);
+            }
+            else {
+                ABITObject.writeInteger(((Number) value).longValue(), 2, out);
+            }
+        }
+
+        @Override
+        public Object read(ByteBuffer blob, int offset, int end) throws ABITException {
+            if (isNull(blob, offset, this.primitive)) {
+                return null;
+            }
+            checkType(blob, offset, 2);
+            ABITView.valueLength(blob, offset, end);
+            long value = ABITView.decodeInteger(blob, offset, 8);
+            if (value < this.min || value > this.max) {
+                throw new ABITException("Integer out of range for "+this.box.getSimpleName());
+            }
+            if (this.box == Long.class) {
+                return value;
+            }
+            if (this.box == Integer.class) {
+                return (int) value;
+            }
+            if (this.box == Short.class) {
+                return (short) value;
+            }
+            return (byte) value;
+        }
+    }
+
+    private static final class BooleanCodec implements Codec {
+        private final boolean primitive;
+
+        BooleanCodec(boolean primitive) {
+            this.primitive = primitive;
+        }
+
+        @Override
+        public long size(Object value, ABITObject.EncodePlan plan) {
+            return 1;
+        }
+
+        @Override
+        public void write(Object value, ByteBuffer out, ABITObject.EncodePlan plan) {
+            if (value == null) {
+                out.put((byte) 0);
+            }
+            else {
+                out.put((Boolean) value ? (byte) 0b00010001 : (byte) 0b00000001);
+            }
+        }
+
+        @Override
+        public Object read(ByteBuffer blob, int offset, int end) throws ABITException {
+            if (isNull(blob, offset, this.primitive)) {
+                return null;
+            }
+            checkType(blob, offset, 1);
+            return ABITView.decodeBoolean(blob, offset);
+        }
+    }
+
+    private static final class StringCodec implements Codec {
+        @Override
+        public long size(Object value, ABITObject.EncodePlan plan) throws ABITException {
+            return value == null ? 1 : sizeString((String) value);
+        }
+
+        @Override
+        public void write(Object value, ByteBuffer out, ABITObject.EncodePlan plan) {
+            if (value == null) {
+                out.put((byte) 0);
+            }
+            else {
+                writeString((String) value, out);
+            }
+        }
+
+        @Override
+        public Object read(ByteBuffer blob, int offset, int end) throws ABITException {
+            if (isNull(blob, offset, false)) {
+                return null;
+            }
+            checkType(blob, offset, 4);
+            return ABITView.decodeString(blob, offset, end);
+        }
+    }
+
+    private static final class BlobCodec implements Codec {
+        @Override
+        public long size(Object value, ABITObject.EncodePlan plan) {
+            if (value == null) {
+                return 1;
+            }
+            int length = ((byte[]) value).length;
+            return 1 + ABITObject.integerSize(length) + length;
+        }
+
+        @Override
+        public void write(Object value, ByteBuffer out, ABITObject.EncodePlan plan) {
+            if (value == null) {
+                out.put((byte) 0);
+            }
+            else {
+                ABITObject.writeInteger(((byte[]) value).length, 3, out);
+                out.put((byte[]) value);
+            }
+        }
+
+        @Override
+        public Object read(ByteBuffer blob, int offset, int end) throws ABITException {
+            if (isNull(blob, offset, false)) {
+                return null;
+            }
+            checkType(blob, offset, 3);
+            return ABITView.decodeBlob(blob, offset, end);
+        }
+    }
+
+    private static final class EnumCodec implements Codec {
+        private final Class<?> type;
+
+        EnumCodec(Class<?> type) {
+            this.type = type;
+        }
+
+        @Override
+        public long size(Object value, ABITObject.EncodePlan plan) throws ABITException {
+            return value == null ? 1 : sizeString(((Enum<?>) value).name());
+        }
+
+        @Override
+        public void write(Object value, ByteBuffer out, ABITObject.EncodePlan plan) {
+            if (value == null) {
+                out.put((byte) 0);
+            }
+            else {
+                writeString(((Enum<?>) value).name(), out);
+            }
+        }
+
+        @Override
+        public Object read(ByteBuffer blob, int offset, int end) throws ABITException {
+            if (isNull(blob, offset, false)) {
+                return null;
+            }
+            checkType(blob, offset, 4);
+            String name = ABITView.decodeString(blob, offset, end);
+            for (Object constant: this.type.getEnumConstants()) {
+                if (((Enum<?>) constant).name().equals(name)) {
+                    return constant;
+                }
+            }
+            throw new ABITException("No constant "+name+" in "+this.type.getSimpleName());
+        }
+    }
+
+    private static final class ListCodec implements Codec {
+        private final Codec element;
+
+        ListCodec(Codec element) {
+            this.element = element;
+        }
+
+        @Override
+        public long size(Object value, ABITObject.EncodePlan plan) throws ABITException {
+            if (value == null) {
+                return 1;
+            }
+            int slot = plan.reserve();
+            long length = 0;
+            for (Object element: (List<?>) value) {
+                length+= this.element.size(element, plan);
+            }
+            plan.sizes[slot] = (int) ABITObject.checkedLength(length);
+            return 1 + ABITObject.integerSize(length) + length;
+        }
+
+        @Override
+        public void write(Object value, ByteBuffer out, ABITObject.EncodePlan plan) {
+            if (value == null) {
+                out.put((byte) 0);
+                return;
+            }
+            ABITObject.writeInteger(plan.sizes[plan.sizeIdx++], 5, out);
+            for (Object element: (List<?>) value) {
+                this.element.write(element, out, plan);
+            }
+        }
+
+        @Override
+        public Object read(ByteBuffer blob, int offset, int end) throws ABITException {
+            if (isNull(blob, offset, false)) {
+                return null;
+            }
+            checkType(blob, offset, 5);
+            int idx = offset + 1 + ABITView.decodeMetadataLength(blob, offset);
+            int arrayEnd = idx + ABITView.decodeLength(blob, offset, end);
+            List<Object> list = new ArrayList<>();
+            while (idx < arrayEnd) {
+                list.add(this.element.read(blob, idx, arrayEnd));
+                idx+= ABITView.valueLength(blob, idx, arrayEnd);
+            }
+            return list;
+        }
+    }
+
+    // Looks the codec of a nested class up on first use, so classes can refer to themselves
+    private final class NestedCodec implements Codec {
+        private final Class<?> type;
+        private volatile ClassCodec codec;
+
+        NestedCodec(Class<?> type) {
+            this.type = type;
+        }
+
+        private ClassCodec codec() throws IllegalArgumentException {
+            ClassCodec codec = this.codec;
+            if (codec == null) {
+                codec = ABITMapper.this.codec(this.type);
+                this.codec = codec;
+            }
+            return codec;
+        }
+
+        @Override
+        public long size(Object value, ABITObject.EncodePlan plan) throws ABITException {
+            return this.codec().size(value, plan);
+        }
+
+        @Override
+        public void write(Object value, ByteBuffer out, ABITObject.EncodePlan plan) {
+            this.codec().write(value, out, plan);
+        }
+
+        @Override
+        public Object read(ByteBuffer blob, int offset, int end) throws ABITException {
+            return this.codec().read(blob, offset, end);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package org.deepslate.abit;
+
+import io.ipfs.multibase.Multibase;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+// Multibase codecs for the blobs of the JSON bridge: base58btc (prefix 'z') and base64url without padding (prefix 'u').
+// base58btc converts between 32-bit words of input and limbs of 58^5 in machine words, instead of one digit at a
+// time in a BigInteger, so a blob of n bytes costs about n^2/100 long divisions and a single scratch array.
+// base64url is table driven. The char[] variants write into a caller's buffer, so a loop encoding many blobs can
+// reuse one buffer sized with maxEncodedLength().
+// decode() also reads padded base64url ('U') and base64 ('m', 'M'). Other multibase encodings are handed to the
+// java-multibase library, which is an optional dependency needed only for them.
+
+public class ABITMultibase {
+
+    private static final char[] BASE58 = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz".toCharArray();
+    private static final char[] BASE64URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    // Value of every ASCII character in each alphabet, -1 if it isn't part of it
+    private static final byte[] BASE58_VALUES = values(BASE58);
+    private static final byte[] BASE64URL_VALUES = values(BASE64URL);
+    private static final byte[] BASE64_VALUES = values(BASE64);
+    // 58^5, the biggest power of 58 whose limbs shifted by 32 bits still fit a long
+    private static final long BASE58_LIMB = 656356768L;
+    private static final long[] BASE58_POWERS = new long[]{1, 58, 58*58, 58*58*58, 58*58*58*58, BASE58_LIMB};
+
+    private ABITMultibase() {}
+
+    private static byte[] values(char[] alphabet) {
+        byte[] values = new byte[128];
+        Arrays.fill(values, (byte) -1);
+        for (int i = 0; i < alphabet.length; i++) {
+            values[alphabet[i]] = (byte) i;
+        }
+        return values;
+    }
+
+    /**
+     * Get the maximum number of chars encoding a blob takes, prefix included.
+     * @param length length of the blob
+     * @param base58 true for base58btc, false for base64url
+     * @return maximum length of the multibase string
+     */
+    public static int maxEncodedLength(int length, boolean base58) {
+        if (base58) {
+            // log(256) / log(58) < 1.38
+            return 2 + (int) (length * 138L / 100);
+        }
+        return 1 + (int) ((length * 4L + 2) / 3);
+    }
+
+    /**
+     * Encode a blob in the multibase encoding the JSON bridge uses for its length.
+     * @param blob the blob to encode
+     * @param base58CutOff maximum length of blobs encoded in base58btc, longer ones are encoded in base64url
+     * @return multibase string
+     */
+    public static String encode(byte[] blob, int base58CutOff) {
+        return blob.length <= base58CutOff ? encodeBase58btc(blob) : encodeBase64url(blob);
+    }
+
+    /**
+     * Encode a blob in base58btc.
+     * @param blob the blob to encode
+     * @return multibase string starting with 'z'
+     */
+    public static String encodeBase58btc(byte[] blob) {
+        char[] out = new char[maxEncodedLength(blob.length, true)];
+        return new String(out, 0, encodeBase58btc(blob, 0, blob.length, out, 0));
+    }
+
+    /**
+     * Encode a blob in base64url without padding.
+     * @param blob the blob to encode
+     * @return multibase string starting with 'u'
+     */
+    public static String encodeBase64url(byte[] blob) {
+        char[] out = new char[maxEncodedLength(blob.length, false)];
+        return new String(out, 0, encodeBase64url(blob, 0, blob.length, out, 0));
+    }
+
+    /**
+     * Encode bytes in base58btc into a char array.
+     * @param in array containing the bytes
+     * @param offset offset of the bytes
+     * @param length number of bytes
+     * @param out array receiving the multibase string, with room for maxEncodedLength(length, true) chars
+     * @param outOffset offset in out to write at
+     * @return number of chars written
+     * @throws IndexOutOfBoundsException if a range lies outside its array
+     */
+    public static int encodeBase58btc(byte[] in, int offset, int length, char[] out, int outOffset) throws IndexOutOfBoundsException {
+        Objects.checkFromIndexSize(offset, length, in.length);
+        int end = offset + length;
+        int idx = offset;
+        while (idx < end && in[idx] == 0) {
+            idx++;
+        }
+        int zeros = idx - offset;
+
+        // Little-endian limbs of 5 base58 digits, fed 32 bits at a time with the odd bytes first
+        int[] limbs = new int[(end - idx) * 138 / 500 + 2];
+        int used = 0;
+        int group = (end - idx) & 3;
+        if (group == 0) {
+            group = 4;
+        }
+        while (idx < end) {
+            long carry = 0;
+            for (int i = 0; i < group; i++) {
+                carry = (carry << 8) | (in[idx++] & 0xff);
+            }
+            int shift = group * 8;
+            for (int i = 0; i < used; i++) {
+                long x = ((long) limbs[i] << shift) + carry;
+                limbs[i] = (int) (x % BASE58_LIMB);
+                carry = x / BASE58_LIMB;
+            }
+            while (carry != 0) {
+                limbs[used++] = (int) (carry % BASE58_LIMB);
+                carry/= BASE58_LIMB;
+            }
+            group = 4;
+        }
+
+        int pos = outOffset;
+        out[pos++] = 'z';
+        for (int i = 0; i < zeros; i++) {
+            out[pos++] = '1';
+        }
+        if (used > 0) {
+            int top = limbs[used - 1];
+            int digits = 1;
+            while (digits < 5 && top >= BASE58_POWERS[digits]) {
+                digits++;
+            }
+            for (int d = digits - 1; d >= 0; d--) {
+                out[pos + d] = BASE58[top % 58];
+                top/= 58;
+            }
+            pos+= digits;
+            for (int i = used - 2; i >= 0; i--) {
+                int limb = limbs[i];
+                for (int d = 4; d >= 0; d--) {
+                    out[pos + d] = BASE58[limb % 58];
+                    limb/= 58;
+                }
+                pos+= 5;
+            }
+        }
+        return pos - outOffset;
+    }
+
+    /**
+     * Encode bytes in base64url without padding into a char array.
+     * @param in array containing the bytes
+     * @param offset offset of the bytes
+     * @param length number of bytes
+     * @param out array receiving the multibase string, with room for maxEncodedLength(length, false) chars
+     * @param outOffset offset in out to write at
+     * @return number of chars written
+     * @throws IndexOutOfBoundsException if a range lies outside its array
+     */
+    public static int encodeBase64url(byte[] in, int offset, int length, char[] out, int outOffset) throws IndexOutOfBoundsException {
+        Objects.checkFromIndexSize(offset, length, in.length);
+        int pos = outOffset;
+        out[pos++] = 'u';
+        int idx = offset;
+        int end = offset + length - length % 3;
+        while (idx < end) {
+            int bits = (in[idx] & 0xff) << 16 | (in[idx+1] & 0xff) << 8 | (in[idx+2] & 0xff);
+            out[pos] = BASE64URL[bits >>> 18];
+            out[pos+1] = BASE64URL[(bits >>> 12) & 0x3f];
+            out[pos+2] = BASE64URL[(bits >>> 6) & 0x3f];
+            out[pos+3] = BASE64URL[bits & 0x3f];
+            idx+= 3;
+            pos+= 4;
+        }
+        switch (length % 3) {
+            case 1:
+                int one = in[idx] & 0xff;
+                out[pos++] = BASE64URL[one >>> 2];
+                out[pos++] = BASE64URL[(one << 4) & 0x3f];
+                break;
+            case 2:
+                int two = (in[idx] & 0xff) << 8 | (in[idx+1] & 0xff);
+                out[pos++] = BASE64URL[two >>> 10];
+                out[pos++] = BASE64URL[(two >>> 4) & 0x3f];
+                out[pos++] = BASE64URL[(two << 2) & 0x3f];
+                break;
+        }
+        return pos - outOffset;
+    }
+
+    /**
+     * Decode a multibase string.
+     * @param text the multibase string
+     * @return the decoded bytes
+     * @throws ABITException if the string isn't valid in its encoding, or if its encoding isn't built in and
+     *                       java-multibase isn't available
+     */
+    public static byte[] decode(String text) throws ABITException {
+        if (text.isEmpty()) {
+            throw new ABITException("Empty multibase string");
+        }
+        switch (text.charAt(0)) {
+            case 'z':
+                return decodeBase58(text);
+            case 'u':
+            case 'U':
+                return decodeBase64(text, BASE64URL_VALUES);
+            case 'm':
+            case 'M':
+                return decodeBase64(text, BASE64_VALUES);
+            default:
+                try {
+                    return Multibase.decode(text);
+                }
+                catch (NoClassDefFoundError e) {
+                    throw new ABITException("Unsupported multibase encoding "+text.charAt(0));
+                }
+                catch (RuntimeException e) {
+                    throw new ABITException("Invalid multibase string: "+e.getMessage());
+                }
+        }
+    }
+
+    private static int value(String text, int index, byte[] values) throws ABITException {
+        char c = text.charAt(index);
+        int value = c < 128 ? values[c] : -1;
+        if (value < 0) {
+            throw new ABITException("Invalid multibase character at "+index);
+        }
+        return value;
+    }
+
+    private static byte[] decodeBase58(String text) throws ABITException {
+        int end = text.length();
+        int idx = 1;
+        while (idx < end && text.charAt(idx) == '1') {
+            idx++;
+        }
+        int zeros = idx - 1;
+
+        // Little-endian 32-bit limbs, fed 5 digits at a time with the odd digits first
+        int[] limbs = new int[(end - idx) * 733 / 4000 + 2];
+        int used = 0;
+        int group = (end - idx) % 5;
+        if (group == 0) {
+            group = 5;
+        }
+        while (idx < end) {
+            long carry = 0;
+            for (int i = 0; i < group; i++) {
+                carry = carry * 58 + value(text, idx++, BASE58_VALUES);
+            }
+            long multiplier = BASE58_POWERS[group];
+            for (int i = 0; i < used; i++) {
+                long x = (limbs[i] & 0xffffffffL) * multiplier + carry;
+                limbs[i] = (int) x;
+                carry = x >>> 32;
+            }
+            if (carry != 0) {
+                limbs[used++] = (int) carry;
+            }
+            group = 5;
+        }
+
+        int topBytes = used == 0 ? 0 : 4 - Integer.numberOfLeadingZeros(limbs[used - 1]) / 8;
+        byte[] out = new byte[zeros + (used == 0 ? 0 : (used - 1) * 4 + topBytes)];
+        int pos = zeros;
+        for (int b = topBytes - 1; b >= 0; b--) {
+            out[pos++] = (byte) (limbs[used - 1] >>> (b * 8));
+        }
+        for (int i = used - 2; i >= 0; i--) {
+            out[pos++] = (byte) (limbs[i] >>> 24);
+            out[pos++] = (byte) (limbs[i] >>> 16);
+            out[pos++] = (byte) (limbs[i] >>> 8);
+            out[pos++] = (byte) limbs[i];
+        }
+        return out;
+    }
+
+    private static byte[] decodeBase64(String text, byte[] values) throws ABITException {
+        int end = text.length();
+        while (end > 1 && text.charAt(end - 1) == '=') {
+            end--;
+        }
+        int length = end - 1;
+        if (length % 4 == 1 || text.length() - end > 2) {
+            throw new ABITException("Invalid multibase string length");
+        }
+        byte[] out = new byte[length / 4 * 3 + Math.max(length % 4 - 1, 0)];
+        int idx = 1;
+        int pos = 0;
+        int blocks = 1 + length / 4 * 4;
+        while (idx < blocks) {
+            int bits = value(text, idx, values) << 18 | value(text, idx+1, values) << 12
+                    | value(text, idx+2, values) << 6 | value(text, idx+3, values);
+            out[pos] = (byte) (bits >>> 16);
+            out[pos+1] = (byte) (bits >>> 8);
+            out[pos+2] = (byte) bits;
+            idx+= 4;
+            pos+= 3;
+        }
+        switch (length % 4) {
+            case 2:
+                int two = value(text, idx, values) << 6 | value(text, idx+1, values);
+                out[pos] = (byte) (two >>> 4);
+                break;
+            case 3:
+                int three = value(text, idx, values) << 12 | value(text, idx+1, values) << 6 | value(text, idx+2, values);
+                out[pos] = (byte) (three >>> 10);
+                out[pos+1] = (byte) (three >>> 2);
+                break;
+        }
+        return out;
+    }
+}
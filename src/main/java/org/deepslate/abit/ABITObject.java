@@ -5,17 +5,25 @@ import org.json.JSONArray;
 import org.json.JSONException;
 
 import java.math.BigInteger;
-import io.ipfs.multibase.Multibase;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.WeakHashMap;
 import java.util.ArrayList;
-import java.nio.charset.StandardCharsets;
-import java.util.Collection;
-import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.io.IOException;
-import java.util.Comparator;
 
 // Anton's Binary Information Tree
 
@@ -24,20 +32,72 @@ public class ABITObject {
     public static class NULL_t {}
     public static NULL_t NULL;
 
-    SortedMap<String, ABITObject> tree = new TreeMap<>();
-    List<ABITObject> array = new ArrayList<>();
-    byte type = 6;
-    boolean booleanValue = true;
-    String string;
-    byte[] blob;
+    // Leaves only carry what their type needs, null, booleans and small integers are shared instances.
+    // value holds the SortedMap of a tree, the List of an array, the ABITString of a string or the byte[] of a blob.
+    byte type;
     long intValue;
+    Object value;
+
+    // Where the encoded payload of a tree or array can be copied from, set by encoders retaining their output
+    Encoding encoding;
+    boolean retainEncoding;
+    boolean cacheHashes;
+    // Shared by a concurrent tree and every array and tree inside it, null for everything else. Set once the
+    // collections are concurrent, so a thread seeing it sees them too.
+    volatile ReentrantReadWriteLock lock;
+
+    static final ABITObject NULL_OBJECT = new ABITObject((byte) 0, 0, null);
+    static final ABITObject TRUE_OBJECT = new ABITObject((byte) 1, 1, null);
+    static final ABITObject FALSE_OBJECT = new ABITObject((byte) 1, 0, null);
+
+    // Containers smaller than this are decoded on the thread that found them when decoding in parallel
+    private static final int PARALLEL_THRESHOLD = 64 * 1024;
+
+    private static final int INTEGER_CACHE_LOW = -128;
+    private static final int INTEGER_CACHE_HIGH = 1023;
+    private static final ABITObject[] INTEGER_CACHE = new ABITObject[INTEGER_CACHE_HIGH - INTEGER_CACHE_LOW + 1];
+
+    static {
+        for (int i = 0; i < INTEGER_CACHE.length; i++) {
+            INTEGER_CACHE[i] = new ABITObject((byte) 2, i + INTEGER_CACHE_LOW, null);
+        }
+    }
 
     /**
      * Initialize an ABITObject.
      */
     public ABITObject() {
         this.type = 6;
-        this.tree.clear();
+        this.value = new TreeMap<ABITKey, ABITObject>();
+    }
+
+    /**
+     * Get an empty ABITObject that many threads can change at once.
+     * Trees inside it are backed by skip lists in abit key order and arrays by lists appended to without locking,
+     * so writers only share a read lock and don't wait for each other. Encoding the tree or converting it to JSON takes
+     * the lock for itself and sees a consistent snapshot, writers wait for it to finish.
+     * Arrays and trees put into it become part of it, they can't be put into another concurrent tree.
+     * @return the concurrent tree
+     */
+    public static ABITObject concurrent() {
+        ABITObject tree = new ABITObject(new ConcurrentSkipListMap<ABITKey, ABITObject>());
+        tree.lock = new ReentrantReadWriteLock();
+        return tree;
+    }
+
+    /**
+     * Get an ABITObject that many threads can change at once, decoded from an abit document. See concurrent().
+     * @param document the byte array containing the abit document.
+     * @return the concurrent tree
+     * @throws ABITException
+     */
+    public static ABITObject concurrent(byte[] document) throws ABITException {
+        ABITObject tree = concurrent();
+        for (Map.Entry<ABITKey, ABITObject> entry: new ABITObject(document).tree().entrySet()) {
+            tree.adopt(entry.getValue());
+            tree.tree().put(entry.getKey(), entry.getValue());
+        }
+        return tree;
     }
 
     /**
@@ -47,97 +107,221 @@ public class ABITObject {
      */
     public ABITObject(byte[] document) throws ABITException {
         this.type = 6;
-        this.tree = decodeTree(document, 0, document.length);
+        this.value = decodeTree(document, 0, document.length);
     }
 
-    public ABITObject(JSONObject json, String binaryRegex) throws ABITException, IllegalStateException {
+    /**
+     * Initialize an ABITObject from an abit document inside a byte array, optionally retaining its encoding.
+     * See setRetainEncoding(). The retained encoding is a copy of the document, every nested array and tree records
+     * where it sits in that copy as it's decoded, so nothing is encoded until something changes.
+     * @param document the byte array containing the abit document.
+     * @param retainEncoding whether to keep the encoding of every nested array and tree.
+     * @throws ABITException
+     */
+    public ABITObject(byte[] document, boolean retainEncoding) throws ABITException {
         this.type = 6;
-        this.tree.clear();
+        this.retainEncoding = retainEncoding;
+        if (!retainEncoding) {
+            this.value = decodeTree(document, 0, document.length);
+            return;
+        }
+        // Every nested container points into a single copy of the document while it's decoded
+        byte[] bytes = document.clone();
+        Encoding encoding = this.encoding();
+        encoding.bytes = bytes;
+        encoding.offset = 0;
+        encoding.length = bytes.length;
+        encoding.dirty = false;
+        this.value = decodeTree(bytes, 0, bytes.length, this);
+    }
 
-        for(String key: json.keySet()) {
-            Object obj = json.get(key);
-            switch (obj) {
-                case Boolean b -> {
-                    this.put(key, b);
-                }
-                case Integer i -> {
-                    this.put(key, i);
-                }
-                case String s -> {
-                    if (key.matches(binaryRegex)) {
-                        this.put(key, Multibase.decode(s));
-                    }
-                    else {
-                        this.put(key, s);
-                    }
-                }
-                case JSONArray a -> {
-                    this.put(key, new ABITArray(a, binaryRegex, key));
-                }
-                case JSONObject o -> {
-                    this.put(key, new ABITObject(o, binaryRegex));
-                }
-                default -> {
-                    if (json.isNull(key)) {
-                        this.put(key, NULL);
-                    }
-                    else {
-                        throw new ABITException("Unsupported object type in json document");
-                    }
-                }
-            }
+    /**
+     * Initialize an ABITObject from the parts of an abit document selected by a projection,
+     * everything else is skipped using its length prefix without being decoded.
+     * @param document the byte array containing the abit document.
+     * @param projection the key paths to decode.
+     * @throws ABITException if the document is corrupt, or if a key path goes on below a value that isn't a tree
+     */
+    public ABITObject(byte[] document, ABITProjection projection) throws ABITException {
+        this.type = 6;
+        this.value = decodeTree(document, 0, document.length, projection);
+    }
+
+    /**
+     * Initialize an ABITObject from an abit document which has to fit a schema.
+     * Entries are matched against the schema's keys by position and every type is checked once.
+     * @param document the byte array containing the abit document.
+     * @param schema the tree schema the document has to fit, or ANY to decode it without checks.
+     * @throws ABITException naming the key path and offset of the first entry that doesn't fit, or if the schema
+     *                       is neither a tree schema nor ANY
+     */
+    public ABITObject(byte[] document, ABITSchema schema) throws ABITException {
+        this.type = 6;
+        if (schema.type < 0) {
+            this.value = decodeTree(document, 0, document.length);
+            return;
         }
+        if (schema.type != 6) {
+            throw ABITSchema.mismatch(6, schema.type, "", -1);
+        }
+        this.value = decodeTree(document, 0, document.length, schema, "");
+    }
+
+    /**
+     * Initialize an ABITObject from an abit document inside a byte array, decoding nested arrays and trees
+     * of 64 KiB and more concurrently.
+     * @param document the byte array containing the abit document.
+     * @param pool the pool decoding the nested arrays and trees.
+     * @throws ABITException
+     */
+    public ABITObject(byte[] document, ForkJoinPool pool) throws ABITException {
+        this(document, pool, PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * Initialize an ABITObject from an abit document inside a byte array, decoding nested arrays and trees
+     * concurrently. Every nested value carries its length, so siblings are found without decoding them
+     * and the ones of at least threshold bytes are decoded as their own tasks, smaller ones are decoded in place.
+     * @param document the byte array containing the abit document.
+     * @param pool the pool decoding the nested arrays and trees.
+     * @param threshold encoded size in bytes from which a nested array or tree is decoded as its own task.
+     * @throws ABITException
+     */
+    @SuppressWarnings("unchecked")
+    public ABITObject(byte[] document, ForkJoinPool pool, int threshold) throws ABITException {
+        this.type = 6;
+        if (document.length < threshold) {
+            this.value = decodeTree(document, 0, document.length);
+        }
+        else {
+            this.value = (SortedMap<ABITKey, ABITObject>) pool.invoke(new DecodeTask(document, 0, document.length, true, threshold));
+        }
+    }
+
+    /**
+     * Initialize an ABITObject from a JSON object. Strings under keys matching binaryRegex, also inside arrays under
+     * such keys, are decoded from multibase into blobs. Numbers have to be integers within 64 bits.
+     * @param json the JSON object
+     * @param binaryRegex regex matching the keys of binary values, it is compiled once per call.
+     * @throws ABITException if the JSON object holds a value abit can't represent
+     */
+    public ABITObject(JSONObject json, String binaryRegex) throws ABITException, IllegalStateException {
+        this(json, Pattern.compile(binaryRegex));
+    }
+
+    /**
+     * Initialize an ABITObject from a JSON object. Strings under keys matching binaryKeys, also inside arrays under
+     * such keys, are decoded from multibase into blobs, every distinct key is matched once. Numbers have to be
+     * integers within 64 bits.
+     * @param json the JSON object
+     * @param binaryKeys pattern matching the keys of binary values
+     * @throws ABITException if the JSON object holds a value abit can't represent
+     */
+    public ABITObject(JSONObject json, Pattern binaryKeys) throws ABITException {
+        this.type = 6;
+        this.value = ABITJson.importTree(json, binaryKeys, null);
+    }
+
+    /**
+     * Initialize an ABITObject from a JSON object like ABITObject(JSONObject, Pattern), converting big arrays and
+     * objects concurrently in ranges of their elements and entries.
+     * @param json the JSON object
+     * @param binaryKeys pattern matching the keys of binary values
+     * @param pool the pool converting the ranges
+     * @throws ABITException if the JSON object holds a value abit can't represent
+     */
+    public ABITObject(JSONObject json, Pattern binaryKeys, ForkJoinPool pool) throws ABITException {
+        this.type = 6;
+        this.value = ABITJson.importTree(json, binaryKeys, pool);
     }
 
-    ABITObject(SortedMap<String, ABITObject> tree) {
+    ABITObject(SortedMap<ABITKey, ABITObject> tree) {
         this.type = 6;
-        this.tree = tree;
+        this.value = tree;
     }
 
     ABITObject(List<ABITObject> array) {
         this.type = 5;
-        this.array = array;
+        this.value = array;
     }
 
     ABITObject(String str) {
         this.type = 4;
-        this.string = str;
+        this.value = new ABITString(str);
     }
 
-    ABITObject(byte[] blob, boolean isBytes) {
-        this.type = 3;
-        this.blob = blob.clone();
+    ABITObject(ABITString str) {
+        this.type = 4;
+        this.value = str;
     }
 
-    ABITObject(long integer) {
-        this.type = 2;
-        this.intValue = integer;
+
+    private ABITObject(byte type, long intValue, Object value) {
+        this.type = type;
+        this.intValue = intValue;
+        this.value = value;
     }
 
     /**
-     * create a boolean entry
-     * @param bool 
+     * Get a blob entry holding a copy of the blob.
      */
-    ABITObject(boolean bool) {
-        this.type = 1;
-        this.booleanValue = bool;
+    static ABITObject ofBlob(byte[] blob) {
+        return new ABITObject((byte) 3, 0, blob.clone());
     }
 
     /**
-     * Create a null entry
+     * Get an integer entry, small integers are shared.
+     * @param integer
      */
-    ABITObject(NULL_t a) {
-        this.type = 0;
+    static ABITObject ofInteger(long integer) {
+        if (integer >= INTEGER_CACHE_LOW && integer <= INTEGER_CACHE_HIGH) {
+            return INTEGER_CACHE[(int) integer - INTEGER_CACHE_LOW];
+        }
+        return new ABITObject((byte) 2, integer, null);
+    }
+
+    /**
+     * Get a boolean entry
+     * @param bool 
+     */
+    static ABITObject ofBoolean(boolean bool) {
+        return bool ? TRUE_OBJECT : FALSE_OBJECT;
+    }
+
+    @SuppressWarnings("unchecked")
+    SortedMap<ABITKey, ABITObject> tree() {
+        return (SortedMap<ABITKey, ABITObject>) this.value;
+    }
+
+    @SuppressWarnings("unchecked")
+    List<ABITObject> array() {
+        return (List<ABITObject>) this.value;
+    }
+
+    String string() {
+        return this.value.toString();
+    }
+
+    ABITString utf8String() {
+        return (ABITString) this.value;
+    }
+
+    byte[] blob() {
+        return (byte[]) this.value;
+    }
+
+    boolean booleanValue() {
+        return this.intValue != 0;
     }
 
     private int decodeKeyLength(byte[] blob, int offset) {
         return (blob[offset]&0xff)+1;
     }
 
-    private String decodeKey(byte[] blob, int offset) {
+    private ABITKey decodeKey(byte[] blob, int offset) {
         int keyLength = decodeKeyLength(blob, offset);
 
-        return new String(blob, offset+1, keyLength, StandardCharsets.UTF_8);
+        return ABITKey.decode(blob, offset+1, keyLength);
     }
 
     private int decodeMetadataLength(byte[] blob, int offset) {
@@ -204,15 +388,15 @@ public class ABITObject {
         return out;
     }
 
-    private String decodeString(byte[] blob, int offset) throws ABITException {
-        // String is just a blob encoded with UTF-8
+    private ABITString decodeString(byte[] blob, int offset) throws ABITException {
+        // String is just a blob encoded with UTF-8, it's kept that way until it's read
         int blobLength = (int)decodeInteger(blob, offset, 4);
         int blobOffset = offset+1+decodeMetadataLength(blob, offset);
 
-        return new String(blob, blobOffset, blobLength, StandardCharsets.UTF_8);
+        return ABITString.decode(blob, blobOffset, blobLength);
     }
 
-    private List<ABITObject> decodeArray(byte[] blob, int offset) throws ABITException {
+    private List<ABITObject> decodeArray(byte[] blob, int offset, ABITObject owner) throws ABITException {
         // Array is just an array inside a blob
         int blobLength = (int)decodeInteger(blob, offset, 4);
         int blobOffset = offset+1+decodeMetadataLength(blob, offset);
@@ -225,19 +409,19 @@ public class ABITObject {
             switch(decodeType(blob, idx)) {
                 case 0:
                     decodeNull(blob, idx);
-                    out.add(new ABITObject(NULL));
+                    out.add(NULL_OBJECT);
                     idx+= 1;
                     break;
                 case 1:
-                    out.add(new ABITObject(decodeBoolean(blob, idx)));
+                    out.add(ofBoolean(decodeBoolean(blob, idx)));
                     idx+= 1;
                     break;
                 case 2:
-                    out.add(new ABITObject(decodeInteger(blob, idx)));
+                    out.add(ofInteger(decodeInteger(blob, idx)));
                     idx+= 1 + decodeMetadataLength(blob, idx);
                     break;
                 case 3:
-                    out.add(new ABITObject(decodeBlob(blob, idx), true));
+                    out.add(new ABITObject((byte) 3, 0, decodeBlob(blob, idx)));
                     idx+= 1 + decodeMetadataLength(blob, idx) + decodeInteger(blob, idx, 4);
                     break;
                 case 4:
@@ -245,13 +429,12 @@ public class ABITObject {
                     idx+= 1 + decodeMetadataLength(blob, idx) + decodeInteger(blob, idx, 4);
                     break;
                 case 5:
-                    out.add(new ABITObject(decodeArray(blob, idx)));
-                    idx+= 1 + decodeMetadataLength(blob, idx) + decodeInteger(blob, idx, 4);
-                    break;
                 case 6:
-                    out.add(new ABITObject(decodeNestedTree(blob, idx)));
+                    out.add(decodeContainer(blob, idx, owner));
                     idx+= 1 + decodeMetadataLength(blob, idx) + decodeInteger(blob, idx, 4);
                     break;
+                default:
+                    throw new ABITException("Invalid type at "+idx);
             }
         }
         if(idx > blobEnd) {
@@ -260,25 +443,49 @@ public class ABITObject {
         return out;
     }
 
-    private SortedMap<String, ABITObject> decodeNestedTree(byte[] blob, int offset) throws ABITException {
+    private SortedMap<ABITKey, ABITObject> decodeNestedTree(byte[] blob, int offset, ABITObject owner) throws ABITException {
         // Nested tree is just a tree inside a blob
         int blobLength = (int)decodeInteger(blob, offset, 4);
         int blobOffset = offset+1+decodeMetadataLength(blob, offset);
 
-        return decodeTree(blob, blobOffset, blobLength);
+        return decodeTree(blob, blobOffset, blobLength, owner);
+    }
+
+    /**
+     * Decode a nested array or tree. owner is the container holding it when the encoding is retained, the nested
+     * one then records where its payload sits inside the payload of owner, otherwise null.
+     */
+    private ABITObject decodeContainer(byte[] blob, int offset, ABITObject owner) throws ABITException {
+        boolean isArray = decodeType(blob, offset) == 5;
+        if (owner == null) {
+            return isArray ? new ABITObject(decodeArray(blob, offset, null)) : new ABITObject(decodeNestedTree(blob, offset, null));
+        }
+        ABITObject container = new ABITObject((byte) (isArray ? 5 : 6), 0, null);
+        Encoding encoding = container.encoding();
+        encoding.anchor = owner.encoding;
+        encoding.offset = offset + 1 + decodeMetadataLength(blob, offset) - owner.encoding.position();
+        encoding.length = (int) decodeInteger(blob, offset, 4);
+        encoding.dirty = false;
+        encoding.addParent(owner);
+        container.value = isArray ? decodeArray(blob, offset, container) : decodeNestedTree(blob, offset, container);
+        return container;
+    }
+
+    private SortedMap<ABITKey, ABITObject> decodeTree(byte[] blob, int offset, int length) throws ABITException {
+        return decodeTree(blob, offset, length, (ABITObject) null);
     }
 
-    private SortedMap<String, ABITObject> decodeTree(byte[] blob, int offset, int length) throws ABITException {
-        SortedMap<String, ABITObject> out = new TreeMap<>();
+    private SortedMap<ABITKey, ABITObject> decodeTree(byte[] blob, int offset, int length, ABITObject owner) throws ABITException {
+        SortedMap<ABITKey, ABITObject> out = new TreeMap<>();
 
         int idx = offset;
         int blobEnd = offset + length;
-        String lastKey = "";
+        ABITKey lastKey = null;
         while (idx < blobEnd) {
-            String key = decodeKey(blob, idx);
+            ABITKey key = decodeKey(blob, idx);
 
             if (idx != offset) {
-                int cmp = keyCompare(key.getBytes(StandardCharsets.UTF_8), lastKey.getBytes(StandardCharsets.UTF_8));
+                int cmp = key.compareTo(lastKey);
                 if (0 > cmp) {
                     throw new ABITException("Invalid key order or identical keys");
                 }
@@ -290,19 +497,19 @@ public class ABITObject {
             switch(decodeType(blob, idx)) {
                 case 0:
                     decodeNull(blob, idx);
-                    out.put(key, new ABITObject(NULL));
+                    out.put(key, NULL_OBJECT);
                     idx+= 1;
                     break;
                 case 1:
-                    out.put(key, new ABITObject(decodeBoolean(blob, idx)));
+                    out.put(key, ofBoolean(decodeBoolean(blob, idx)));
                     idx+= 1;
                     break;
                 case 2:
-                    out.put(key, new ABITObject(decodeInteger(blob, idx)));
+                    out.put(key, ofInteger(decodeInteger(blob, idx)));
                     idx+= 1 + decodeMetadataLength(blob, idx);
                     break;
                 case 3:
-                    out.put(key, new ABITObject(decodeBlob(blob, idx), true));
+                    out.put(key, new ABITObject((byte) 3, 0, decodeBlob(blob, idx)));
                     idx+= 1 + decodeMetadataLength(blob, idx) + decodeInteger(blob, idx, 4);
                     break;
                 case 4:
@@ -310,13 +517,12 @@ public class ABITObject {
                     idx+= 1 + decodeMetadataLength(blob, idx) + decodeInteger(blob, idx, 4);
                     break;
                 case 5:
-                    out.put(key, new ABITObject(decodeArray(blob, idx)));
-                    idx+= 1 + decodeMetadataLength(blob, idx) + decodeInteger(blob, idx, 4);
-                    break;
                 case 6:
-                    out.put(key, new ABITObject(decodeNestedTree(blob, idx)));
+                    out.put(key, decodeContainer(blob, idx, owner));
                     idx+= 1 + decodeMetadataLength(blob, idx) + decodeInteger(blob, idx, 4);
                     break;
+                default:
+                    throw new ABITException("Invalid type at "+idx);
             }
         }
         if(idx > blobEnd) {
@@ -325,26 +531,587 @@ public class ABITObject {
         return out;
     }
 
-    private byte[] encodeKey(String key) {
-        byte[] keyRaw = key.getBytes(StandardCharsets.UTF_8);
-        byte[] out = new byte[1 + keyRaw.length];
-        out[0] = (byte) (keyRaw.length-1);
-        System.arraycopy(keyRaw, 0, out, 1, keyRaw.length);
+    private class DecodeTask extends RecursiveTask<Object> {
+        private final byte[] blob;
+        private final int offset;
+        private final int length;
+        private final boolean isTree;
+        private final int threshold;
+
+        DecodeTask(byte[] blob, int offset, int length, boolean isTree, int threshold) {
+            this.blob = blob;
+            this.offset = offset;
+            this.length = length;
+            this.isTree = isTree;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Object compute() {
+            return decodeParallel(this.blob, this.offset, this.length, this.isTree, this.threshold);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object decodeParallel(byte[] blob, int offset, int length, boolean isTree, int threshold) throws ABITException {
+        // Walk the siblings using their lengths, forking the large containers as they're found
+        List<ABITKey> keys = isTree ? new ArrayList<>() : null;
+        List<Object> values = new ArrayList<>();
+
+        int idx = offset;
+        int blobEnd = offset + length;
+        int lastKey = -1;
+        while (idx < blobEnd) {
+            if (isTree) {
+                if (lastKey >= 0 && 0 > compareKeys(blob, idx, lastKey)) {
+                    throw new ABITException("Invalid key order or identical keys");
+                }
+                lastKey = idx;
+                keys.add(decodeKey(blob, idx));
+                idx+= 1 + decodeKeyLength(blob, idx);
+            }
+
+            int valueLength = valueLength(blob, idx);
+            if (valueLength > blobEnd - idx) {
+                throw new ABITException("Corrupt ABIT");
+            }
+            int type = decodeType(blob, idx);
+            if ((type == 5 || type == 6) && valueLength >= threshold) {
+                int nestedLength = (int)decodeInteger(blob, idx, 4);
+                int nestedOffset = idx+1+decodeMetadataLength(blob, idx);
+                DecodeTask task = new DecodeTask(blob, nestedOffset, nestedLength, type == 6, threshold);
+                task.fork();
+                values.add(task);
+            }
+            else {
+                values.add(decodeValue(blob, idx));
+            }
+            idx+= valueLength;
+        }
+
+        // Collect in document order so identical keys resolve the same way as the sequential decoder
+        for (int i = 0; i < values.size(); i++) {
+            if (values.get(i) instanceof DecodeTask task) {
+                Object nested = task.join();
+                if (task.isTree) {
+                    values.set(i, new ABITObject((SortedMap<ABITKey, ABITObject>) nested));
+                }
+                else {
+                    values.set(i, new ABITObject((List<ABITObject>) nested));
+                }
+            }
+        }
+        if (!isTree) {
+            List<ABITObject> out = new ArrayList<>(values.size());
+            for (Object value: values) {
+                out.add((ABITObject) value);
+            }
+            return out;
+        }
+        SortedMap<ABITKey, ABITObject> out = new TreeMap<>();
+        for (int i = 0; i < values.size(); i++) {
+            out.put(keys.get(i), (ABITObject) values.get(i));
+        }
         return out;
     }
 
-    private byte[] encodeNull() {
-        byte[] out = new byte[1];
-        out[0] = 0;
+    private ABITObject decodeValue(byte[] blob, int offset) throws ABITException {
+        switch(decodeType(blob, offset)) {
+            case 0:
+                decodeNull(blob, offset);
+                return NULL_OBJECT;
+            case 1:
+                return ofBoolean(decodeBoolean(blob, offset));
+            case 2:
+                return ofInteger(decodeInteger(blob, offset));
+            case 3:
+                return new ABITObject((byte) 3, 0, decodeBlob(blob, offset));
+            case 4:
+                return new ABITObject(decodeString(blob, offset));
+            case 5:
+            case 6:
+                return decodeContainer(blob, offset, null);
+            default:
+                throw new ABITException("Invalid type at "+offset);
+        }
+    }
+
+    private int valueLength(byte[] blob, int offset) throws ABITException {
+        switch(decodeType(blob, offset)) {
+            case 0:
+            case 1:
+                return 1;
+            case 2:
+                return 1 + decodeMetadataLength(blob, offset);
+            case 3:
+            case 4:
+            case 5:
+            case 6:
+                long length = decodeInteger(blob, offset, 4);
+                if (length < 0) {
+                    throw new ABITException("Corrupt ABIT");
+                }
+                return 1 + decodeMetadataLength(blob, offset) + (int) length;
+            default:
+                throw new ABITException("Invalid type at "+offset);
+        }
+    }
+
+    private static int compareKeys(byte[] blob, int offset, int otherOffset) {
+        return compareKey(blob, offset, blob, otherOffset+1, (blob[otherOffset]&0xff)+1);
+    }
+
+    private static int compareKey(byte[] blob, int offset, byte[] key, int keyOffset, int keyLength) {
+        int length = (blob[offset]&0xff)+1;
+        if (length != keyLength) {
+            return Integer.compare(length, keyLength);
+        }
+        for (int i = 0; i < length; i++) {
+            int cmp = Byte.compare(blob[offset+1+i], key[keyOffset+i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private SortedMap<ABITKey, ABITObject> decodeTree(byte[] blob, int offset, int length, ABITProjection projection) throws ABITException {
+        SortedMap<ABITKey, ABITObject> out = new TreeMap<>();
+        ABITKey[] keys = projection.keys;
+        ABITProjection[] projections = projection.projections;
+
+        int wanted = 0;
+        int idx = offset;
+        int blobEnd = offset + length;
+        int lastKey = -1;
+        while (idx < blobEnd) {
+            if (lastKey >= 0 && 0 > compareKeys(blob, idx, lastKey)) {
+                throw new ABITException("Invalid key order or identical keys");
+            }
+            lastKey = idx;
+
+            // Both the document and the projection are sorted, so they can be walked side by side
+            int cmp = 1;
+            while (wanted < keys.length && (cmp = compareKey(blob, idx, keys[wanted].bytes, 0, keys[wanted].bytes.length)) > 0) {
+                wanted++;
+            }
+            if (wanted == keys.length) {
+                // Past the last wanted key, nothing else in this tree is needed
+                idx = blobEnd;
+                break;
+            }
+
+            idx+= 1 + decodeKeyLength(blob, idx);
+            if (cmp == 0) {
+                ABITProjection nested = projections[wanted];
+                if (nested == null) {
+                    out.put(keys[wanted], decodeValue(blob, idx));
+                }
+                else if (decodeType(blob, idx) == 6) {
+                    int treeLength = (int)decodeInteger(blob, idx, 4);
+                    int treeOffset = idx+1+decodeMetadataLength(blob, idx);
+                    out.put(keys[wanted], new ABITObject(decodeTree(blob, treeOffset, treeLength, nested)));
+                }
+                else {
+                    // The path goes on below a value that can't hold keys
+                    throw new ABITException("Object is not of type tree");
+                }
+                wanted++;
+            }
+            idx+= valueLength(blob, idx);
+        }
+        if(idx > blobEnd) {
+            throw new ABITException("Corrupt ABIT");
+        }
         return out;
     }
 
-    private byte[] encodeBoolean(boolean bool) {
-        if (bool) return new byte[] {0b00010001};
-        return new byte[] {0b00000001};
+    private SortedMap<ABITKey, ABITObject> decodeTree(byte[] blob, int offset, int length, ABITSchema schema, String path) throws ABITException {
+        SortedMap<ABITKey, ABITObject> out = new TreeMap<>();
+        ABITKey[] keys = schema.keys;
+        ABITSchema[] schemas = schema.schemas;
+
+        int expected = 0;
+        int idx = offset;
+        int blobEnd = offset + length;
+        int lastKey = -1;
+        while (idx < blobEnd) {
+            if (idx + 1 + decodeKeyLength(blob, idx) >= blobEnd) {
+                throw new ABITException("Corrupt ABIT at "+idx);
+            }
+            // The entry is expected to be the next key of the schema, passing over the optional keys it lacks
+            int cmp = 1;
+            while (expected < keys.length && (cmp = compareKey(blob, idx, keys[expected].bytes, 0, keys[expected].bytes.length)) > 0) {
+                if (schema.required[expected]) {
+                    throw new ABITException("Missing key "+ABITSchema.path(path, keys[expected]));
+                }
+                expected++;
+            }
+            ABITKey key;
+            ABITSchema valueSchema;
+            if (cmp == 0) {
+                key = keys[expected];
+                valueSchema = schemas[expected];
+                expected++;
+            }
+            else if (schema.unknownKeys) {
+                key = decodeKey(blob, idx);
+                valueSchema = ABITSchema.ANY;
+            }
+            else {
+                throw new ABITException("Unexpected key "+ABITSchema.path(path, decodeKey(blob, idx))+" at "+idx);
+            }
+            if (schema.unknownKeys) {
+                // Known keys are in order by matching them, unknown ones have to be checked
+                if (lastKey >= 0 && 0 >= compareKeys(blob, idx, lastKey)) {
+                    throw new ABITException("Invalid key order or identical keys");
+                }
+                lastKey = idx;
+            }
+
+            idx+= 1 + decodeKeyLength(blob, idx);
+            out.put(key, decodeValue(blob, idx, blobEnd, valueSchema, ABITSchema.path(path, key)));
+            idx+= valueLength(blob, idx);
+        }
+        if (idx > blobEnd) {
+            throw new ABITException("Corrupt ABIT");
+        }
+        while (expected < keys.length) {
+            if (schema.required[expected]) {
+                throw new ABITException("Missing key "+ABITSchema.path(path, keys[expected]));
+            }
+            expected++;
+        }
+        return out;
     }
 
-    private byte[] encodeInteger(long integer, int type) {
+    private ABITObject decodeValue(byte[] blob, int offset, int end, ABITSchema schema, String path) throws ABITException {
+        int type = decodeType(blob, offset);
+        if (schema.type < 0) {
+            return decodeValue(blob, offset);
+        }
+        if (type != schema.type) {
+            throw ABITSchema.mismatch(schema.type, type, path, offset);
+        }
+        if (type != 5 && type != 6) {
+            return decodeValue(blob, offset);
+        }
+        int payloadLength = (int) decodeInteger(blob, offset, 4);
+        int payloadOffset = offset+1+decodeMetadataLength(blob, offset);
+        if (payloadLength < 0 || payloadLength > end - payloadOffset) {
+            throw new ABITException("Corrupt ABIT at "+offset);
+        }
+        if (type == 6) {
+            return new ABITObject(decodeTree(blob, payloadOffset, payloadLength, schema, path));
+        }
+        List<ABITObject> out = new ArrayList<>();
+        int idx = payloadOffset;
+        int payloadEnd = payloadOffset + payloadLength;
+        while (idx < payloadEnd) {
+            out.add(decodeValue(blob, idx, payloadEnd, schema.element, path+"["+out.size()+"]"));
+            idx+= valueLength(blob, idx);
+        }
+        if (idx > payloadEnd) {
+            throw new ABITException("Corrupt ABIT");
+        }
+        return new ABITObject(out);
+    }
+
+    // Sizes of the nested arrays and trees of a document in the order the encoder visits them,
+    // so the second pass can write every header up front.
+    static class EncodePlan {
+        int[] sizes = new int[16];
+        int sizeCount = 0;
+        int sizeIdx = 0;
+
+        // Where the containers with a retained encoding are copied from, looked up by the first pass
+        // before the second one moves anything. Null for containers which get encoded.
+        byte[][] sources;
+        int[] sourceOffsets;
+
+        // Set while writing a document that retains its encoding
+        boolean retain;
+        ABITObject parent;
+        int parentStart;
+
+        int reserve() {
+            if (this.sizeCount == this.sizes.length) {
+                this.sizes = Arrays.copyOf(this.sizes, this.sizes.length*2);
+            }
+            return this.sizeCount++;
+        }
+
+        void source(int slot, Encoding encoding) {
+            if (this.sources == null || this.sources.length < this.sizes.length) {
+                this.sources = this.sources == null ? new byte[this.sizes.length][] : Arrays.copyOf(this.sources, this.sizes.length);
+                this.sourceOffsets = this.sourceOffsets == null ? new int[this.sizes.length] : Arrays.copyOf(this.sourceOffsets, this.sizes.length);
+            }
+            this.sources[slot] = encoding.buffer();
+            this.sourceOffsets[slot] = encoding.position();
+        }
+    }
+
+    // Encoded payload of a tree or array. Its offset is relative to the payload of the anchor, the container
+    // it was last written into, so encoding a document again only moves the containers that get written.
+    // Only the outermost anchor holds the bytes. The old location stays valid while the container is dirty,
+    // clean containers below it are still copied from there.
+    static final class Encoding {
+        private static final ABITObject[] NO_PARENTS = new ABITObject[0];
+
+        Encoding anchor;
+        byte[] bytes;
+        int offset;
+        int length;
+        boolean dirty = true;
+        // Merkle hash, kept until the container changes
+        byte[] hash;
+        // Containers this one was written into or hashed with, they get dirty with it. They are held weakly, so a
+        // subtree shared by many documents doesn't keep the dropped ones reachable. Writers of a concurrent tree only
+        // share its lock, so the set is guarded by this encoding.
+        private Set<ABITObject> parents;
+
+        byte[] buffer() {
+            Encoding top = this;
+            while (top.anchor != null) {
+                top = top.anchor;
+            }
+            return top.bytes;
+        }
+
+        int position() {
+            int position = 0;
+            for (Encoding encoding = this; encoding != null; encoding = encoding.anchor) {
+                position+= encoding.offset;
+            }
+            return position;
+        }
+
+        synchronized void addParent(ABITObject parent) {
+            if (this.parents == null) {
+                this.parents = Collections.newSetFromMap(new WeakHashMap<ABITObject, Boolean>(2));
+            }
+            this.parents.add(parent);
+        }
+
+        synchronized void removeParent(ABITObject parent) {
+            if (this.parents != null) {
+                this.parents.remove(parent);
+            }
+        }
+
+        synchronized ABITObject[] parents() {
+            return this.parents == null ? NO_PARENTS : this.parents.toArray(NO_PARENTS);
+        }
+
+        // Make the location absolute, for containers leaving their anchor
+        void pin() {
+            byte[] bytes = this.buffer();
+            this.offset = this.position();
+            this.bytes = bytes;
+            this.anchor = null;
+        }
+    }
+
+    Encoding encoding() {
+        if (this.encoding == null) {
+            this.encoding = new Encoding();
+        }
+        return this.encoding;
+    }
+
+    boolean isEncoded() {
+        return this.encoding != null && !this.encoding.dirty;
+    }
+
+    /**
+     * Mark this container as changed, along with every container holding it.
+     */
+    void changed() {
+        Encoding encoding = this.encoding;
+        if (encoding == null || (encoding.dirty && encoding.hash == null)) {
+            // Containers above a dirty one without a hash are in the same state already
+            return;
+        }
+        encoding.dirty = true;
+        encoding.hash = null;
+        for (ABITObject parent: encoding.parents()) {
+            Encoding parentEncoding = parent.encoding;
+            if (parentEncoding == null || (parentEncoding.dirty && parentEncoding.hash == null)) {
+                continue;
+            }
+            // Containers that lost this one since it was written into or hashed with them are dropped here
+            // rather than when they lose it, so removing entries never scans the container
+            if (parent.holds(this)) {
+                parent.changed();
+            }
+            else {
+                encoding.removeParent(parent);
+            }
+        }
+    }
+
+    /**
+     * Called by containers losing an entry, the entry's encoding can't be found through this container any longer.
+     */
+    void removed(ABITObject entry) {
+        if (entry.encoding != null && this.encoding != null && entry.encoding.anchor == this.encoding) {
+            entry.encoding.pin();
+        }
+    }
+
+    private boolean holds(ABITObject entry) {
+        if (this.type == 6) {
+            for (ABITObject value: this.tree().values()) {
+                if (value == entry) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        List<ABITObject> array = this.array();
+        for (int i = 0; i < array.size(); i++) {
+            if (array.get(i) == entry) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take the lock of a concurrent tree, shared by writers or exclusive for reading it as a whole.
+     * @return the lock to release, or null if this object isn't part of a concurrent tree
+     */
+    Lock lock(boolean exclusive) {
+        if (this.lock == null) {
+            return null;
+        }
+        Lock lock = exclusive ? this.lock.writeLock() : this.lock.readLock();
+        lock.lock();
+        return lock;
+    }
+
+    static void unlock(Lock lock) {
+        if (lock != null) {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Make an array or tree put into this concurrent one use concurrent collections and this lock, along with everything inside it.
+     * Threads adopting the same object at once convert it once, the others wait for it to be converted.
+     */
+    void adopt(ABITObject obj) {
+        ReentrantReadWriteLock lock = this.lock;
+        if (lock == null || (obj.type != 5 && obj.type != 6) || obj.lock == lock) {
+            return;
+        }
+        synchronized (obj) {
+            if (obj.lock == lock) {
+                return;
+            }
+            if (obj.lock != null) {
+                throw new IllegalStateException("Object is already part of another concurrent tree");
+            }
+            if (obj.type == 6) {
+                obj.value = new ConcurrentSkipListMap<ABITKey, ABITObject>(obj.tree());
+                for (ABITObject entry: obj.tree().values()) {
+                    this.adopt(entry);
+                }
+            }
+            else {
+                obj.value = new ABITConcurrentArray(obj.array());
+                for (int i = 0; i < obj.array().size(); i++) {
+                    this.adopt(obj.array().get(i));
+                }
+            }
+            obj.lock = lock;
+        }
+    }
+
+    void putEntry(ABITKey key, ABITObject object) {
+        Lock lock = this.lock(false);
+        try {
+            this.adopt(object);
+            ABITObject previous = this.tree().put(key, object);
+            if (previous != null && previous != object) {
+                this.removed(previous);
+            }
+            this.changed();
+        }
+        finally {
+            unlock(lock);
+        }
+    }
+
+    void removeEntry(ABITKey key) {
+        Lock lock = this.lock(false);
+        try {
+            ABITObject previous = this.tree().remove(key);
+            if (previous != null) {
+                this.removed(previous);
+                this.changed();
+            }
+        }
+        finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Insert an element into this array, at its end when index is -1.
+     */
+    void addElement(int index, ABITObject element) {
+        Lock lock = this.lock(false);
+        try {
+            this.adopt(element);
+            if (index < 0) {
+                this.array().add(element);
+            }
+            else {
+                this.array().add(index, element);
+            }
+            this.changed();
+        }
+        finally {
+            unlock(lock);
+        }
+    }
+
+    void removeElement(int index) {
+        Lock lock = this.lock(false);
+        try {
+            this.removed(this.array().remove(index));
+            this.changed();
+        }
+        finally {
+            unlock(lock);
+        }
+    }
+
+    void clearElements() {
+        Lock lock = this.lock(false);
+        try {
+            List<ABITObject> array = this.array();
+            ABITObject[] elements;
+            if (array instanceof ABITConcurrentArray concurrent) {
+                // Appends racing with the clear either land before and are removed, or after and stay
+                elements = concurrent.removeAll();
+            }
+            else {
+                elements = array.toArray(new ABITObject[0]);
+                array.clear();
+            }
+            for (ABITObject element: elements) {
+                this.removed(element);
+            }
+            this.changed();
+        }
+        finally {
+            unlock(lock);
+        }
+    }
+
+    static int integerSize(long integer) {
         // Calculate the number of bytes needed
         int metaDataLength = 8; // maximum is 8 bytes for a long
         if (integer != 0) {
@@ -364,133 +1131,231 @@ public class ABITObject {
         } else {
             metaDataLength = 1;
         }
+        return metaDataLength;
+    }
 
-        // Create the byte array of the appropriate size
-        byte[] out = new byte[metaDataLength+1];
-        for (int i = 0; i < metaDataLength; i++) {
-            out[1+i] = (byte) ((integer >> (i * 8))&0xff);
+    static long utf8Length(String str) {
+        // Same result as str.getBytes(StandardCharsets.UTF_8).length without encoding the string,
+        // unpaired surrogates are replaced by a single '?' like the JDK encoder does.
+        long length = 0;
+        int strLength = str.length();
+        for (int i = 0; i < strLength; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                length+= 1;
+            }
+            else if (c < 0x800) {
+                length+= 2;
+            }
+            else if (Character.isHighSurrogate(c) && i+1 < strLength && Character.isLowSurrogate(str.charAt(i+1))) {
+                length+= 4;
+                i++;
+            }
+            else if (Character.isSurrogate(c)) {
+                length+= 1;
+            }
+            else {
+                length+= 3;
+            }
         }
-        
-        out[0] = (byte) ((type & 0x0f) | ((metaDataLength-1) << 4));
-
-        return out;
+        return length;
     }
 
-    private byte[] encodeInteger(long integer) {
-        return encodeInteger(integer, 2);
+    static void writeUtf8(String str, ByteBuffer out) {
+        int strLength = str.length();
+        for (int i = 0; i < strLength; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            }
+            else if (c < 0x800) {
+                out.put((byte) (0xc0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            }
+            else if (Character.isHighSurrogate(c) && i+1 < strLength && Character.isLowSurrogate(str.charAt(i+1))) {
+                int cp = Character.toCodePoint(c, str.charAt(++i));
+                out.put((byte) (0xf0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (cp & 0x3f)));
+            }
+            else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            }
+            else {
+                out.put((byte) (0xe0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
     }
 
-    private byte[] encodeBlob(byte[] blob, int type) {
-        byte[] blobLength = encodeInteger(blob.length, type);
-        byte[] out = new byte[blobLength.length + blob.length];
-        System.arraycopy(blobLength, 0, out, 0, blobLength.length);
-        System.arraycopy(blob, 0, out, blobLength.length, blob.length);
-        return out;
+    static void writeInteger(long integer, int type, ByteBuffer out) {
+        int metaDataLength = integerSize(integer);
+        out.put((byte) ((type & 0x0f) | ((metaDataLength-1) << 4)));
+        for (int i = 0; i < metaDataLength; i++) {
+            out.put((byte) ((integer >> (i * 8))&0xff));
+        }
     }
 
-    private byte[] encodeBlob(byte[] blob) {
-        return encodeBlob(blob, 3);
+    static long checkedLength(long length) throws ABITException {
+        if (length > Integer.MAX_VALUE) {
+            throw new ABITException("Incompatible object, it's too long to encode");
+        }
+        return length;
     }
 
-    private byte[] encodeString(String str) {
-        return encodeBlob(str.getBytes(StandardCharsets.UTF_8), 4);
+    static long sizeValue(ABITObject obj, EncodePlan plan) throws ABITException {
+        if (obj.isEncoded()) {
+            int slot = plan.reserve();
+            plan.sizes[slot] = obj.encoding.length;
+            plan.source(slot, obj.encoding);
+            return 1 + integerSize(obj.encoding.length) + obj.encoding.length;
+        }
+        switch (obj.type) {
+            case 0:
+            case 1:
+                return 1;
+            case 2:
+                return 1 + integerSize(obj.intValue);
+            case 3:
+                return 1 + integerSize(obj.blob().length) + obj.blob().length;
+            case 4:
+                long stringLength = checkedLength(obj.utf8String().encodedLength());
+                return 1 + integerSize(stringLength) + stringLength;
+            case 5:
+                int arraySlot = plan.reserve();
+                long arrayLength = checkedLength(sizeArray(obj.array(), plan));
+                plan.sizes[arraySlot] = (int) arrayLength;
+                return 1 + integerSize(arrayLength) + arrayLength;
+            case 6:
+                int treeSlot = plan.reserve();
+                long treeLength = checkedLength(sizeTree(obj.tree(), plan));
+                plan.sizes[treeSlot] = (int) treeLength;
+                return 1 + integerSize(treeLength) + treeLength;
+            default:
+                throw new ABITException("Invalid ABITObject");
+        }
     }
 
-    private byte[] encodeArray(List<ABITObject> array) throws IOException {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-
-        for(int i = 0; i < array.size(); i++) {
-            ABITObject obj = array.get(i);
-            switch (obj.type) {
-                case 0:
-                    os.write(encodeNull());
-                    break;
-                case 1:
-                    os.write(encodeBoolean(obj.booleanValue));
-                    break;
-                case 2:
-                    os.write(encodeInteger(obj.intValue));
-                    break;
-                case 3:
-                    os.write(encodeBlob(obj.blob));
-                    break;
-                case 4:
-                    os.write(encodeString(obj.string));
-                    break;
-                case 5:
-                    os.write(encodeArray(obj.array));
-                    break;
-                case 6:
-                    os.write(encodeTree(obj.tree, true));
-                    break;
-            }
+    private static long sizeArray(List<ABITObject> array, EncodePlan plan) throws ABITException {
+        long length = 0;
+        for (int i = 0; i < array.size(); i++) {
+            length+= sizeValue(array.get(i), plan);
         }
-
-        byte[] blob = os.toByteArray();
-        byte[] arrayType = encodeInteger(blob.length, 5);
-        byte[] out = new byte[arrayType.length + blob.length];
-        System.arraycopy(arrayType, 0, out, 0, arrayType.length);
-        System.arraycopy(blob, 0, out, arrayType.length, blob.length);
-        return out;
+        return length;
     }
 
-    private byte[] encodeTree(SortedMap<String, ABITObject> tree, boolean nested) throws IOException {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        
-        Collection<String> keySet = tree.keySet();
-        //List<String> keys = new ArrayList<>();
-        List<byte[]> keys = new ArrayList<>();
-        for (String str: keySet) {
-            keys.add(str.getBytes(StandardCharsets.UTF_8));
+    private static long sizeTree(SortedMap<ABITKey, ABITObject> tree, EncodePlan plan) throws ABITException {
+        long length = 0;
+        for (Map.Entry<ABITKey, ABITObject> entry: tree.entrySet()) {
+            length+= 1 + entry.getKey().bytes.length + sizeValue(entry.getValue(), plan);
         }
+        return length;
+    }
 
-        // Sort using a custom comparator
-        keys.sort(new KeysComparator());
+    static void writeValue(ABITObject obj, ByteBuffer out, EncodePlan plan) {
+        switch (obj.type) {
+            case 0:
+                out.put((byte) 0);
+                break;
+            case 1:
+                out.put(obj.booleanValue() ? (byte) 0b00010001 : (byte) 0b00000001);
+                break;
+            case 2:
+                writeInteger(obj.intValue, 2, out);
+                break;
+            case 3:
+                writeInteger(obj.blob().length, 3, out);
+                out.put(obj.blob());
+                break;
+            case 4:
+                writeInteger(obj.utf8String().encodedLength(), 4, out);
+                obj.utf8String().write(out);
+                break;
+            case 5:
+            case 6:
+                writeContainer(obj, out, plan);
+                break;
+        }
+    }
 
-        for(int i = 0; i < keys.size(); i++) {
-            String key = new String(keys.get(i), StandardCharsets.UTF_8);
-            ABITObject obj = tree.get(key);
-            
-            os.write(encodeKey(key));
-            switch (obj.type) {
-                case 0:
-                    os.write(encodeNull());
-                    break;
-                case 1:
-                    os.write(encodeBoolean(obj.booleanValue));
-                    break;
-                case 2:
-                    os.write(encodeInteger(obj.intValue));
-                    break;
-                case 3:
-                    os.write(encodeBlob(obj.blob));
-                    break;
-                case 4:
-                    os.write(encodeString(obj.string));
-                    break;
-                case 5:
-                    os.write(encodeArray(obj.array));
-                    break;
-                case 6:
-                    os.write(encodeTree(obj.tree, true));
-                    break;
+    private static void writeContainer(ABITObject obj, ByteBuffer out, EncodePlan plan) {
+        int slot = plan.sizeIdx++;
+        int length = plan.sizes[slot];
+        writeInteger(length, obj.type, out);
+        int start = out.position();
+        if (plan.sources != null && slot < plan.sources.length && plan.sources[slot] != null) {
+            out.put(plan.sources[slot], plan.sourceOffsets[slot], length);
+        }
+        else {
+            ABITObject parent = plan.parent;
+            int parentStart = plan.parentStart;
+            plan.parent = obj;
+            plan.parentStart = start;
+            if (plan.retain) {
+                // The entries anchor to this container while it's written
+                obj.encoding();
+            }
+            if (obj.type == 5) {
+                writeArray(obj.array(), out, plan);
+            }
+            else {
+                writeTree(obj.tree(), out, plan);
             }
+            plan.parent = parent;
+            plan.parentStart = parentStart;
         }
+        if (plan.retain) {
+            Encoding encoding = obj.encoding();
+            encoding.anchor = plan.parent.encoding;
+            encoding.bytes = null;
+            encoding.offset = start - plan.parentStart;
+            encoding.length = length;
+            encoding.dirty = false;
+            encoding.addParent(plan.parent);
+        }
+    }
 
-        if (nested) {
-            byte[] blob = os.toByteArray();
-            byte[] treeType = encodeInteger(blob.length, 6);
-            byte[] out = new byte[treeType.length + blob.length];
-            System.arraycopy(treeType, 0, out, 0, treeType.length);
-            System.arraycopy(blob, 0, out, treeType.length, blob.length);
-            return out;
+    /**
+     * Encode this tree into a buffer of its own unless its encoding is still valid, keeping where every nested
+     * container ends up.
+     */
+    private Encoding encodeRetained() throws ABITException {
+        if (this.isEncoded()) {
+            return this.encoding;
         }
-        else {
-            return os.toByteArray();
+        EncodePlan plan = new EncodePlan();
+        byte[] out = new byte[(int) checkedLength(sizeTree(this.tree(), plan))];
+        Encoding encoding = this.encoding();
+        plan.retain = true;
+        plan.parent = this;
+        plan.parentStart = 0;
+        writeTree(this.tree(), ByteBuffer.wrap(out), plan);
+        encoding.anchor = null;
+        encoding.bytes = out;
+        encoding.offset = 0;
+        encoding.length = out.length;
+        encoding.dirty = false;
+        return encoding;
+    }
+
+    private static void writeArray(List<ABITObject> array, ByteBuffer out, EncodePlan plan) {
+        for (int i = 0; i < array.size(); i++) {
+            writeValue(array.get(i), out, plan);
         }
     }
 
-    private static int keyCompare(byte[] a, byte[] b) {
+    private static void writeTree(SortedMap<ABITKey, ABITObject> tree, ByteBuffer out, EncodePlan plan) {
+        for (Map.Entry<ABITKey, ABITObject> entry: tree.entrySet()) {
+            byte[] key = entry.getKey().bytes;
+            out.put((byte) (key.length-1));
+            out.put(key);
+            writeValue(entry.getValue(), out, plan);
+        }
+    }
+
+    static int keyCompare(byte[] a, byte[] b) {
         // Step 1: Compare by length
         if (a.length != b.length) {
             return Integer.compare(a.length, b.length);
@@ -508,21 +1373,132 @@ public class ABITObject {
         return 0;
     }
 
-    // Custom comparator for sorting keys
-    private static class KeysComparator implements Comparator<byte[]> {
-        @Override
-        public int compare(byte[] a, byte[] b) {
-            return keyCompare(a, b);
-        }
-    }
-
     /**
      * Convert this ABITObject to its binary form.
      * @return byte array containing the abit object.
      * @throws IOException
      */
     public byte[] toByteArray() throws IOException {
-        return encodeTree(this.tree, false);
+        Lock lock = this.lock(true);
+        try {
+            if (this.retainEncoding) {
+                this.encodeRetained();
+            }
+            if (this.isEncoded()) {
+                return Arrays.copyOfRange(this.encoding.buffer(), this.encoding.position(), this.encoding.position() + this.encoding.length);
+            }
+            EncodePlan plan = new EncodePlan();
+            byte[] out = new byte[(int) checkedLength(sizeTree(this.tree(), plan))];
+            writeTree(this.tree(), ByteBuffer.wrap(out), plan);
+            return out;
+        }
+        finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Get the number of bytes toByteArray() and writeTo() produce for this ABITObject.
+     * @return size of the binary form in bytes.
+     * @throws ABITException if the object is too big to be encoded
+     */
+    public int encodedSize() throws ABITException {
+        Lock lock = this.lock(true);
+        try {
+            if (this.isEncoded()) {
+                return this.encoding.length;
+            }
+            return (int) checkedLength(sizeTree(this.tree(), new EncodePlan()));
+        }
+        finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Write the binary form of this ABITObject into a buffer, starting at its position.
+     * @param buffer buffer to write into, it needs at least encodedSize() bytes remaining.
+     * @return number of bytes written.
+     * @throws ABITException if the object is too big to be encoded
+     * @throws java.nio.BufferOverflowException if the buffer doesn't have enough space left
+     */
+    public int writeTo(ByteBuffer buffer) throws ABITException {
+        Lock lock = this.lock(true);
+        try {
+            if (this.retainEncoding) {
+                this.encodeRetained();
+            }
+            if (this.isEncoded()) {
+                if (buffer.remaining() < this.encoding.length) {
+                    throw new BufferOverflowException();
+                }
+                buffer.put(this.encoding.buffer(), this.encoding.position(), this.encoding.length);
+                return this.encoding.length;
+            }
+            EncodePlan plan = new EncodePlan();
+            int length = (int) checkedLength(sizeTree(this.tree(), plan));
+            if (buffer.remaining() < length) {
+                throw new BufferOverflowException();
+            }
+            writeTree(this.tree(), buffer, plan);
+            return length;
+        }
+        finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Get the Merkle hash of this ABITObject, the same as ABITHash.hash() of its binary form.
+     * See setCacheHashes() to keep the hashes of the containers inside for the next call.
+     * @return 32 byte hash
+     * @throws ABITException if the object is too big to be encoded
+     */
+    public byte[] hash() throws ABITException {
+        Lock lock = this.lock(true);
+        try {
+            return ABITHash.hash(this, this.cacheHashes).clone();
+        }
+        finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Get the content address of this ABITObject, its hash as a sha2-256 multihash in base58btc multibase.
+     * @return the content address
+     * @throws ABITException if the object is too big to be encoded
+     */
+    public String contentAddress() throws ABITException {
+        Lock lock = this.lock(true);
+        try {
+            return ABITHash.toContentAddress(ABITHash.hash(this, this.cacheHashes));
+        }
+        finally {
+            unlock(lock);
+        }
+    }
+
+    /**
+     * Keep the encoding of this tree and of every array and tree inside it after toByteArray() or writeTo(),
+     * encoding it again then only encodes the arrays and trees which changed since, along with the ones holding them.
+     * Everything else is copied from the previous encoding. Blobs returned by getBlob() must not be changed in place
+     * while the encoding is retained.
+     * @param retainEncoding whether to keep the encoding
+     */
+    public void setRetainEncoding(boolean retainEncoding) {
+        this.retainEncoding = retainEncoding;
+    }
+
+    /**
+     * Keep the hashes of this tree and of every array and tree inside it after hash() or contentAddress(), until they
+     * change. Hashing again after a change then only hashes the changed containers and the ones holding them.
+     * Hashing with cached hashes changes the containers, a tree shared between threads has to be concurrent or
+     * hashed by one thread at a time. Without caching, hashing leaves the tree untouched.
+     * @param cacheHashes whether to keep the hashes
+     */
+    public void setCacheHashes(boolean cacheHashes) {
+        this.cacheHashes = cacheHashes;
     }
 
     /**
@@ -533,9 +1509,9 @@ public class ABITObject {
      * @throws IllegalArgumentException if the key is incompatible
      */
     public void put(String key, NULL_t object) throws IllegalArgumentException {
-        isCompatibleKey(key);
+        ABITKey abitKey = ABITKey.of(key);
         isCompatibleNull(object);
-        this.tree.put(key, new ABITObject(NULL));
+        this.putEntry(abitKey, NULL_OBJECT);
     }
 
     /**
@@ -546,9 +1522,9 @@ public class ABITObject {
      * @throws IllegalArgumentException if the key is incompatible
      */
     public void put(String key, boolean object) throws IllegalArgumentException  {
-        isCompatibleKey(key);
+        ABITKey abitKey = ABITKey.of(key);
         isCompatibleBoolean(object);
-        this.tree.put(key, new ABITObject(object));
+        this.putEntry(abitKey, ofBoolean(object));
     }
 
     /**
@@ -559,9 +1535,9 @@ public class ABITObject {
      * @throws IllegalArgumentException if the key is incompatible
      */
     public void put(String key, long object) throws IllegalArgumentException  {
-        isCompatibleKey(key);
+        ABITKey abitKey = ABITKey.of(key);
         isCompatibleInteger(object);
-        this.tree.put(key, new ABITObject(object));
+        this.putEntry(abitKey, ofInteger(object));
     }
 
     /**
@@ -572,9 +1548,9 @@ public class ABITObject {
      * @throws IllegalArgumentException if the key is incompatible
      */
     public void put(String key, byte[] object) throws IllegalArgumentException  {
-        isCompatibleKey(key);
+        ABITKey abitKey = ABITKey.of(key);
         isCompatibleBlob(object);
-        this.tree.put(key, new ABITObject(object, true));
+        this.putEntry(abitKey, ofBlob(object));
     }
 
     /**
@@ -585,9 +1561,21 @@ public class ABITObject {
      * @throws IllegalArgumentException if the key is incompatible
      */
     public void put(String key, String object) throws ABITException, IllegalArgumentException  {
-        isCompatibleKey(key);
+        ABITKey abitKey = ABITKey.of(key);
         isCompatibleString(object);
-        this.tree.put(key, new ABITObject(object));
+        this.putEntry(abitKey, new ABITObject(object));
+    }
+
+    /**
+     * Associates the specified object with the specified key in this map. If the map previously contained a mapping for the key, the old value is replaced by the specified value.
+     * A string taken from another document keeps its UTF-8 encoding and is copied without being transcoded.
+     * @param key key with which the specified value is to be associated
+     * @param object object to be associated with the specified key
+     * @throws IllegalArgumentException if the key is incompatible
+     */
+    public void put(String key, ABITString object) throws IllegalArgumentException  {
+        ABITKey abitKey = ABITKey.of(key);
+        this.putEntry(abitKey, new ABITObject(object));
     }
 
     /**
@@ -597,8 +1585,8 @@ public class ABITObject {
      * @throws IllegalArgumentException if the key is incompatible
      */
     public void put(String key, ABITArray object) throws IllegalArgumentException  {
-        isCompatibleKey(key);
-        this.tree.put(key, new ABITObject(object.array));
+        ABITKey abitKey = ABITKey.of(key);
+        this.putEntry(abitKey, object.node);
     }
 
     /**
@@ -608,8 +1596,8 @@ public class ABITObject {
      * @throws IllegalArgumentException if the key is incompatible
      */
     public void put(String key, ABITObject object) throws IllegalArgumentException  {
-        isCompatibleKey(key);
-        this.tree.put(key, object);
+        ABITKey abitKey = ABITKey.of(key);
+        this.putEntry(abitKey, object);
     }
 
     @Override
@@ -631,15 +1619,15 @@ public class ABITObject {
             case 0:
                 return NULL;
             case 1:
-                return this.booleanValue;
+                return this.booleanValue();
             case 2:
                 return this.intValue;
             case 3:
-                return this.blob;
+                return this.blob();
             case 4:
-                return this.string;
+                return this.string();
             case 5:
-                return new ABITArray(this.array);
+                return new ABITArray(this);
             case 6:
                 return this;
             default:
@@ -668,19 +1656,7 @@ public class ABITObject {
     static void isCompatibleString(String str) throws ABITException {
         // string supports up to 4 bytes of int describing length (2s compliment signed)
         // due to supporting all UTF-8 characters, it's not guaranteed that a string when encoded is short enough to fit.
-        long totalLength = 0;
-        long charLeft = str.length();
-        final long maxSegment = Integer.MAX_VALUE / 5; // as UTF-8 expands up to 4 bytes per character, so we divide by 5 just to be sure
-        while(charLeft > 0) {
-            long idx = str.length()-charLeft;
-            long idx_end = idx+maxSegment;
-            if ((long) str.length() < idx_end) {
-                idx_end = (long) str.length();
-            }
-            totalLength+= str.substring((int)idx, (int)idx_end).getBytes(StandardCharsets.UTF_8).length;
-            charLeft-= idx_end-idx;
-        }
-        if (totalLength > Integer.MAX_VALUE) {
+        if (utf8Length(str) > Integer.MAX_VALUE) {
             throw new ABITException("Incompatible string, it's too long");
         }
     }
@@ -691,45 +1667,33 @@ public class ABITObject {
         // throw new ABITException("Incompatible blob, this should literally not happen");
     }
 
-    static void isCompatibleKey(String key) throws IllegalArgumentException {
-        long keyLength = key.getBytes(StandardCharsets.UTF_8).length;
-        if (keyLength > 256 || keyLength < 1) {
-            throw new IllegalArgumentException("Incompatible key, must be between 1 - 256 bytes when encoded with UTF-8");
-        }
-    }
-
     private JSONArray getJsonArray(int base58CutOff) {
         JSONArray out = new JSONArray();
 
-        for(int i = 0; i < this.array.size(); i++) {
-            ABITObject obj = this.array.get(i);
+        for(int i = 0; i < this.array().size(); i++) {
+            ABITObject obj = this.array().get(i);
             
             switch (obj.type) {
                 case 0:
                     out.put(JSONObject.NULL);
                     break;
                 case 1:
-                    out.put(obj.booleanValue);
+                    out.put(obj.booleanValue());
                     break;
                 case 2:
                     out.put(obj.intValue);
                     break;
                 case 3:
-                    if (base58CutOff < obj.blob.length) {
-                        out.put(Multibase.encode(Multibase.Base.Base64Url, obj.blob));
-                    }
-                    else {
-                        out.put(Multibase.encode(Multibase.Base.Base58BTC, obj.blob));
-                    }
+                    out.put(ABITMultibase.encode(obj.blob(), base58CutOff));
                     break;
                 case 4:
-                    out.put(obj.string);
+                    out.put(obj.string());
                     break;
                 case 5:
                     out.put(obj.getJsonArray(base58CutOff));
                     break;
                 case 6:
-                    out.put(obj.getJson(base58CutOff));
+                    out.put(obj.toJson(base58CutOff));
                     break;
             }
         }
@@ -738,48 +1702,43 @@ public class ABITObject {
     }
 
     public JSONObject getJson(int base58CutOff) {
-        JSONObject out = new JSONObject();
-        
-        Collection<String> keySet = this.tree.keySet();
-        //List<String> keys = new ArrayList<>();
-        List<byte[]> keys = new ArrayList<>();
-        for (String str: keySet) {
-            keys.add(str.getBytes(StandardCharsets.UTF_8));
+        Lock lock = this.lock(true);
+        try {
+            return this.toJson(base58CutOff);
         }
+        finally {
+            unlock(lock);
+        }
+    }
 
-        // Sort using a custom comparator
-        keys.sort(new KeysComparator());
-
-        for(int i = 0; i < keys.size(); i++) {
-            String key = new String(keys.get(i), StandardCharsets.UTF_8);
-            ABITObject obj = tree.get(key);
+    private JSONObject toJson(int base58CutOff) {
+        JSONObject out = new JSONObject();
+        
+        for (Map.Entry<ABITKey, ABITObject> entry: this.tree().entrySet()) {
+            String key = entry.getKey().toString();
+            ABITObject obj = entry.getValue();
             
             switch (obj.type) {
                 case 0:
                     out.put(key, JSONObject.NULL);
                     break;
                 case 1:
-                    out.put(key, obj.booleanValue);
+                    out.put(key, obj.booleanValue());
                     break;
                 case 2:
                     out.put(key, obj.intValue);
                     break;
                 case 3:
-                    if (base58CutOff < obj.blob.length) {
-                        out.put(key, Multibase.encode(Multibase.Base.Base64Url, obj.blob));
-                    }
-                    else {
-                        out.put(key, Multibase.encode(Multibase.Base.Base58BTC, obj.blob));
-                    }
+                    out.put(key, ABITMultibase.encode(obj.blob(), base58CutOff));
                     break;
                 case 4:
-                    out.put(key, obj.string);
+                    out.put(key, obj.string());
                     break;
                 case 5:
                     out.put(key, obj.getJsonArray(base58CutOff));
                     break;
                 case 6:
-                    out.put(key, obj.getJson(base58CutOff));
+                    out.put(key, obj.toJson(base58CutOff));
                     break;
             }
         }
@@ -799,7 +1758,7 @@ public class ABITObject {
      */
     public String getType(String key) throws ABITException {
 
-        int obj = this.tree.get(key).type;
+        int obj = this.tree().get(ABITKey.probe(key)).type;
         switch (obj) {
             case 0:
                 return "null";
@@ -827,7 +1786,7 @@ public class ABITObject {
      * @throws ABITException
      */
     public ABITObject.NULL_t getNull(String key) throws ABITException {
-        ABITObject obj = this.tree.get(key);
+        ABITObject obj = this.tree().get(ABITKey.probe(key));
         if(obj.type == 0) {
             return ABITObject.NULL;
         }
@@ -843,9 +1802,9 @@ public class ABITObject {
      * @throws ABITException
      */
     public boolean getBoolean(String key) throws ABITException {
-        ABITObject obj = this.tree.get(key);
+        ABITObject obj = this.tree().get(ABITKey.probe(key));
         if(obj.type == 1) {
-            return obj.booleanValue;
+            return obj.booleanValue();
         }
         else {
             throw new ABITException("Object is not of type boolean");
@@ -859,7 +1818,7 @@ public class ABITObject {
      * @throws ABITException
      */
     public long getInteger(String key) throws ABITException {
-        ABITObject obj = this.tree.get(key);
+        ABITObject obj = this.tree().get(ABITKey.probe(key));
         if(obj.type == 2) {
             return obj.intValue;
         }
@@ -875,9 +1834,9 @@ public class ABITObject {
      * @throws ABITException
      */
     public byte[] getBlob(String key) throws ABITException {
-        ABITObject obj = this.tree.get(key);
+        ABITObject obj = this.tree().get(ABITKey.probe(key));
         if(obj.type == 3) {
-            return obj.blob;
+            return obj.blob();
         }
         else {
             throw new ABITException("Object is not of type blob");
@@ -891,9 +1850,25 @@ public class ABITObject {
      * @throws ABITException
      */
     public String getString(String key) throws ABITException {
-        ABITObject obj = this.tree.get(key);
+        ABITObject obj = this.tree().get(ABITKey.probe(key));
+        if(obj.type == 4) {
+            return obj.string();
+        }
+        else {
+            throw new ABITException("Object is not of type string");
+        }
+    }
+
+    /**
+     * Get object associated with key from tree without decoding it, see ABITString.
+     * @param key
+     * @return string holding its UTF-8 encoding
+     * @throws ABITException
+     */
+    public ABITString getStringUtf8(String key) throws ABITException {
+        ABITObject obj = this.tree().get(ABITKey.probe(key));
         if(obj.type == 4) {
-            return obj.string;
+            return obj.utf8String();
         }
         else {
             throw new ABITException("Object is not of type string");
@@ -907,9 +1882,9 @@ public class ABITObject {
      * @throws ABITException
      */
     public ABITArray getArray(String key) throws ABITException {
-        ABITObject obj = this.tree.get(key);
+        ABITObject obj = this.tree().get(ABITKey.probe(key));
         if(obj.type == 5) {
-            return new ABITArray(obj.array);
+            return new ABITArray(obj);
         }
         else {
             throw new ABITException("Object is not of type array");
@@ -923,7 +1898,7 @@ public class ABITObject {
      * @throws ABITException
      */
     public ABITObject getTree(String key) throws ABITException {
-        ABITObject obj = this.tree.get(key);
+        ABITObject obj = this.tree().get(ABITKey.probe(key));
         if(obj.type == 6) {
             return obj;
         }
@@ -0,0 +1,328 @@
+package org.deepslate.abit;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Changes made straight to the bytes of an encoded abit document, without decoding it.
+// Every change splices the bytes of one entry and rewrites the length headers of the trees holding it,
+// growing or shrinking a header when the new length needs a different number of bytes.
+
+public class ABITPatch {
+
+    private ByteBuffer buffer;
+    private int start;
+    private int end;
+    // Whether buffer is an array made by this patch, which can be changed in place
+    private boolean owned = false;
+
+    // Offsets of the headers of the nested trees along the current path
+    private int[] headers = new int[8];
+
+    /**
+     * Initialize an ABITPatch over an abit document inside a byte array, the array itself is never changed.
+     * @param document the byte array containing the abit document.
+     */
+    public ABITPatch(byte[] document) {
+        this.buffer = ByteBuffer.wrap(document);
+        this.start = 0;
+        this.end = document.length;
+    }
+
+    /**
+     * Initialize an ABITPatch over the remaining bytes of a buffer, the buffer itself is never changed.
+     * @param document the buffer containing the abit document.
+     */
+    public ABITPatch(ByteBuffer document) {
+        this.buffer = document;
+        this.start = document.position();
+        this.end = document.limit();
+    }
+
+    /**
+     * Get the patched document.
+     * @return byte array containing the abit document.
+     */
+    public byte[] toByteArray() {
+        byte[] out = new byte[this.end - this.start];
+        this.buffer.get(this.start, out);
+        return out;
+    }
+
+    /**
+     * Get the number of bytes of the patched document.
+     * @return size of the document in bytes.
+     */
+    public int encodedSize() {
+        return this.end - this.start;
+    }
+
+    /**
+     * Write the patched document into a buffer, starting at its position.
+     * @param buffer buffer to write into, it needs at least encodedSize() bytes remaining.
+     * @return number of bytes written.
+     * @throws java.nio.BufferOverflowException if the buffer doesn't have enough space left
+     */
+    public int writeTo(ByteBuffer buffer) {
+        int length = this.end - this.start;
+        if (buffer.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        buffer.put(this.buffer.slice(this.start, length));
+        return length;
+    }
+
+    /**
+     * Associate an object with the key at the end of a key path, replacing the value already there.
+     * Every key before the last one needs to lead to a nested tree.
+     * @param path keys leading to the entry
+     * @param object object to be associated with the last key
+     * @return this patch
+     * @throws ABITException if the path doesn't lead to a tree or the document is corrupt
+     * @throws IllegalArgumentException if the path is empty or a key is incompatible
+     */
+    public ABITPatch put(String[] path, ABITObject.NULL_t object) throws ABITException, IllegalArgumentException {
+        ABITObject.isCompatibleNull(object);
+        return this.putEntry(path, ABITObject.NULL_OBJECT);
+    }
+
+    /**
+     * Associate an object with the key at the end of a key path, replacing the value already there.
+     * Every key before the last one needs to lead to a nested tree.
+     * @param path keys leading to the entry
+     * @param object object to be associated with the last key
+     * @return this patch
+     * @throws ABITException if the path doesn't lead to a tree or the document is corrupt
+     * @throws IllegalArgumentException if the path is empty or a key is incompatible
+     */
+    public ABITPatch put(String[] path, boolean object) throws ABITException, IllegalArgumentException {
+        ABITObject.isCompatibleBoolean(object);
+        return this.putEntry(path, ABITObject.ofBoolean(object));
+    }
+
+    /**
+     * Associate an object with the key at the end of a key path, replacing the value already there.
+     * Every key before the last one needs to lead to a nested tree.
+     * @param path keys leading to the entry
+     * @param object object to be associated with the last key
+     * @return this patch
+     * @throws ABITException if the path doesn't lead to a tree or the document is corrupt
+     * @throws IllegalArgumentException if the path is empty or a key is incompatible
+     */
+    public ABITPatch put(String[] path, long object) throws ABITException, IllegalArgumentException {
+        ABITObject.isCompatibleInteger(object);
+        return this.putEntry(path, ABITObject.ofInteger(object));
+    }
+
+    /**
+     * Associate an object with the key at the end of a key path, replacing the value already there.
+     * Every key before the last one needs to lead to a nested tree.
+     * @param path keys leading to the entry
+     * @param object object to be associated with the last key
+     * @return this patch
+     * @throws ABITException if the path doesn't lead to a tree or the document is corrupt
+     * @throws IllegalArgumentException if the path is empty or a key is incompatible
+     */
+    public ABITPatch put(String[] path, byte[] object) throws ABITException, IllegalArgumentException {
+        ABITObject.isCompatibleBlob(object);
+        return this.putEntry(path, ABITObject.ofBlob(object));
+    }
+
+    /**
+     * Associate an object with the key at the end of a key path, replacing the value already there.
+     * Every key before the last one needs to lead to a nested tree.
+     * @param path keys leading to the entry
+     * @param object object to be associated with the last key
+     * @return this patch
+     * @throws ABITException if the object is incompatible, the path doesn't lead to a tree or the document is corrupt
+     * @throws IllegalArgumentException if the path is empty or a key is incompatible
+     */
+    public ABITPatch put(String[] path, String object) throws ABITException, IllegalArgumentException {
+        ABITObject.isCompatibleString(object);
+        return this.putEntry(path, new ABITObject(object));
+    }
+
+    /**
+     * Associate an object with the key at the end of a key path, replacing the value already there.
+     * Every key before the last one needs to lead to a nested tree.
+     * @param path keys leading to the entry
+     * @param object object to be associated with the last key
+     * @return this patch
+     * @throws ABITException if the path doesn't lead to a tree or the document is corrupt
+     * @throws IllegalArgumentException if the path is empty or a key is incompatible
+     */
+    public ABITPatch put(String[] path, ABITArray object) throws ABITException, IllegalArgumentException {
+        return this.putEntry(path, object.node);
+    }
+
+    /**
+     * Associate an object with the key at the end of a key path, replacing the value already there.
+     * Every key before the last one needs to lead to a nested tree.
+     * @param path keys leading to the entry
+     * @param object object to be associated with the last key
+     * @return this patch
+     * @throws ABITException if the path doesn't lead to a tree or the document is corrupt
+     * @throws IllegalArgumentException if the path is empty or a key is incompatible
+     */
+    public ABITPatch put(String[] path, ABITObject object) throws ABITException, IllegalArgumentException {
+        return this.putEntry(path, object);
+    }
+
+    /**
+     * Remove the entry at the end of a key path, nothing changes if the last key isn't there.
+     * Every key before the last one needs to lead to a nested tree.
+     * @param path keys leading to the entry
+     * @return this patch
+     * @throws ABITException if the path doesn't lead to a tree or the document is corrupt
+     * @throws IllegalArgumentException if the path is empty or a key is incompatible
+     */
+    public ABITPatch remove(String... path) throws ABITException, IllegalArgumentException {
+        ABITKey key = lastKey(path);
+        int[] entry = this.findEntry(path, key);
+        if (entry[2] != 0) {
+            this.splice(path.length - 1, entry[0], entry[1], new byte[0]);
+        }
+        return this;
+    }
+
+    private static ABITKey lastKey(String[] path) throws IllegalArgumentException {
+        if (path.length == 0) {
+            throw new IllegalArgumentException("Empty key path");
+        }
+        return ABITKey.of(path[path.length - 1]);
+    }
+
+    private ABITPatch putEntry(String[] path, ABITObject object) throws ABITException, IllegalArgumentException {
+        ABITKey key = lastKey(path);
+        int[] entry = this.findEntry(path, key);
+
+        ABITObject.EncodePlan plan = new ABITObject.EncodePlan();
+        long length = 1 + key.bytes.length + ABITObject.sizeValue(object, plan);
+        byte[] encoded = new byte[(int) ABITObject.checkedLength(length)];
+        ByteBuffer out = ByteBuffer.wrap(encoded);
+        out.put((byte) (key.bytes.length-1));
+        out.put(key.bytes);
+        ABITObject.writeValue(object, out, plan);
+
+        this.splice(path.length - 1, entry[0], entry[1], encoded);
+        return this;
+    }
+
+    /**
+     * Walk the path down to the tree holding its last key, filling headers along the way.
+     * @return offset and end of the entry, and 1 if the key is there or 0 if the offset is where it would go
+     */
+    private int[] findEntry(String[] path, ABITKey key) throws ABITException {
+        if (this.headers.length < path.length) {
+            this.headers = Arrays.copyOf(this.headers, path.length);
+        }
+        int offset = this.start;
+        int treeEnd = this.end;
+        for (int i = 0; i < path.length - 1; i++) {
+            int valueOffset = this.find(offset, treeEnd, ABITKey.of(path[i]).bytes);
+            if (valueOffset < 0) {
+                throw new ABITException("Key not found");
+            }
+            if (ABITView.decodeType(this.buffer, valueOffset) != 6) {
+                throw new ABITException("Object is not of type tree");
+            }
+            this.headers[i] = valueOffset;
+            treeEnd = valueOffset + ABITView.valueLength(this.buffer, valueOffset, treeEnd);
+            offset = valueOffset + 1 + ABITView.decodeMetadataLength(this.buffer, valueOffset);
+        }
+        int idx = offset;
+        while (idx < treeEnd) {
+            if (idx + 2 + (this.buffer.get(idx)&0xff) >= treeEnd) {
+                throw new ABITException("Corrupt ABIT at "+idx);
+            }
+            int cmp = ABITView.compareKey(this.buffer, idx, key.bytes);
+            if (cmp > 0) {
+                break;
+            }
+            int valueOffset = idx + 2 + (this.buffer.get(idx)&0xff);
+            int valueEnd = valueOffset + ABITView.valueLength(this.buffer, valueOffset, treeEnd);
+            if (cmp == 0) {
+                return new int[]{idx, valueEnd, 1};
+            }
+            idx = valueEnd;
+        }
+        return new int[]{idx, idx, 0};
+    }
+
+    /**
+     * Offset of the value stored under key in the tree between offset and end, or -1 when it isn't there.
+     */
+    private int find(int offset, int end, byte[] key) throws ABITException {
+        int idx = offset;
+        while (idx < end) {
+            if (idx + 2 + (this.buffer.get(idx)&0xff) >= end) {
+                throw new ABITException("Corrupt ABIT at "+idx);
+            }
+            int cmp = ABITView.compareKey(this.buffer, idx, key);
+            idx+= 2 + (this.buffer.get(idx)&0xff);
+            if (cmp == 0) {
+                return idx;
+            }
+            if (cmp > 0) {
+                return -1;
+            }
+            idx+= ABITView.valueLength(this.buffer, idx, end);
+        }
+        return -1;
+    }
+
+    /**
+     * Replace the bytes between offset and end with replacement, inside the trees whose headers were found by findEntry().
+     */
+    private void splice(int depth, int offset, int end, byte[] replacement) throws ABITException {
+        // The innermost tree changes by the size of the replacement, every header changing size adds to its parent
+        long delta = replacement.length - (end - offset);
+        long[] lengths = new long[depth];
+        int[] sizes = new int[depth];
+        boolean sameSizes = true;
+        for (int i = depth - 1; i >= 0; i--) {
+            int header = this.headers[i];
+            int size = ABITView.decodeMetadataLength(this.buffer, header);
+            lengths[i] = ABITObject.checkedLength(ABITView.decodeInteger(this.buffer, header, 4) + delta);
+            sizes[i] = ABITObject.integerSize(lengths[i]);
+            sameSizes&= sizes[i] == size;
+            delta+= sizes[i] - size;
+        }
+        long documentLength = ABITObject.checkedLength(this.end - this.start + delta);
+
+        ByteBuffer out;
+        if (this.owned && delta == 0 && sameSizes) {
+            out = this.buffer.duplicate();
+        }
+        else {
+            out = ByteBuffer.wrap(new byte[(int) documentLength]);
+        }
+
+        // Copy everything up to each header, then the new header, then the rest up to the entry
+        int from = this.start;
+        out.position(0);
+        for (int i = 0; i < depth; i++) {
+            int header = this.headers[i];
+            this.copy(out, from, header);
+            ABITObject.writeInteger(lengths[i], 6, out);
+            from = header + 1 + ABITView.decodeMetadataLength(this.buffer, header);
+        }
+        this.copy(out, from, offset);
+        out.put(replacement);
+        this.copy(out, end, this.end);
+
+        this.buffer = out;
+        this.start = 0;
+        this.end = (int) documentLength;
+        this.owned = true;
+    }
+
+    private void copy(ByteBuffer out, int from, int to) {
+        if (out.array() == (this.buffer.hasArray() ? this.buffer.array() : null) && out.position() == from) {
+            // Same bytes in the same place
+            out.position(to);
+            return;
+        }
+        out.put(this.buffer.slice(from, to - from));
+    }
+}
@@ -0,0 +1,508 @@
+package org.deepslate.abit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Immutable abit tree, every change returns a new version sharing everything it didn't touch with the old one.
+// Entries live in a persistent AVL tree in abit key order, so a change copies O(log n) nodes and nested trees
+// are shared as they are. Versions can be read from any number of threads without locking, writers publish a new
+// version by swapping an AtomicReference, e.g. ref.updateAndGet(tree -> tree.with("key", 1)).
+// Arrays are kept as private copies and handed out as copies.
+
+public final class ABITPersistent {
+
+    private static final class Node {
+        final ABITKey key;
+        // A leaf or array ABITObject, or an ABITPersistent
+        final Object value;
+        final Node left;
+        final Node right;
+        final int height;
+        final int size;
+
+        Node(ABITKey key, Object value, Node left, Node right) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+    }
+
+    private final Node root;
+
+    /**
+     * Initialize an empty ABITPersistent.
+     */
+    public ABITPersistent() {
+        this.root = null;
+    }
+
+    /**
+     * Initialize an ABITPersistent by decoding an abit document.
+     * @param document the byte array containing the abit document.
+     * @throws ABITException if the document is corrupt
+     */
+    public ABITPersistent(byte[] document) throws ABITException {
+        this(new ABITObject(document));
+    }
+
+    /**
+     * Initialize an ABITPersistent holding a copy of a tree.
+     * @param tree the tree to copy
+     */
+    public ABITPersistent(ABITObject tree) {
+        List<Map.Entry<ABITKey, ABITObject>> entries = new ArrayList<>(tree.tree().entrySet());
+        this.root = build(entries, 0, entries.size());
+    }
+
+    private ABITPersistent(Node root) {
+        this.root = root;
+    }
+
+    private static Node build(List<Map.Entry<ABITKey, ABITObject>> entries, int from, int to) {
+        if (from >= to) {
+            return null;
+        }
+        int middle = (from + to) >>> 1;
+        Map.Entry<ABITKey, ABITObject> entry = entries.get(middle);
+        return new Node(entry.getKey(), freeze(entry.getValue()), build(entries, from, middle), build(entries, middle + 1, to));
+    }
+
+    private static Object freeze(ABITObject obj) {
+        if (obj.type == 6) {
+            return new ABITPersistent(obj);
+        }
+        return copy(obj);
+    }
+
+    /**
+     * Copy of an object sharing nothing that could be changed, leaves other than blobs are never changed.
+     */
+    private static ABITObject copy(ABITObject obj) {
+        switch (obj.type) {
+            case 3:
+                return ABITObject.ofBlob(obj.blob());
+            case 5:
+                List<ABITObject> array = obj.array();
+                List<ABITObject> copied = new ArrayList<>(array.size());
+                for (int i = 0; i < array.size(); i++) {
+                    copied.add(copy(array.get(i)));
+                }
+                return new ABITObject(copied);
+            case 6:
+                TreeMap<ABITKey, ABITObject> tree = new TreeMap<>();
+                for (Map.Entry<ABITKey, ABITObject> entry: obj.tree().entrySet()) {
+                    tree.put(entry.getKey(), copy(entry.getValue()));
+                }
+                return new ABITObject(tree);
+            default:
+                return obj;
+        }
+    }
+
+    private static int height(Node node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static Node balance(ABITKey key, Object value, Node left, Node right) {
+        if (height(left) > height(right) + 1) {
+            if (height(left.left) >= height(left.right)) {
+                return new Node(left.key, left.value, left.left, new Node(key, value, left.right, right));
+            }
+            return new Node(left.right.key, left.right.value,
+                    new Node(left.key, left.value, left.left, left.right.left),
+                    new Node(key, value, left.right.right, right));
+        }
+        if (height(right) > height(left) + 1) {
+            if (height(right.right) >= height(right.left)) {
+                return new Node(right.key, right.value, new Node(key, value, left, right.left), right.right);
+            }
+            return new Node(right.left.key, right.left.value,
+                    new Node(key, value, left, right.left.left),
+                    new Node(right.key, right.value, right.left.right, right.right));
+        }
+        return new Node(key, value, left, right);
+    }
+
+    private static Node insert(Node node, ABITKey key, Object value) {
+        if (node == null) {
+            return new Node(key, value, null, null);
+        }
+        int cmp = key.compareTo(node.key);
+        if (cmp == 0) {
+            return node.value == value ? node : new Node(node.key, value, node.left, node.right);
+        }
+        if (cmp < 0) {
+            Node left = insert(node.left, key, value);
+            return left == node.left ? node : balance(node.key, node.value, left, node.right);
+        }
+        Node right = insert(node.right, key, value);
+        return right == node.right ? node : balance(node.key, node.value, node.left, right);
+    }
+
+    private static Node delete(Node node, ABITKey key) {
+        if (node == null) {
+            return null;
+        }
+        int cmp = key.compareTo(node.key);
+        if (cmp < 0) {
+            Node left = delete(node.left, key);
+            return left == node.left ? node : balance(node.key, node.value, left, node.right);
+        }
+        if (cmp > 0) {
+            Node right = delete(node.right, key);
+            return right == node.right ? node : balance(node.key, node.value, node.left, right);
+        }
+        if (node.left == null) {
+            return node.right;
+        }
+        if (node.right == null) {
+            return node.left;
+        }
+        Node first = node.right;
+        while (first.left != null) {
+            first = first.left;
+        }
+        return balance(first.key, first.value, node.left, deleteFirst(node.right));
+    }
+
+    private static Node deleteFirst(Node node) {
+        if (node.left == null) {
+            return node.right;
+        }
+        return balance(node.key, node.value, deleteFirst(node.left), node.right);
+    }
+
+    private Object find(String key) throws ABITException {
+        ABITKey probe = ABITKey.probe(key);
+        Node node = this.root;
+        while (node != null) {
+            int cmp = probe.compareTo(node.key);
+            if (cmp == 0) {
+                return node.value;
+            }
+            node = cmp < 0 ? node.left : node.right;
+        }
+        throw new ABITException("Key not found");
+    }
+
+    private ABITObject findObject(String key) throws ABITException {
+        Object value = this.find(key);
+        if (value instanceof ABITPersistent) {
+            throw new ABITException("Object is of type tree");
+        }
+        return (ABITObject) value;
+    }
+
+    private ABITPersistent with(ABITKey key, Object value) {
+        Node root = insert(this.root, key, value);
+        return root == this.root ? this : new ABITPersistent(root);
+    }
+
+    /**
+     * Get the number of entries in this tree.
+     * @return number of entries
+     */
+    public int size() {
+        return size(this.root);
+    }
+
+    /**
+     * Check whether this tree has an entry for a key.
+     * @param key
+     * @return whether the key is there
+     */
+    public boolean hasKey(String key) {
+        try {
+            this.find(key);
+            return true;
+        }
+        catch (ABITException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Get a version of this tree with the key associated with an object.
+     * @param key key with which the specified object is to be associated
+     * @param object object to be associated with the specified key
+     * @return the new version
+     * @throws IllegalArgumentException if the key is incompatible
+     */
+    public ABITPersistent with(String key, ABITObject.NULL_t object) throws IllegalArgumentException {
+        ABITObject.isCompatibleNull(object);
+        return this.with(ABITKey.of(key), ABITObject.NULL_OBJECT);
+    }
+
+    /**
+     * Get a version of this tree with the key associated with an object.
+     * @param key key with which the specified object is to be associated
+     * @param object object to be associated with the specified key
+     * @return the new version
+     * @throws IllegalArgumentException if the key is incompatible
+     */
+    public ABITPersistent with(String key, boolean object) throws IllegalArgumentException {
+        ABITObject.isCompatibleBoolean(object);
+        return this.with(ABITKey.of(key), ABITObject.ofBoolean(object));
+    }
+
+    /**
+     * Get a version of this tree with the key associated with an object.
+     * @param key key with which the specified object is to be associated
+     * @param object object to be associated with the specified key
+     * @return the new version
+     * @throws IllegalArgumentException if the key is incompatible
+     */
+    public ABITPersistent with(String key, long object) throws IllegalArgumentException {
+        ABITObject.isCompatibleInteger(object);
+        return this.with(ABITKey.of(key), ABITObject.ofInteger(object));
+    }
+
+    /**
+     * Get a version of this tree with the key associated with a copy of a blob.
+     * @param key key with which the specified object is to be associated
+     * @param object object to be associated with the specified key
+     * @return the new version
+     * @throws IllegalArgumentException if the key is incompatible
+     */
+    public ABITPersistent with(String key, byte[] object) throws IllegalArgumentException {
+        ABITObject.isCompatibleBlob(object);
+        return this.with(ABITKey.of(key), ABITObject.ofBlob(object));
+    }
+
+    /**
+     * Get a version of this tree with the key associated with an object.
+     * @param key key with which the specified object is to be associated
+     * @param object object to be associated with the specified key
+     * @return the new version
+     * @throws ABITException if the object is incompatible
+     * @throws IllegalArgumentException if the key is incompatible
+     */
+    public ABITPersistent with(String key, String object) throws ABITException, IllegalArgumentException {
+        ABITObject.isCompatibleString(object);
+        return this.with(ABITKey.of(key), new ABITObject(object));
+    }
+
+    /**
+     * Get a version of this tree with the key associated with a copy of an array.
+     * @param key key with which the specified object is to be associated
+     * @param object object to be associated with the specified key
+     * @return the new version
+     * @throws IllegalArgumentException if the key is incompatible
+     */
+    public ABITPersistent with(String key, ABITArray object) throws IllegalArgumentException {
+        return this.with(ABITKey.of(key), copy(object.node));
+    }
+
+    /**
+     * Get a version of this tree with the key associated with a copy of a tree.
+     * @param key key with which the specified object is to be associated
+     * @param object object to be associated with the specified key
+     * @return the new version
+     * @throws IllegalArgumentException if the key is incompatible
+     */
+    public ABITPersistent with(String key, ABITObject object) throws IllegalArgumentException {
+        return this.with(ABITKey.of(key), freeze(object));
+    }
+
+    /**
+     * Get a version of this tree with the key associated with a persistent tree, which is shared as it is.
+     * @param key key with which the specified object is to be associated
+     * @param object object to be associated with the specified key
+     * @return the new version
+     * @throws IllegalArgumentException if the key is incompatible
+     */
+    public ABITPersistent with(String key, ABITPersistent object) throws IllegalArgumentException {
+        return this.with(ABITKey.of(key), (Object) object);
+    }
+
+    /**
+     * Get a version of this tree without the entry for a key.
+     * @param key key of the entry to remove
+     * @return the new version, or this tree if the key isn't there
+     */
+    public ABITPersistent without(String key) {
+        Node root = delete(this.root, ABITKey.probe(key));
+        return root == this.root ? this : new ABITPersistent(root);
+    }
+
+    /**
+     * Get type of object associated with key from tree
+     * @param key
+     * @return type as string
+     * @throws ABITException if the key isn't there
+     */
+    public String getType(String key) throws ABITException {
+        Object value = this.find(key);
+        if (value instanceof ABITPersistent) {
+            return "tree";
+        }
+        return ABITView.typeName(((ABITObject) value).type);
+    }
+
+    /**
+     * Get object associated with key from tree
+     * @param key
+     * @return null
+     * @throws ABITException
+     */
+    public ABITObject.NULL_t getNull(String key) throws ABITException {
+        if (this.findObject(key).type == 0) {
+            return ABITObject.NULL;
+        }
+        throw new ABITException("Object is not of type null");
+    }
+
+    /**
+     * Get object associated with key from tree
+     * @param key
+     * @return boolean
+     * @throws ABITException
+     */
+    public boolean getBoolean(String key) throws ABITException {
+        ABITObject obj = this.findObject(key);
+        if (obj.type == 1) {
+            return obj.booleanValue();
+        }
+        throw new ABITException("Object is not of type boolean");
+    }
+
+    /**
+     * Get object associated with key from tree
+     * @param key
+     * @return integer
+     * @throws ABITException
+     */
+    public long getInteger(String key) throws ABITException {
+        ABITObject obj = this.findObject(key);
+        if (obj.type == 2) {
+            return obj.intValue;
+        }
+        throw new ABITException("Object is not of type integer");
+    }
+
+    /**
+     * Get a copy of the object associated with key from tree
+     * @param key
+     * @return blob
+     * @throws ABITException
+     */
+    public byte[] getBlob(String key) throws ABITException {
+        ABITObject obj = this.findObject(key);
+        if (obj.type == 3) {
+            return obj.blob().clone();
+        }
+        throw new ABITException("Object is not of type blob");
+    }
+
+    /**
+     * Get object associated with key from tree
+     * @param key
+     * @return string
+     * @throws ABITException
+     */
+    public String getString(String key) throws ABITException {
+        ABITObject obj = this.findObject(key);
+        if (obj.type == 4) {
+            return obj.string();
+        }
+        throw new ABITException("Object is not of type string");
+    }
+
+    /**
+     * Get a copy of the object associated with key from tree, changing it doesn't change this tree
+     * @param key
+     * @return ABITArray
+     * @throws ABITException
+     */
+    public ABITArray getArray(String key) throws ABITException {
+        ABITObject obj = this.findObject(key);
+        if (obj.type == 5) {
+            return new ABITArray(copy(obj));
+        }
+        throw new ABITException("Object is not of type array");
+    }
+
+    /**
+     * Get object associated with key from tree
+     * @param key
+     * @return ABITPersistent
+     * @throws ABITException
+     */
+    public ABITPersistent getTree(String key) throws ABITException {
+        Object value = this.find(key);
+        if (value instanceof ABITPersistent tree) {
+            return tree;
+        }
+        throw new ABITException("Object is not of type tree");
+    }
+
+    /**
+     * Get a mutable copy of this tree.
+     * @return ABITObject holding the same entries
+     */
+    public ABITObject toABITObject() {
+        TreeMap<ABITKey, ABITObject> tree = new TreeMap<>();
+        fill(this.root, tree);
+        return new ABITObject(tree);
+    }
+
+    private static void fill(Node node, TreeMap<ABITKey, ABITObject> tree) {
+        if (node == null) {
+            return;
+        }
+        fill(node.left, tree);
+        if (node.value instanceof ABITPersistent nested) {
+            tree.put(node.key, nested.toABITObject());
+        }
+        else {
+            tree.put(node.key, copy((ABITObject) node.value));
+        }
+        fill(node.right, tree);
+    }
+
+    /**
+     * Convert this ABITPersistent to its binary form.
+     * @return byte array containing the abit object.
+     * @throws ABITException if the tree is too big to be encoded
+     */
+    public byte[] toByteArray() throws ABITException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ABITWriter writer = new ABITWriter(out)) {
+            writer.writeTree(this);
+        }
+        catch (IOException e) {
+            throw new ABITException(e.getMessage());
+        }
+        return out.toByteArray();
+    }
+
+    void writeEntries(ABITWriter writer) throws IOException, ABITException {
+        write(this.root, writer);
+    }
+
+    private static void write(Node node, ABITWriter writer) throws IOException, ABITException {
+        if (node == null) {
+            return;
+        }
+        write(node.left, writer);
+        writer.key(node.key.bytes, 0, node.key.bytes.length);
+        if (node.value instanceof ABITPersistent nested) {
+            writer.writeTree(nested);
+        }
+        else {
+            writer.write((ABITObject) node.value);
+        }
+        write(node.right, writer);
+    }
+}
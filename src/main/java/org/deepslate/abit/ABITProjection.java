@@ -0,0 +1,64 @@
+package org.deepslate.abit;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// Set of key paths to decode out of a document, everything else is skipped using its length prefix.
+
+public class ABITProjection {
+
+    private final SortedMap<ABITKey, ABITProjection> children = new TreeMap<>();
+
+    // Sorted copy of children for the decoder, a null projection means the whole value is wanted.
+    ABITKey[] keys = new ABITKey[0];
+    ABITProjection[] projections = new ABITProjection[0];
+
+    /**
+     * Initialize an empty ABITProjection, add the wanted keys with include().
+     */
+    public ABITProjection() {}
+
+    /**
+     * Include the value at a key path, a path of one key selects an entry of the document itself,
+     * longer paths select entries of nested trees. The whole value at the end of the path is decoded.
+     * @param path keys leading to the value
+     * @return this projection
+     * @throws IllegalArgumentException if the path is empty or a key is incompatible
+     */
+    public ABITProjection include(String... path) throws IllegalArgumentException {
+        if (path.length == 0) {
+            throw new IllegalArgumentException("Empty key path");
+        }
+        ABITProjection projection = this;
+        for (int i = 0; i < path.length; i++) {
+            ABITKey key = ABITKey.of(path[i]);
+            boolean last = i == path.length - 1;
+            if (projection.children.containsKey(key) && projection.children.get(key) == null) {
+                // The whole value is already included
+                return this;
+            }
+            ABITProjection child = last ? null : projection.children.get(key);
+            if (!last && child == null) {
+                child = new ABITProjection();
+            }
+            projection.children.put(key, child);
+            projection.compile();
+            projection = child;
+        }
+        return this;
+    }
+
+    private void compile() {
+        ABITKey[] keys = new ABITKey[this.children.size()];
+        ABITProjection[] projections = new ABITProjection[keys.length];
+        int i = 0;
+        for (Map.Entry<ABITKey, ABITProjection> entry: this.children.entrySet()) {
+            keys[i] = entry.getKey();
+            projections[i] = entry.getValue();
+            i++;
+        }
+        this.projections = projections;
+        this.keys = keys;
+    }
+}
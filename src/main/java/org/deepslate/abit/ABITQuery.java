@@ -0,0 +1,282 @@
+package org.deepslate.abit;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Predicate over abit documents, evaluated on their encoded bytes without decoding them.
+// A condition names a key path, whose keys and compared strings are encoded to UTF-8 once when the query is built.
+// Evaluating it walks the path with the keys' order and the values' length prefixes, skipping every other entry,
+// so testing a document allocates nothing.
+// Conditions are combined with and(), or() and negate(). A condition on a missing key or a value of another type is false.
+
+public class ABITQuery {
+
+    // Test of the tree between offset and end, or of the value at offset inside a container ending at end
+    private interface Test {
+        boolean test(ByteBuffer blob, int offset, int end) throws ABITException;
+    }
+
+    private static final int MIN_SPLIT = 1024;
+
+    private final Test test;
+
+    private ABITQuery(Test test) {
+        this.test = test;
+    }
+
+    /**
+     * Start a condition on the value at a key path.
+     * @param keys keys leading from the document's root tree to the value, every key but the last names a tree
+     * @return the path to finish with a condition
+     * @throws IllegalArgumentException if a key is incompatible or no key is given
+     */
+    public static KeyPath where(String... keys) throws IllegalArgumentException {
+        if (keys.length == 0) {
+            throw new IllegalArgumentException("Empty key path");
+        }
+        byte[][] path = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            path[i] = ABITKey.of(keys[i]).bytes;
+        }
+        return new KeyPath(path);
+    }
+
+    /**
+     * Get a query matching documents both queries match.
+     * @param other the other query
+     * @return the combined query
+     */
+    public ABITQuery and(ABITQuery other) {
+        Test first = this.test;
+        Test second = other.test;
+        return new ABITQuery((blob, offset, end) -> first.test(blob, offset, end) && second.test(blob, offset, end));
+    }
+
+    /**
+     * Get a query matching documents either query matches.
+     * @param other the other query
+     * @return the combined query
+     */
+    public ABITQuery or(ABITQuery other) {
+        Test first = this.test;
+        Test second = other.test;
+        return new ABITQuery((blob, offset, end) -> first.test(blob, offset, end) || second.test(blob, offset, end));
+    }
+
+    /**
+     * Get a query matching the documents this query doesn't match.
+     * @return the negated query
+     */
+    public ABITQuery negate() {
+        Test test = this.test;
+        return new ABITQuery((blob, offset, end) -> !test.test(blob, offset, end));
+    }
+
+    /**
+     * Test an abit document.
+     * @param document the byte array containing the abit document.
+     * @return true if the document matches
+     * @throws ABITException if a part of the document the query looks at is corrupt
+     */
+    public boolean test(byte[] document) throws ABITException {
+        return this.test.test(ByteBuffer.wrap(document), 0, document.length);
+    }
+
+    /**
+     * Test the abit document in the remaining bytes of a buffer, the buffer's position is left untouched.
+     * @param document the buffer containing the abit document.
+     * @return true if the document matches
+     * @throws ABITException if a part of the document the query looks at is corrupt
+     */
+    public boolean test(ByteBuffer document) throws ABITException {
+        return this.test.test(document, document.position(), document.limit());
+    }
+
+    /**
+     * Test the tree of an ABITView.
+     * @param view view over the tree
+     * @return true if the tree matches
+     * @throws ABITException if a part of the tree the query looks at is corrupt
+     */
+    public boolean test(ABITView view) throws ABITException {
+        return this.test.test(view.buffer, view.offset, view.end);
+    }
+
+    /**
+     * Get the records of a record file this query matches, in order. The file is flushed first and must not be
+     * appended to while the stream is used. Records are tested inside the scan buffers and only matches are copied.
+     * The stream splits into ranges of records, so parallel() scans the file on several threads.
+     * @param file the record file
+     * @return stream of the matching documents
+     * @throws IOException if the file can't be flushed
+     */
+    public Stream<byte[]> filter(ABITRecordFile file) throws IOException {
+        file.flush();
+        return StreamSupport.stream(new RecordSpliterator(file, 0, file.size()), false);
+    }
+
+    // Condition on the value at a key path, see where().
+    public static class KeyPath {
+
+        private final byte[][] keys;
+
+        private KeyPath(byte[][] keys) {
+            this.keys = keys;
+        }
+
+        private ABITQuery value(Test test) {
+            byte[][] keys = this.keys;
+            return new ABITQuery((blob, offset, end) -> {
+                int idx = offset;
+                int treeEnd = end;
+                for (int i = 0; i < keys.length - 1; i++) {
+                    idx = ABITView.find(blob, idx, treeEnd, keys[i]);
+                    if (idx < 0 || ABITView.decodeType(blob, idx) != 6) {
+                        return false;
+                    }
+                    int length = ABITView.decodeLength(blob, idx, treeEnd);
+                    idx+= 1 + ABITView.decodeMetadataLength(blob, idx);
+                    treeEnd = idx + length;
+                }
+                idx = ABITView.find(blob, idx, treeEnd, keys[keys.length - 1]);
+                return idx >= 0 && test.test(blob, idx, treeEnd);
+            });
+        }
+
+        /**
+         * Match documents having a value at this path.
+         * @return the query
+         */
+        public ABITQuery exists() {
+            return this.value((blob, offset, end) -> true);
+        }
+
+        /**
+         * Match documents having null at this path.
+         * @return the query
+         */
+        public ABITQuery isNull() {
+            return this.value((blob, offset, end) -> ABITView.decodeType(blob, offset) == 0);
+        }
+
+        /**
+         * Match documents having a boolean at this path.
+         * @param value the boolean to compare with
+         * @return the query
+         */
+        public ABITQuery equalTo(boolean value) {
+            byte encoded = (byte) (value ? 0b00010001 : 0b00000001);
+            return this.value((blob, offset, end) -> blob.get(offset) == encoded);
+        }
+
+        /**
+         * Match documents having an integer at this path.
+         * @param value the integer to compare with
+         * @return the query
+         */
+        public ABITQuery equalTo(long value) {
+            return this.between(value, value);
+        }
+
+        /**
+         * Match documents having an integer within a range at this path.
+         * @param min smallest matching integer
+         * @param max biggest matching integer
+         * @return the query
+         */
+        public ABITQuery between(long min, long max) {
+            return this.value((blob, offset, end) -> {
+                if (ABITView.decodeType(blob, offset) != 2) {
+                    return false;
+                }
+                ABITView.valueLength(blob, offset, end);
+                long integer = ABITView.decodeInteger(blob, offset, 8);
+                return integer >= min && integer <= max;
+            });
+        }
+
+        /**
+         * Match documents having a string at this path, the UTF-8 bytes are compared without decoding the string.
+         * @param value the string to compare with
+         * @return the query
+         */
+        public ABITQuery equalTo(String value) {
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            return this.value((blob, offset, end) -> {
+                if (ABITView.decodeType(blob, offset) != 4 || ABITView.decodeLength(blob, offset, end) != encoded.length) {
+                    return false;
+                }
+                int stringOffset = offset + 1 + ABITView.decodeMetadataLength(blob, offset);
+                for (int i = 0; i < encoded.length; i++) {
+                    if (blob.get(stringOffset + i) != encoded[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+        }
+    }
+
+    private class RecordSpliterator implements Spliterator<byte[]> {
+
+        private final ABITRecordFile file;
+        private long from;
+        private final long to;
+        private ABITRecordFile.Cursor cursor;
+
+        RecordSpliterator(ABITRecordFile file, long from, long to) {
+            this.file = file;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super byte[]> action) {
+            try {
+                if (this.cursor == null) {
+                    this.cursor = this.file.cursor(this.from, this.to);
+                }
+                while (this.cursor.next()) {
+                    ByteBuffer document = this.cursor.document();
+                    if (ABITQuery.this.test(document)) {
+                        byte[] out = new byte[document.remaining()];
+                        document.get(document.position(), out);
+                        action.accept(out);
+                        return true;
+                    }
+                }
+                return false;
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public Spliterator<byte[]> trySplit() {
+            if (this.cursor != null || this.to - this.from < 2 * MIN_SPLIT) {
+                return null;
+            }
+            long middle = this.from + (this.to - this.from) / 2;
+            RecordSpliterator prefix = new RecordSpliterator(this.file, this.from, middle);
+            this.from = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return this.to - this.from;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+}
@@ -0,0 +1,578 @@
+package org.deepslate.abit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Pull parser reading an abit document incrementally from a stream or channel.
+
+public class ABITReader implements Closeable {
+
+    public enum Token {
+        KEY,
+        NULL,
+        BOOLEAN,
+        INTEGER,
+        BLOB,
+        STRING,
+        START_ARRAY,
+        END_ARRAY,
+        START_TREE,
+        END_TREE
+    }
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final int MIN_BUFFER_SIZE = 512;
+
+    private final InputStream in;
+    private final ReadableByteChannel channel;
+    private final byte[] buf;
+    private final ByteBuffer channelBuffer;
+    private int pos = 0;
+    private int limit = 0;
+    private long bufferStart = 0;
+
+    // One entry per open array or tree, the root tree has no known end.
+    private long[] ends = new long[16];
+    private boolean[] trees = new boolean[16];
+    private byte[][] keys = new byte[16][];
+    private int[] keyLengths = new int[16];
+    private int depth = -1;
+    private boolean started = false;
+    private boolean afterKey = false;
+
+    private Token current;
+    private boolean booleanValue;
+    private long intValue;
+    private long pending = 0;
+    private BlobStream blobStream;
+
+    /**
+     * Initialize an ABITReader reading a document from a stream.
+     * @param in stream containing the abit document.
+     */
+    public ABITReader(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Initialize an ABITReader reading a document from a stream.
+     * @param in stream containing the abit document.
+     * @param bufferSize size of the internal buffer, at least 512 bytes are used.
+     */
+    public ABITReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.channel = null;
+        this.buf = new byte[Math.max(bufferSize, MIN_BUFFER_SIZE)];
+        this.channelBuffer = null;
+    }
+
+    /**
+     * Initialize an ABITReader reading a document from a blocking channel.
+     * @param channel channel containing the abit document.
+     */
+    public ABITReader(ReadableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Initialize an ABITReader reading a document from a blocking channel.
+     * @param channel channel containing the abit document.
+     * @param bufferSize size of the internal buffer, at least 512 bytes are used.
+     */
+    public ABITReader(ReadableByteChannel channel, int bufferSize) {
+        this.in = null;
+        this.channel = channel;
+        this.buf = new byte[Math.max(bufferSize, MIN_BUFFER_SIZE)];
+        this.channelBuffer = ByteBuffer.wrap(this.buf);
+    }
+
+    private int readSource(byte[] b, int off, int len) throws IOException {
+        if (this.in != null) {
+            return this.in.read(b, off, len);
+        }
+        ByteBuffer target = b == this.buf ? this.channelBuffer.limit(off+len).position(off) : ByteBuffer.wrap(b, off, len);
+        int read;
+        do {
+            read = this.channel.read(target);
+        } while (read == 0);
+        return read;
+    }
+
+    private void skipSource(long n) throws IOException, ABITException {
+        if (this.channel instanceof SeekableByteChannel seekable) {
+            if (seekable.position() + n > seekable.size()) {
+                throw new ABITException("Unexpected end of document at "+position());
+            }
+            seekable.position(seekable.position() + n);
+            return;
+        }
+        while (n > 0) {
+            long skipped = this.in != null ? this.in.skip(n) : 0;
+            if (skipped <= 0) {
+                // Not every source can skip, fall back to reading into the buffer
+                int read = readSource(this.buf, 0, (int) Math.min(n, this.buf.length));
+                if (read < 0) {
+                    throw new ABITException("Unexpected end of document at "+position());
+                }
+                skipped = read;
+            }
+            n-= skipped;
+        }
+    }
+
+    /**
+     * Make sure at least n bytes are buffered, returns false if the source ends first.
+     */
+    private boolean ensure(int n) throws IOException {
+        if (this.limit - this.pos >= n) {
+            return true;
+        }
+        if (this.pos > 0) {
+            System.arraycopy(this.buf, this.pos, this.buf, 0, this.limit - this.pos);
+            this.bufferStart+= this.pos;
+            this.limit-= this.pos;
+            this.pos = 0;
+        }
+        while (this.limit < n) {
+            int read = readSource(this.buf, this.limit, this.buf.length - this.limit);
+            if (read < 0) {
+                return false;
+            }
+            this.limit+= read;
+        }
+        return true;
+    }
+
+    private void require(int n) throws IOException, ABITException {
+        if (!ensure(n)) {
+            throw new ABITException("Unexpected end of document at "+position());
+        }
+    }
+
+    private void skip(long n) throws IOException, ABITException {
+        int buffered = (int) Math.min(n, this.limit - this.pos);
+        this.pos+= buffered;
+        n-= buffered;
+        if (n > 0) {
+            this.bufferStart+= this.limit + n;
+            this.pos = 0;
+            this.limit = 0;
+            skipSource(n);
+        }
+    }
+
+    private int readPending(byte[] b, int off, int len) throws IOException, ABITException {
+        if (this.pending == 0) {
+            return -1;
+        }
+        len = (int) Math.min(len, this.pending);
+        int buffered = Math.min(len, this.limit - this.pos);
+        if (buffered > 0) {
+            System.arraycopy(this.buf, this.pos, b, off, buffered);
+            this.pos+= buffered;
+        }
+        else if (len >= this.buf.length) {
+            // Large reads go straight to the destination instead of through the buffer
+            buffered = readSource(b, off, len);
+            if (buffered < 0) {
+                throw new ABITException("Unexpected end of document at "+position());
+            }
+            this.bufferStart+= buffered;
+        }
+        else {
+            require(1);
+            buffered = Math.min(len, this.limit - this.pos);
+            System.arraycopy(this.buf, this.pos, b, off, buffered);
+            this.pos+= buffered;
+        }
+        this.pending-= buffered;
+        return buffered;
+    }
+
+    private long position() {
+        return this.bufferStart + this.pos;
+    }
+
+    private void push(boolean tree, long end) {
+        this.depth++;
+        if (this.depth == this.ends.length) {
+            this.ends = Arrays.copyOf(this.ends, this.depth*2);
+            this.trees = Arrays.copyOf(this.trees, this.depth*2);
+            this.keys = Arrays.copyOf(this.keys, this.depth*2);
+            this.keyLengths = Arrays.copyOf(this.keyLengths, this.depth*2);
+        }
+        this.ends[this.depth] = end;
+        this.trees[this.depth] = tree;
+        this.keyLengths[this.depth] = 0;
+    }
+
+    private Token pop() {
+        return this.trees[this.depth--] ? Token.END_TREE : Token.END_ARRAY;
+    }
+
+    private void checkBounds(long length) throws ABITException {
+        long end = this.ends[this.depth];
+        if (length < 0 || (end >= 0 && position() + length > end)) {
+            throw new ABITException("Corrupt ABIT at "+position());
+        }
+    }
+
+    private Token readKey() throws IOException, ABITException {
+        require(1);
+        int keyLength = (this.buf[this.pos]&0xff)+1;
+        require(1 + keyLength);
+        checkBounds(1 + keyLength);
+
+        if (this.keys[this.depth] == null) {
+            this.keys[this.depth] = new byte[256];
+        }
+        byte[] lastKey = this.keys[this.depth];
+        int lastKeyLength = this.keyLengths[this.depth];
+        if (lastKeyLength != 0) {
+            int cmp = Integer.compare(keyLength, lastKeyLength);
+            for (int i = 0; cmp == 0 && i < keyLength; i++) {
+                cmp = Byte.compare(this.buf[this.pos+1+i], lastKey[i]);
+            }
+            if (0 > cmp) {
+                throw new ABITException("Invalid key order or identical keys");
+            }
+        }
+        System.arraycopy(this.buf, this.pos+1, lastKey, 0, keyLength);
+        this.keyLengths[this.depth] = keyLength;
+        this.pos+= 1 + keyLength;
+        this.afterKey = true;
+        return Token.KEY;
+    }
+
+    private Token readValue() throws IOException, ABITException {
+        require(1);
+        byte header = this.buf[this.pos];
+        int size = ((header & 0xf0) >> 4) + 1;
+        switch (header & 0x0f) {
+            case 0:
+                if (header != 0x00) {
+                    throw new ABITException("Byte at "+position()+" is not a null");
+                }
+                checkBounds(1);
+                this.pos++;
+                return Token.NULL;
+            case 1:
+                if (header != 0b00000001 && header != 0b00010001) {
+                    throw new ABITException("Byte at "+position()+" is not a boolean");
+                }
+                checkBounds(1);
+                this.booleanValue = header == 0b00010001;
+                this.pos++;
+                return Token.BOOLEAN;
+            case 2:
+                if (size > 8) {
+                    throw new ABITException("Invalid integer size at "+position());
+                }
+                require(1 + size);
+                checkBounds(1 + size);
+                this.intValue = readInteger(size);
+                return Token.INTEGER;
+            case 3:
+            case 4:
+            case 5:
+            case 6:
+                if (size > 4) {
+                    throw new ABITException("Invalid integer size at "+position());
+                }
+                require(1 + size);
+                checkBounds(1 + size);
+                long length = readInteger(size);
+                checkBounds(length);
+                switch (header & 0x0f) {
+                    case 3:
+                        this.pending = length;
+                        return Token.BLOB;
+                    case 4:
+                        this.pending = length;
+                        return Token.STRING;
+                    case 5:
+                        push(false, position() + length);
+                        return Token.START_ARRAY;
+                    default:
+                        push(true, position() + length);
+                        return Token.START_TREE;
+                }
+            default:
+                throw new ABITException("Invalid type at "+position());
+        }
+    }
+
+    private long readInteger(int size) {
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value <<= 8;
+            value |= (this.buf[this.pos+1 +size - 1 - i] & 0xFF);
+        }
+        if ((this.buf[this.pos+size] & 0x80) != 0 && size < 8) {
+            value -= (1L << size*8);
+        }
+        this.pos+= 1 + size;
+        return value;
+    }
+
+    /**
+     * Advance to the next token of the document, the first token is always START_TREE for the document itself.
+     * Any unread blob or string payload of the previous token is skipped.
+     * @return the next token or null once the document has ended.
+     * @throws IOException
+     * @throws ABITException if the document is corrupt
+     */
+    public Token nextToken() throws IOException, ABITException {
+        if (this.pending > 0) {
+            skip(this.pending);
+            this.pending = 0;
+        }
+        this.blobStream = null;
+
+        if (this.depth < 0) {
+            if (this.started) {
+                return this.current = null;
+            }
+            this.started = true;
+            push(true, -1);
+            return this.current = Token.START_TREE;
+        }
+
+        long end = this.ends[this.depth];
+        boolean atEnd;
+        if (end < 0) {
+            atEnd = !ensure(1);
+        }
+        else {
+            if (position() > end) {
+                throw new ABITException("Corrupt ABIT at "+position());
+            }
+            atEnd = position() == end;
+        }
+
+        if (atEnd) {
+            if (this.afterKey) {
+                throw new ABITException("Missing value for key at "+position());
+            }
+            return this.current = pop();
+        }
+        if (this.trees[this.depth] && !this.afterKey) {
+            return this.current = readKey();
+        }
+        this.afterKey = false;
+        return this.current = readValue();
+    }
+
+    /**
+     * Skip the value the reader is positioned at using its length prefix, without reading the payload.
+     * After a KEY the whole value belonging to it is skipped, after START_ARRAY or START_TREE the rest of
+     * that array or tree is skipped and the current token becomes its END_ARRAY or END_TREE.
+     * @throws IOException
+     * @throws ABITException if the document is corrupt
+     */
+    public void skipValue() throws IOException, ABITException {
+        if (this.current == null) {
+            return;
+        }
+        switch (this.current) {
+            case KEY:
+                switch (nextToken()) {
+                    case START_ARRAY:
+                    case START_TREE:
+                        skipValue();
+                        break;
+                    case BLOB:
+                    case STRING:
+                        skip(this.pending);
+                        this.pending = 0;
+                        break;
+                    default:
+                        break;
+                }
+                break;
+            case START_ARRAY:
+            case START_TREE:
+                if (this.ends[this.depth] < 0) {
+                    // The root tree runs until the end of the source
+                    while (ensure(1)) {
+                        this.pos = this.limit;
+                    }
+                }
+                else {
+                    skip(this.ends[this.depth] - position());
+                }
+                this.afterKey = false;
+                this.current = pop();
+                break;
+            case BLOB:
+            case STRING:
+                skip(this.pending);
+                this.pending = 0;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Get the current token.
+     * @return the token returned by the last call to nextToken()
+     */
+    public Token currentToken() {
+        return this.current;
+    }
+
+    /**
+     * Get the number of arrays and trees the reader is inside of, the document itself counts as one.
+     * @return the nesting depth
+     */
+    public int getDepth() {
+        return this.depth + 1;
+    }
+
+    private void expect(Token token, String type) throws ABITException {
+        if (this.current != token) {
+            throw new ABITException("Object is not of type "+type);
+        }
+    }
+
+    /**
+     * Get the key of the current KEY token.
+     * @return key
+     * @throws ABITException
+     */
+    public String getKey() throws ABITException {
+        expect(Token.KEY, "key");
+        return new String(this.keys[this.depth], 0, this.keyLengths[this.depth], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the value of the current BOOLEAN token.
+     * @return boolean
+     * @throws ABITException
+     */
+    public boolean getBoolean() throws ABITException {
+        expect(Token.BOOLEAN, "boolean");
+        return this.booleanValue;
+    }
+
+    /**
+     * Get the value of the current INTEGER token.
+     * @return integer
+     * @throws ABITException
+     */
+    public long getInteger() throws ABITException {
+        expect(Token.INTEGER, "integer");
+        return this.intValue;
+    }
+
+    /**
+     * Get the number of payload bytes of the current BLOB or STRING token which haven't been read yet.
+     * @return number of unread bytes
+     */
+    public long getRemainingLength() {
+        return this.pending;
+    }
+
+    private byte[] readPending() throws IOException, ABITException {
+        byte[] out = new byte[(int) this.pending];
+        int off = 0;
+        while (off < out.length) {
+            off+= readPending(out, off, out.length - off);
+        }
+        return out;
+    }
+
+    /**
+     * Read the whole value of the current BLOB token.
+     * @return blob
+     * @throws IOException
+     * @throws ABITException
+     */
+    public byte[] getBlob() throws IOException, ABITException {
+        expect(Token.BLOB, "blob");
+        return readPending();
+    }
+
+    /**
+     * Get a stream over the value of the current BLOB token, the stream ends with the blob and
+     * is only usable until the next call to nextToken().
+     * @return stream over the blob
+     * @throws ABITException
+     */
+    public InputStream getBlobStream() throws ABITException {
+        expect(Token.BLOB, "blob");
+        if (this.blobStream == null) {
+            this.blobStream = new BlobStream();
+        }
+        return this.blobStream;
+    }
+
+    /**
+     * Read the whole value of the current STRING token.
+     * @return string
+     * @throws IOException
+     * @throws ABITException
+     */
+    public String getString() throws IOException, ABITException {
+        expect(Token.STRING, "string");
+        if (this.pending <= this.limit - this.pos) {
+            String out = new String(this.buf, this.pos, (int) this.pending, StandardCharsets.UTF_8);
+            this.pos+= (int) this.pending;
+            this.pending = 0;
+            return out;
+        }
+        return new String(readPending(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.in != null) {
+            this.in.close();
+        }
+        else {
+            this.channel.close();
+        }
+    }
+
+    private class BlobStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (blobStream != this) {
+                throw new IOException("Stream closed, the reader has moved on");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            return readPending(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (blobStream != this || n <= 0) {
+                return 0;
+            }
+            n = Math.min(n, pending);
+            ABITReader.this.skip(n);
+            pending-= n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(pending, limit - pos);
+        }
+    }
+}
@@ -0,0 +1,506 @@
+package org.deepslate.abit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32C;
+
+// Append-only file of abit documents.
+// The file starts with an 8 byte magic, then every record is a 4 byte little-endian document length, a CRC32C of
+// that length and the document, and the document itself. The offsets of the records are kept in a sidecar file
+// named like the record file plus ".idx", 8 little-endian bytes per record. Index entries are written every 1024
+// appends and on flush() and close(), so finding record N takes one read of the index.
+// Opening a file recovers it: index entries pointing past the valid records are dropped, records missing from the
+// index are found by scanning, and a torn record at the tail is truncated away.
+// An ABITRecordFile is not thread-safe.
+
+public class ABITRecordFile implements Closeable {
+
+    private static final byte[] MAGIC = new byte[]{'A', 'B', 'I', 'T', 'R', 'E', 'C', 1};
+    private static final int FRAME_SIZE = 8;
+    private static final int INDEX_INTERVAL = 1024;
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+
+    private final FileChannel data;
+    private final FileChannel index;
+    private final ByteBuffer writeBuffer;
+    private final ByteBuffer indexBuffer = ByteBuffer.allocate(INDEX_INTERVAL * 8).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer scratch = ByteBuffer.allocate(0);
+
+    // Offsets of the records not yet written to the index
+    private final long[] pending = new long[INDEX_INTERVAL];
+    private int pendingCount = 0;
+    private long indexed = 0;
+    private long count = 0;
+    // End of the records in the file and end including the buffered ones
+    private long written;
+    private long dataEnd;
+    private int frameStart;
+
+    /**
+     * Open a record file, creating it if it doesn't exist and recovering it if it does.
+     * @param path path of the record file, the index is kept next to it.
+     * @throws IOException if the files can't be opened, read or truncated
+     * @throws ABITException if the file isn't an abit record file
+     */
+    public ABITRecordFile(Path path) throws IOException, ABITException {
+        this(path, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Open a record file, creating it if it doesn't exist and recovering it if it does.
+     * @param path path of the record file, the index is kept next to it.
+     * @param bufferSize size of the append buffer, bigger documents are written directly.
+     * @throws IOException if the files can't be opened, read or truncated
+     * @throws ABITException if the file isn't an abit record file
+     */
+    public ABITRecordFile(Path path, int bufferSize) throws IOException, ABITException {
+        this.writeBuffer = ByteBuffer.allocate(Math.max(bufferSize, 512)).order(ByteOrder.LITTLE_ENDIAN);
+        this.data = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.index = FileChannel.open(path.resolveSibling(path.getFileName()+".idx"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        catch (IOException e) {
+            this.data.close();
+            throw e;
+        }
+        try {
+            this.recover();
+        }
+        catch (IOException | RuntimeException e) {
+            this.data.close();
+            this.index.close();
+            throw e;
+        }
+    }
+
+    private void recover() throws IOException, ABITException {
+        long size = this.data.size();
+        ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+        readFully(this.data, magic, 0);
+        if (!Arrays.equals(magic.array(), 0, magic.position(), MAGIC, 0, magic.position())) {
+            throw new ABITException("Not an abit record file");
+        }
+        if (size < MAGIC.length) {
+            // A new file, or one torn while its magic was written
+            writeFully(this.data, ByteBuffer.wrap(MAGIC), 0);
+            size = MAGIC.length;
+        }
+
+        // Trust the index up to its last entry that points at a valid record
+        long end = MAGIC.length;
+        long entries = this.index.size() / 8;
+        while (entries > 0) {
+            long offset = this.readIndex(entries - 1);
+            long recordEnd = offset >= MAGIC.length ? this.validRecordEnd(offset, size) : -1;
+            if (recordEnd >= 0) {
+                end = recordEnd;
+                break;
+            }
+            entries--;
+        }
+        this.index.truncate(entries * 8);
+        this.indexed = entries;
+        this.count = entries;
+
+        // Scan for the records appended after the last index entry
+        long recordEnd;
+        while ((recordEnd = this.validRecordEnd(end, size)) >= 0) {
+            this.addOffset(end);
+            end = recordEnd;
+        }
+        if (size > end) {
+            this.data.truncate(end);
+        }
+        this.written = end;
+        this.dataEnd = end;
+        this.flushIndex();
+    }
+
+    // End of the record at offset if it is complete and its checksum matches, otherwise -1
+    private long validRecordEnd(long offset, long size) throws IOException {
+        if (size - offset < FRAME_SIZE) {
+            return -1;
+        }
+        this.frame.clear();
+        readFully(this.data, this.frame, offset);
+        int length = this.frame.getInt(0);
+        if (length < 0 || length > size - offset - FRAME_SIZE) {
+            return -1;
+        }
+        ByteBuffer document = this.scratch(length);
+        readFully(this.data, document, offset + FRAME_SIZE);
+        if (checksum(this.crc, this.frame.array(), 0, document.array(), 0, length) != this.frame.getInt(4)) {
+            return -1;
+        }
+        return offset + FRAME_SIZE + length;
+    }
+
+    private ByteBuffer scratch(int length) {
+        if (this.scratch.capacity() < length) {
+            this.scratch = ByteBuffer.allocate(Math.max(length, this.scratch.capacity() * 2));
+        }
+        return this.scratch.clear().limit(length);
+    }
+
+    private static int checksum(CRC32C crc, byte[] frame, int frameOffset, byte[] document, int offset, int length) {
+        crc.reset();
+        crc.update(frame, frameOffset, 4);
+        crc.update(document, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Append a document.
+     * @param document the byte array containing the abit document, it is not checked.
+     * @return number of the record
+     * @throws IOException if the buffered records can't be written
+     */
+    public long append(byte[] document) throws IOException {
+        ByteBuffer target = this.reserve(document.length);
+        target.put(document);
+        return this.commit(target);
+    }
+
+    /**
+     * Append the binary form of an ABITObject, it is encoded straight into the append buffer.
+     * @param document the tree to append
+     * @return number of the record
+     * @throws IOException if the buffered records can't be written
+     * @throws ABITException if the object is too big to be encoded
+     */
+    public long append(ABITObject document) throws IOException, ABITException {
+        // A concurrent tree is held still from sizing to writing, the frame takes the length actually written
+        Lock lock = document.lock(true);
+        try {
+            ByteBuffer target = this.reserve(document.encodedSize());
+            try {
+                int written = document.writeTo(target);
+                target.putInt(this.frameStart, written);
+            }
+            catch (RuntimeException e) {
+                target.position(this.frameStart);
+                throw e;
+            }
+            return this.commit(target);
+        }
+        finally {
+            ABITObject.unlock(lock);
+        }
+    }
+
+    // Start a record of the given length, the returned buffer is positioned at its document
+    private ByteBuffer reserve(int length) throws IOException {
+        if (length > this.writeBuffer.remaining() - FRAME_SIZE) {
+            this.flushData();
+        }
+        ByteBuffer target = this.writeBuffer;
+        if (length > target.capacity() - FRAME_SIZE) {
+            target = ByteBuffer.allocate(FRAME_SIZE + length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        this.frameStart = target.position();
+        target.putInt(length);
+        target.putInt(0);
+        return target;
+    }
+
+    private long commit(ByteBuffer target) throws IOException {
+        int start = this.frameStart;
+        int length = target.position() - start - FRAME_SIZE;
+        target.putInt(start + 4, checksum(this.crc, target.array(), start, target.array(), start + FRAME_SIZE, length));
+        long offset = this.dataEnd;
+        this.dataEnd+= FRAME_SIZE + length;
+        if (target != this.writeBuffer) {
+            writeFully(this.data, target.flip(), this.written);
+            this.written = this.dataEnd;
+        }
+        this.addOffset(offset);
+        return this.count - 1;
+    }
+
+    private void addOffset(long offset) throws IOException {
+        if (this.pendingCount == this.pending.length) {
+            this.flushIndex();
+        }
+        this.pending[this.pendingCount++] = offset;
+        this.count++;
+    }
+
+    /**
+     * Get the number of records.
+     * @return number of records
+     */
+    public long size() {
+        return this.count;
+    }
+
+    /**
+     * Read a record.
+     * @param record number of the record
+     * @return the byte array containing the abit document
+     * @throws IOException if the file can't be read
+     * @throws ABITException if the record is corrupt
+     * @throws IndexOutOfBoundsException if there is no such record
+     */
+    public byte[] read(long record) throws IOException, ABITException, IndexOutOfBoundsException {
+        Objects.checkIndex(record, this.count);
+        long offset = this.offset(record);
+        if (offset >= this.written) {
+            this.flushData();
+        }
+        this.frame.clear();
+        readFully(this.data, this.frame, offset);
+        int length = this.frame.getInt(0);
+        if (this.frame.position() < FRAME_SIZE || length < 0 || length > this.written - offset - FRAME_SIZE) {
+            throw new ABITException("Corrupt record "+record);
+        }
+        byte[] document = new byte[length];
+        readFully(this.data, ByteBuffer.wrap(document), offset + FRAME_SIZE);
+        if (checksum(this.crc, this.frame.array(), 0, document, 0, length) != this.frame.getInt(4)) {
+            throw new ABITException("Corrupt record "+record);
+        }
+        return document;
+    }
+
+    private long offset(long record) throws IOException {
+        if (record >= this.indexed) {
+            return this.pending[(int) (record - this.indexed)];
+        }
+        return this.readIndex(record);
+    }
+
+    private long readIndex(long record) throws IOException {
+        this.frame.clear();
+        readFully(this.index, this.frame, record * 8);
+        return this.frame.getLong(0);
+    }
+
+    /**
+     * Get a cursor over the records in order, starting at the first one.
+     * @return the cursor
+     */
+    public Cursor scan() {
+        return new Cursor(MAGIC.length, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Get a cursor over the records in order, starting at a given one.
+     * @param record number of the first record, may be size() for an empty scan
+     * @return the cursor
+     * @throws IOException if the index can't be read
+     * @throws IndexOutOfBoundsException if there is no such record
+     */
+    public Cursor scan(long record) throws IOException, IndexOutOfBoundsException {
+        Objects.checkIndex(record, this.count + 1);
+        return new Cursor(record == this.count ? this.dataEnd : this.offset(record), record, Long.MAX_VALUE);
+    }
+
+    /**
+     * Cursor over the records from up to to, which only reads the files, so cursors on several threads may be created
+     * and used at once as long as nothing is appended. The records have to be flushed before.
+     */
+    Cursor cursor(long from, long to) throws IOException {
+        long position = this.dataEnd;
+        if (from < this.count) {
+            ByteBuffer entry = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(this.index, entry, from * 8);
+            position = entry.getLong(0);
+        }
+        return new Cursor(position, from, to);
+    }
+
+    /**
+     * Write the buffered records and the pending index entries to the files.
+     * @throws IOException if they can't be written
+     */
+    public void flush() throws IOException {
+        this.flushIndex();
+    }
+
+    /**
+     * Write the buffered records and the pending index entries and force both files to the storage device.
+     * @throws IOException if they can't be written
+     */
+    public void sync() throws IOException {
+        this.flushIndex();
+        this.data.force(false);
+        this.index.force(false);
+    }
+
+    private void flushData() throws IOException {
+        if (this.writeBuffer.position() == 0) {
+            return;
+        }
+        writeFully(this.data, this.writeBuffer.flip(), this.written);
+        this.writeBuffer.clear();
+        this.written = this.dataEnd;
+    }
+
+    private void flushIndex() throws IOException {
+        // The index never points past the records in the file
+        this.flushData();
+        if (this.pendingCount == 0) {
+            return;
+        }
+        this.indexBuffer.clear();
+        for (int i = 0; i < this.pendingCount; i++) {
+            this.indexBuffer.putLong(this.pending[i]);
+        }
+        writeFully(this.index, this.indexBuffer.flip(), this.indexed * 8);
+        this.indexed+= this.pendingCount;
+        this.pendingCount = 0;
+    }
+
+    /**
+     * Write the buffered records and the pending index entries and close the files.
+     * @throws IOException if they can't be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            this.flushIndex();
+        }
+        finally {
+            try {
+                this.data.close();
+            }
+            finally {
+                this.index.close();
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                return;
+            }
+            position+= read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position+= channel.write(buffer, position);
+        }
+    }
+
+    // Sequential reader over the records, reading the file in big chunks into a buffer it reuses.
+    public class Cursor {
+
+        private ByteBuffer buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN).limit(0);
+        private ByteBuffer document = this.buffer.asReadOnlyBuffer();
+        // File offset of the first byte in the buffer
+        private long bufferStart = 0;
+        private final CRC32C crc = new CRC32C();
+        private long position;
+        private long record;
+        private final long end;
+
+        private Cursor(long position, long record, long end) {
+            this.position = position;
+            this.record = record - 1;
+            this.end = end;
+        }
+
+        /**
+         * Move to the next record.
+         * @return false if there are no more records
+         * @throws IOException if the file can't be read
+         * @throws ABITException if the record is corrupt
+         */
+        public boolean next() throws IOException, ABITException {
+            if (this.record + 1 >= Math.min(this.end, ABITRecordFile.this.count)) {
+                return false;
+            }
+            this.record++;
+            if (this.position >= ABITRecordFile.this.written) {
+                ABITRecordFile.this.flushData();
+            }
+            int frameOffset = this.fill(FRAME_SIZE);
+            int length = this.buffer.getInt(frameOffset);
+            if (length < 0) {
+                throw new ABITException("Corrupt record "+this.record);
+            }
+            frameOffset = this.fill(FRAME_SIZE + length);
+            byte[] array = this.buffer.array();
+            if (checksum(this.crc, array, frameOffset, array, frameOffset + FRAME_SIZE, length) != this.buffer.getInt(frameOffset + 4)) {
+                throw new ABITException("Corrupt record "+this.record);
+            }
+            this.document.limit(frameOffset + FRAME_SIZE + length).position(frameOffset + FRAME_SIZE);
+            this.position+= FRAME_SIZE + length;
+            return true;
+        }
+
+        // Make the next length bytes at the cursor's position available in the buffer and return their offset in it
+        private int fill(int length) throws IOException, ABITException {
+            long offset = this.position - this.bufferStart;
+            if (offset >= 0 && offset + length <= this.buffer.limit()) {
+                return (int) offset;
+            }
+            if (length > ABITRecordFile.this.written - this.position) {
+                throw new ABITException("Corrupt record "+this.record);
+            }
+            if (length > this.buffer.capacity()) {
+                this.buffer = ByteBuffer.allocate(Math.max(length, this.buffer.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+                this.document = this.buffer.asReadOnlyBuffer();
+            }
+            this.buffer.clear();
+            this.buffer.limit((int) Math.min(this.buffer.capacity(), ABITRecordFile.this.written - this.position));
+            readFully(ABITRecordFile.this.data, this.buffer, this.position);
+            this.buffer.flip();
+            this.bufferStart = this.position;
+            if (this.buffer.limit() < length) {
+                throw new ABITException("Corrupt record "+this.record);
+            }
+            return 0;
+        }
+
+        /**
+         * Get the number of the current record.
+         * @return number of the record
+         */
+        public long record() {
+            return this.record;
+        }
+
+        /**
+         * Get the document of the current record as a read-only buffer over the cursor's own buffer,
+         * it is only valid until the next call of next().
+         * @return buffer with the abit document between its position and limit
+         */
+        public ByteBuffer document() {
+            return this.document;
+        }
+
+        /**
+         * Get a view over the document of the current record, it is only valid until the next call of next().
+         * @return the view
+         */
+        public ABITView view() {
+            return new ABITView(this.document);
+        }
+
+        /**
+         * Decode the document of the current record.
+         * @return the decoded tree
+         * @throws ABITException if the document is corrupt
+         */
+        public ABITObject object() throws ABITException {
+            byte[] copy = new byte[this.document.remaining()];
+            this.document.get(this.document.position(), copy);
+            return new ABITObject(copy);
+        }
+    }
+}
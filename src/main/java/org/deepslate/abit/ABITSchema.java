@@ -0,0 +1,198 @@
+package org.deepslate.abit;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// Shape of an abit value: a type, the element schema of an array, or the keys of a tree with the schema of each.
+// Tree schemas are compiled into sorted arrays whenever a key is added, decoding a document with a schema
+// matches the entries against the expected keys by position and checks each type once.
+// The value schemas NULL, BOOLEAN, INTEGER, BLOB, STRING and ANY are shared and can't be changed.
+
+public class ABITSchema {
+
+    public static final ABITSchema NULL = new ABITSchema(0, null);
+    public static final ABITSchema BOOLEAN = new ABITSchema(1, null);
+    public static final ABITSchema INTEGER = new ABITSchema(2, null);
+    public static final ABITSchema BLOB = new ABITSchema(3, null);
+    public static final ABITSchema STRING = new ABITSchema(4, null);
+    // Any value, decoded without checks beyond the format's own
+    public static final ABITSchema ANY = new ABITSchema(-1, null);
+
+    // Expected type, -1 for any
+    final int type;
+    // Schema of every element of an array
+    final ABITSchema element;
+
+    private final SortedMap<ABITKey, ABITSchema> children;
+    private final SortedMap<ABITKey, Boolean> requiredKeys;
+
+    // Sorted copy of children for the decoder
+    ABITKey[] keys = new ABITKey[0];
+    ABITSchema[] schemas = new ABITSchema[0];
+    boolean[] required = new boolean[0];
+    boolean unknownKeys = false;
+
+    /**
+     * Initialize an empty tree schema, add its keys with required() and optional().
+     */
+    public ABITSchema() {
+        this.type = 6;
+        this.element = null;
+        this.children = new TreeMap<>();
+        this.requiredKeys = new TreeMap<>();
+    }
+
+    private ABITSchema(int type, ABITSchema element) {
+        this.type = type;
+        this.element = element;
+        this.children = null;
+        this.requiredKeys = null;
+    }
+
+    /**
+     * Get the schema of an array holding only values of one schema.
+     * @param element schema of every element
+     * @return the array schema
+     */
+    public static ABITSchema arrayOf(ABITSchema element) {
+        return new ABITSchema(5, element);
+    }
+
+    /**
+     * Add a key every tree of this schema has.
+     * @param key the key
+     * @param schema schema of its value
+     * @return this schema
+     * @throws IllegalArgumentException if the key is incompatible
+     * @throws IllegalStateException if this isn't a tree schema
+     */
+    public ABITSchema required(String key, ABITSchema schema) throws IllegalArgumentException, IllegalStateException {
+        return this.add(key, schema, true);
+    }
+
+    /**
+     * Add a key trees of this schema may have.
+     * @param key the key
+     * @param schema schema of its value
+     * @return this schema
+     * @throws IllegalArgumentException if the key is incompatible
+     * @throws IllegalStateException if this isn't a tree schema
+     */
+    public ABITSchema optional(String key, ABITSchema schema) throws IllegalArgumentException, IllegalStateException {
+        return this.add(key, schema, false);
+    }
+
+    /**
+     * Let trees of this schema have keys the schema doesn't list, their values are decoded without checks.
+     * By default they are rejected.
+     * @param allow whether to allow unknown keys
+     * @return this schema
+     * @throws IllegalStateException if this isn't a tree schema
+     */
+    public ABITSchema allowUnknownKeys(boolean allow) throws IllegalStateException {
+        if (this.children == null) {
+            throw new IllegalStateException("Only tree schemas have keys");
+        }
+        this.unknownKeys = allow;
+        return this;
+    }
+
+    private ABITSchema add(String key, ABITSchema schema, boolean required) throws IllegalArgumentException, IllegalStateException {
+        if (this.children == null) {
+            throw new IllegalStateException("Only tree schemas have keys");
+        }
+        ABITKey abitKey = ABITKey.of(key);
+        this.children.put(abitKey, schema);
+        this.requiredKeys.put(abitKey, required);
+        this.compile();
+        return this;
+    }
+
+    private void compile() {
+        ABITKey[] keys = new ABITKey[this.children.size()];
+        ABITSchema[] schemas = new ABITSchema[keys.length];
+        boolean[] required = new boolean[keys.length];
+        int i = 0;
+        for (Map.Entry<ABITKey, ABITSchema> entry: this.children.entrySet()) {
+            keys[i] = entry.getKey();
+            schemas[i] = entry.getValue();
+            required[i] = this.requiredKeys.get(entry.getKey());
+            i++;
+        }
+        this.schemas = schemas;
+        this.required = required;
+        this.keys = keys;
+    }
+
+    /**
+     * Check that a tree has the shape of this schema, e.g. before encoding it.
+     * @param tree the tree to check
+     * @throws ABITException naming the first key path that doesn't fit
+     */
+    public void check(ABITObject tree) throws ABITException {
+        this.check(tree, "");
+    }
+
+    private void check(ABITObject obj, String path) throws ABITException {
+        if (this.type < 0) {
+            return;
+        }
+        if (obj.type != this.type) {
+            throw mismatch(this.type, obj.type, path, -1);
+        }
+        if (this.type == 5) {
+            List<ABITObject> array = obj.array();
+            for (int i = 0; i < array.size(); i++) {
+                this.element.check(array.get(i), path+"["+i+"]");
+            }
+        }
+        else if (this.type == 6) {
+            SortedMap<ABITKey, ABITObject> tree = obj.tree();
+            int known = 0;
+            for (int i = 0; i < this.keys.length; i++) {
+                ABITObject value = tree.get(this.keys[i]);
+                if (value == null) {
+                    if (this.required[i]) {
+                        throw new ABITException("Missing key "+path(path, this.keys[i]));
+                    }
+                    continue;
+                }
+                this.schemas[i].check(value, path(path, this.keys[i]));
+                known++;
+            }
+            if (!this.unknownKeys && tree.size() > known) {
+                for (ABITKey key: tree.keySet()) {
+                    if (!this.children.containsKey(key)) {
+                        throw new ABITException("Unexpected key "+path(path, key));
+                    }
+                }
+            }
+        }
+    }
+
+    static String path(String path, ABITKey key) {
+        return path.isEmpty() ? key.toString() : path+"."+key;
+    }
+
+    static ABITException mismatch(int expected, int found, String path, int offset) {
+        String name;
+        try {
+            name = ABITView.typeName(found);
+        }
+        catch (ABITException e) {
+            name = "invalid type "+found;
+        }
+        return new ABITException("Expected "+typeName(expected)+" at "+(path.isEmpty() ? "document" : path)+", found "+name+(offset >= 0 ? " at "+offset : ""));
+    }
+
+    private static String typeName(int type) {
+        try {
+            return ABITView.typeName(type);
+        }
+        catch (ABITException e) {
+            return "any";
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.deepslate.abit;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// String value of an abit document. A decoded string keeps its UTF-8 bytes and only becomes a java.lang.String the
+// first time it's read, so a document that is decoded, changed elsewhere and encoded again copies its strings as bytes
+// without ever transcoding them. Strings put from Java keep the String and are encoded when the document is written.
+// Comparisons are byte-wise on the UTF-8 encoding, a probe made with of() is encoded once and compared to any number
+// of decoded strings without materializing them.
+
+public final class ABITString implements Comparable<ABITString> {
+
+    // UTF-8 encoding, null for strings put from Java
+    final byte[] bytes;
+    // Decoded on first use, a String is safe to share between threads even when published through a race
+    private String string;
+    private int hash;
+
+    ABITString(String string) {
+        this.bytes = null;
+        this.string = string;
+    }
+
+    private ABITString(String string, byte[] bytes) {
+        this.bytes = bytes;
+        this.string = string;
+    }
+
+    /**
+     * Create a string holding its UTF-8 encoding, to be compared with decoded strings.
+     * @param string the string
+     * @return ABITString holding the string and its UTF-8 encoding
+     * @throws ABITException if the string is too long for abit
+     */
+    public static ABITString of(String string) throws ABITException {
+        ABITObject.isCompatibleString(string);
+        return new ABITString(string, string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Create a string from its encoded form inside a document.
+     */
+    static ABITString decode(byte[] blob, int offset, int length) {
+        return new ABITString(null, Arrays.copyOfRange(blob, offset, offset+length));
+    }
+
+    byte[] utf8() {
+        return this.bytes != null ? this.bytes : this.string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    long encodedLength() {
+        return this.bytes != null ? this.bytes.length : ABITObject.utf8Length(this.string);
+    }
+
+    void write(ByteBuffer out) {
+        if (this.bytes != null) {
+            out.put(this.bytes);
+        }
+        else {
+            ABITObject.writeUtf8(this.string, out);
+        }
+    }
+
+    /**
+     * Get the number of bytes the string uses when encoded with UTF-8.
+     * @return length of the string in bytes
+     */
+    public int length() {
+        return (int) this.encodedLength();
+    }
+
+    /**
+     * Compare strings by their UTF-8 encoding byte by byte, which orders them by code point.
+     */
+    @Override
+    public int compareTo(ABITString other) {
+        return Arrays.compareUnsigned(this.utf8(), other.utf8());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ABITString str)) {
+            return false;
+        }
+        if (this.encodedLength() != str.encodedLength()) {
+            return false;
+        }
+        return Arrays.equals(this.utf8(), str.utf8());
+    }
+
+    @Override
+    public int hashCode() {
+        int h = this.hash;
+        if (h == 0) {
+            h = Arrays.hashCode(this.utf8());
+            this.hash = h;
+        }
+        return h;
+    }
+
+    /**
+     * Get the string, decoding it on first use.
+     * @return the string
+     */
+    @Override
+    public String toString() {
+        String s = this.string;
+        if (s == null) {
+            s = new String(this.bytes, StandardCharsets.UTF_8);
+            this.string = s;
+        }
+        return s;
+    }
+}
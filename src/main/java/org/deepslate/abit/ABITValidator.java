@@ -0,0 +1,320 @@
+package org.deepslate.abit;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Single pass structural check of an abit document against the full spec, without decoding it.
+// An instance keeps its nesting stack between calls, so validating with a reused instance doesn't allocate.
+// Instances are not thread safe, use one per thread.
+
+public class ABITValidator {
+
+    public enum Error {
+        INVALID_TYPE,
+        INVALID_NULL,
+        INVALID_BOOLEAN,
+        INVALID_INTEGER_SIZE,
+        NON_MINIMAL_INTEGER,
+        INVALID_LENGTH,
+        OUT_OF_BOUNDS,
+        INVALID_KEY_ORDER,
+        INVALID_UTF8,
+        MISSING_VALUE,
+        TOO_DEEP
+    }
+
+    private static final int DEFAULT_MAX_DEPTH = 512;
+
+    private final int maxDepth;
+    private int[] ends = new int[16];
+    private int[] lastKeys = new int[16];
+    private boolean[] trees = new boolean[16];
+    private byte[] scratch = new byte[0];
+
+    private Error error;
+    private int errorOffset = -1;
+
+    /**
+     * Initialize an ABITValidator accepting up to 512 levels of nested arrays and trees.
+     */
+    public ABITValidator() {
+        this(DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Initialize an ABITValidator.
+     * @param maxDepth maximum number of nested arrays and trees a valid document may have.
+     */
+    public ABITValidator(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Get the error found by the last validation.
+     * @return the error or null if the document was valid
+     */
+    public Error getError() {
+        return this.error;
+    }
+
+    /**
+     * Get the offset of the error found by the last validation, relative to the start of the array or buffer.
+     * @return offset of the offending byte or -1 if the document was valid
+     */
+    public int getErrorOffset() {
+        return this.errorOffset;
+    }
+
+    /**
+     * Validate an abit document.
+     * @param document the byte array containing the abit document.
+     * @return null if the document is valid, otherwise the error which is also kept with its offset
+     */
+    public Error validate(byte[] document) {
+        return validate(document, 0, document.length);
+    }
+
+    /**
+     * Validate the remaining bytes of a buffer as an abit document, the buffer's position is left untouched.
+     * Buffers which aren't backed by an array are copied into a scratch array that is kept for reuse.
+     * @param document the buffer containing the abit document.
+     * @return null if the document is valid, otherwise the error which is also kept with its offset
+     */
+    public Error validate(ByteBuffer document) {
+        if (document.hasArray()) {
+            return validate(document.array(), document.arrayOffset() + document.position(), document.remaining(), document.position());
+        }
+        if (this.scratch.length < document.remaining()) {
+            this.scratch = new byte[document.remaining()];
+        }
+        document.get(document.position(), this.scratch, 0, document.remaining());
+        return validate(this.scratch, 0, document.remaining(), document.position());
+    }
+
+    /**
+     * Validate an abit document inside part of a byte array.
+     * @param document the byte array containing the abit document.
+     * @param offset offset of the document inside the array.
+     * @param length length of the document.
+     * @return null if the document is valid, otherwise the error which is also kept with its offset
+     */
+    public Error validate(byte[] document, int offset, int length) {
+        return validate(document, offset, length, offset);
+    }
+
+    /**
+     * Validate an abit document and throw if it isn't valid.
+     * @param document the byte array containing the abit document.
+     * @throws ABITException describing the error and its offset
+     */
+    public void check(byte[] document) throws ABITException {
+        if (validate(document) != null) {
+            throw new ABITException("Invalid ABIT, "+this.error+" at "+this.errorOffset);
+        }
+    }
+
+    private Error fail(Error error, int offset) {
+        this.error = error;
+        this.errorOffset = offset;
+        return error;
+    }
+
+    private Error validate(byte[] blob, int offset, int length, int reportedOffset) {
+        this.error = null;
+        this.errorOffset = -1;
+        // Offsets are reported relative to the caller's view of the document
+        int shift = reportedOffset - offset;
+
+        int depth = 0;
+        this.ends[0] = offset + length;
+        this.trees[0] = true;
+        this.lastKeys[0] = -1;
+
+        int idx = offset;
+        while (true) {
+            int end = this.ends[depth];
+            if (idx == end) {
+                if (depth == 0) {
+                    return null;
+                }
+                depth--;
+                continue;
+            }
+
+            if (this.trees[depth]) {
+                int keyLength = (blob[idx]&0xff)+1;
+                if (keyLength > end - idx - 1) {
+                    return fail(Error.OUT_OF_BOUNDS, idx + shift);
+                }
+                if (!isUtf8(blob, idx+1, keyLength)) {
+                    return fail(Error.INVALID_UTF8, idx + shift);
+                }
+                int lastKey = this.lastKeys[depth];
+                if (lastKey >= 0 && compareKeys(blob, lastKey, idx) >= 0) {
+                    return fail(Error.INVALID_KEY_ORDER, idx + shift);
+                }
+                this.lastKeys[depth] = idx;
+                idx+= 1 + keyLength;
+                if (idx == end) {
+                    return fail(Error.MISSING_VALUE, idx + shift);
+                }
+            }
+
+            int header = blob[idx];
+            int size = ((header & 0xf0) >> 4) + 1;
+            int type = header & 0x0f;
+            switch (type) {
+                case 0:
+                    if (header != 0x00) {
+                        return fail(Error.INVALID_NULL, idx + shift);
+                    }
+                    idx+= 1;
+                    break;
+                case 1:
+                    if (header != 0b00000001 && header != 0b00010001) {
+                        return fail(Error.INVALID_BOOLEAN, idx + shift);
+                    }
+                    idx+= 1;
+                    break;
+                case 2:
+                    if (size > 8) {
+                        return fail(Error.INVALID_INTEGER_SIZE, idx + shift);
+                    }
+                    if (size > end - idx - 1) {
+                        return fail(Error.OUT_OF_BOUNDS, idx + shift);
+                    }
+                    if (ABITObject.integerSize(readInteger(blob, idx, size)) != size) {
+                        return fail(Error.NON_MINIMAL_INTEGER, idx + shift);
+                    }
+                    idx+= 1 + size;
+                    break;
+                case 3:
+                case 4:
+                case 5:
+                case 6:
+                    if (size > 4) {
+                        return fail(Error.INVALID_INTEGER_SIZE, idx + shift);
+                    }
+                    if (size > end - idx - 1) {
+                        return fail(Error.OUT_OF_BOUNDS, idx + shift);
+                    }
+                    long payloadLength = readInteger(blob, idx, size);
+                    if (payloadLength < 0) {
+                        return fail(Error.INVALID_LENGTH, idx + shift);
+                    }
+                    if (ABITObject.integerSize(payloadLength) != size) {
+                        return fail(Error.NON_MINIMAL_INTEGER, idx + shift);
+                    }
+                    int payloadOffset = idx + 1 + size;
+                    if (payloadLength > end - payloadOffset) {
+                        return fail(Error.OUT_OF_BOUNDS, idx + shift);
+                    }
+                    if (type == 3) {
+                        idx = payloadOffset + (int) payloadLength;
+                    }
+                    else if (type == 4) {
+                        if (!isUtf8(blob, payloadOffset, (int) payloadLength)) {
+                            return fail(Error.INVALID_UTF8, idx + shift);
+                        }
+                        idx = payloadOffset + (int) payloadLength;
+                    }
+                    else {
+                        if (depth + 1 > this.maxDepth) {
+                            return fail(Error.TOO_DEEP, idx + shift);
+                        }
+                        depth++;
+                        if (depth == this.ends.length) {
+                            this.ends = Arrays.copyOf(this.ends, depth*2);
+                            this.lastKeys = Arrays.copyOf(this.lastKeys, depth*2);
+                            this.trees = Arrays.copyOf(this.trees, depth*2);
+                        }
+                        this.ends[depth] = payloadOffset + (int) payloadLength;
+                        this.trees[depth] = type == 6;
+                        this.lastKeys[depth] = -1;
+                        idx = payloadOffset;
+                    }
+                    break;
+                default:
+                    return fail(Error.INVALID_TYPE, idx + shift);
+            }
+        }
+    }
+
+    private static long readInteger(byte[] blob, int offset, int size) {
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value <<= 8;
+            value |= (blob[offset+1 +size - 1 - i] & 0xFF);
+        }
+        if ((blob[offset+size] & 0x80) != 0 && size < 8) {
+            value -= (1L << size*8);
+        }
+        return value;
+    }
+
+    // Same order as ABITObject.keyCompare
+    private static int compareKeys(byte[] blob, int a, int b) {
+        int aLength = (blob[a]&0xff)+1;
+        int bLength = (blob[b]&0xff)+1;
+        if (aLength != bLength) {
+            return Integer.compare(aLength, bLength);
+        }
+        for (int i = 1; i <= aLength; i++) {
+            int cmp = Byte.compare(blob[a+i], blob[b+i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Check for well-formed UTF-8, rejecting overlong forms, surrogates and code points past U+10FFFF.
+     */
+    static boolean isUtf8(byte[] blob, int offset, int length) {
+        int idx = offset;
+        int end = offset + length;
+        while (idx < end) {
+            int b = blob[idx];
+            if (b >= 0) {
+                idx++;
+                continue;
+            }
+            int lead = b & 0xff;
+            if (lead >= 0xc2 && lead <= 0xdf) {
+                if (end - idx < 2 || !isContinuation(blob[idx+1])) {
+                    return false;
+                }
+                idx+= 2;
+            }
+            else if (lead >= 0xe0 && lead <= 0xef) {
+                if (end - idx < 3) {
+                    return false;
+                }
+                int b1 = blob[idx+1] & 0xff;
+                if ((lead == 0xe0 && b1 < 0xa0) || (lead == 0xed && b1 > 0x9f) || !isContinuation(blob[idx+1]) || !isContinuation(blob[idx+2])) {
+                    return false;
+                }
+                idx+= 3;
+            }
+            else if (lead >= 0xf0 && lead <= 0xf4) {
+                if (end - idx < 4) {
+                    return false;
+                }
+                int b1 = blob[idx+1] & 0xff;
+                if ((lead == 0xf0 && b1 < 0x90) || (lead == 0xf4 && b1 > 0x8f) || !isContinuation(blob[idx+1]) || !isContinuation(blob[idx+2]) || !isContinuation(blob[idx+3])) {
+                    return false;
+                }
+                idx+= 4;
+            }
+            else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xc0) == 0x80;
+    }
+}
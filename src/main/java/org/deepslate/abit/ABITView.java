@@ -0,0 +1,351 @@
+package org.deepslate.abit;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Read-only view over an encoded abit tree, values are only decoded when they are asked for.
+
+public class ABITView {
+
+    final ByteBuffer buffer;
+    final int offset;
+    final int end;
+
+    /**
+     * Initialize an ABITView over an abit document inside a byte array, the array is not copied.
+     * @param document the byte array containing the abit document.
+     */
+    public ABITView(byte[] document) {
+        this(ByteBuffer.wrap(document), 0, document.length);
+    }
+
+    /**
+     * Initialize an ABITView over the remaining bytes of a buffer, the buffer is not copied and its position is left untouched.
+     * @param document the buffer containing the abit document.
+     */
+    public ABITView(ByteBuffer document) {
+        this(document, document.position(), document.limit());
+    }
+
+    ABITView(ByteBuffer buffer, int offset, int end) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.end = end;
+    }
+
+    static int decodeType(ByteBuffer blob, int offset) {
+        return blob.get(offset) & 0x0f;
+    }
+
+    static int decodeMetadataLength(ByteBuffer blob, int offset) {
+        return ((blob.get(offset) & 0xf0) >> 4) + 1;
+    }
+
+    static long decodeInteger(ByteBuffer blob, int offset, int maxSize) throws ABITException {
+        int size = decodeMetadataLength(blob, offset);
+
+        if (size > maxSize) {
+            throw new ABITException("Invalid integer size at "+offset);
+        }
+
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value <<= 8;
+            value |= (blob.get(offset+1 +size - 1 - i) & 0xFF);
+        }
+        if ((blob.get(offset+size) & 0x80) != 0 && size < 8) {
+            value -= (1L << size*8);
+        }
+        return value;
+    }
+
+    /**
+     * Length of the payload following the header of a blob, string, array or tree.
+     */
+    static int decodeLength(ByteBuffer blob, int offset, int end) throws ABITException {
+        if (offset+1+decodeMetadataLength(blob, offset) > end) {
+            throw new ABITException("Corrupt ABIT at "+offset);
+        }
+        long length = decodeInteger(blob, offset, 4);
+        int payloadOffset = offset+1+decodeMetadataLength(blob, offset);
+        if (length < 0 || length > end - payloadOffset) {
+            throw new ABITException("Corrupt ABIT at "+offset);
+        }
+        return (int) length;
+    }
+
+    /**
+     * Total number of bytes used by the value starting at offset, header included.
+     */
+    static int valueLength(ByteBuffer blob, int offset, int end) throws ABITException {
+        switch (decodeType(blob, offset)) {
+            case 0:
+            case 1:
+                return 1;
+            case 2:
+                int size = 1 + decodeMetadataLength(blob, offset);
+                if (size > end - offset) {
+                    throw new ABITException("Corrupt ABIT at "+offset);
+                }
+                return size;
+            case 3:
+            case 4:
+            case 5:
+            case 6:
+                return 1 + decodeMetadataLength(blob, offset) + decodeLength(blob, offset, end);
+            default:
+                throw new ABITException("Invalid type at "+offset);
+        }
+    }
+
+    static int compareKey(ByteBuffer blob, int offset, byte[] key) {
+        int keyLength = (blob.get(offset)&0xff)+1;
+        if (keyLength != key.length) {
+            return Integer.compare(keyLength, key.length);
+        }
+        for (int i = 0; i < keyLength; i++) {
+            int cmp = Byte.compare(blob.get(offset+1+i), key[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Offset of the value stored under key, or -1 when the tree doesn't contain the key.
+     * Keys are sorted, so the walk stops as soon as it passes the place the key would be.
+     */
+    int find(String key) throws ABITException {
+        return find(this.buffer, this.offset, this.end, key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static int find(ByteBuffer blob, int offset, int end, byte[] key) throws ABITException {
+        int idx = offset;
+        while (idx < end) {
+            if (idx + 2 + (blob.get(idx)&0xff) >= end) {
+                throw new ABITException("Corrupt ABIT");
+            }
+            int cmp = compareKey(blob, idx, key);
+            idx+= 2 + (blob.get(idx)&0xff);
+            if (cmp == 0) {
+                return idx;
+            }
+            if (cmp > 0) {
+                return -1;
+            }
+            idx+= valueLength(blob, idx, end);
+        }
+        return -1;
+    }
+
+    private int require(String key, int type) throws ABITException {
+        int idx = find(key);
+        if (idx < 0) {
+            throw new ABITException("Key not found");
+        }
+        if (decodeType(this.buffer, idx) != type) {
+            throw new ABITException("Object is not of type "+typeName(type));
+        }
+        return idx;
+    }
+
+    static String typeName(int type) throws ABITException {
+        switch (type) {
+            case 0:
+                return "null";
+            case 1:
+                return "boolean";
+            case 2:
+                return "integer";
+            case 3:
+                return "blob";
+            case 4:
+                return "string";
+            case 5:
+                return "array";
+            case 6:
+                return "tree";
+            default:
+                throw new ABITException("Invalid type");
+        }
+    }
+
+    static void decodeNull(ByteBuffer blob, int offset) throws ABITException {
+        if (blob.get(offset) != 0x00) {
+            throw new ABITException("Byte at "+offset+" is not a null");
+        }
+    }
+
+    static boolean decodeBoolean(ByteBuffer blob, int offset) throws ABITException {
+        switch (blob.get(offset)) {
+            case 0b00000001:
+                return false;
+            case 0b00010001:
+                return true;
+            default:
+                throw new ABITException("Byte at "+offset+" is not a boolean");
+        }
+    }
+
+    static ByteBuffer slice(ByteBuffer blob, int offset, int end) throws ABITException {
+        int length = decodeLength(blob, offset, end);
+        return blob.slice(offset+1+decodeMetadataLength(blob, offset), length).asReadOnlyBuffer();
+    }
+
+    static byte[] decodeBlob(ByteBuffer blob, int offset, int end) throws ABITException {
+        int length = decodeLength(blob, offset, end);
+        byte[] out = new byte[length];
+        blob.get(offset+1+decodeMetadataLength(blob, offset), out, 0, length);
+        return out;
+    }
+
+    static String decodeString(ByteBuffer blob, int offset, int end) throws ABITException {
+        int length = decodeLength(blob, offset, end);
+        int stringOffset = offset+1+decodeMetadataLength(blob, offset);
+        if (blob.hasArray()) {
+            return new String(blob.array(), blob.arrayOffset()+stringOffset, length, StandardCharsets.UTF_8);
+        }
+        byte[] out = new byte[length];
+        blob.get(stringOffset, out, 0, length);
+        return new String(out, StandardCharsets.UTF_8);
+    }
+
+    static ABITView decodeTree(ByteBuffer blob, int offset, int end) throws ABITException {
+        int length = decodeLength(blob, offset, end);
+        int treeOffset = offset+1+decodeMetadataLength(blob, offset);
+        return new ABITView(blob, treeOffset, treeOffset+length);
+    }
+
+    static ABITArrayView decodeArray(ByteBuffer blob, int offset, int end) throws ABITException {
+        int length = decodeLength(blob, offset, end);
+        int arrayOffset = offset+1+decodeMetadataLength(blob, offset);
+        return new ABITArrayView(blob, arrayOffset, arrayOffset+length);
+    }
+
+    /**
+     * Check if the tree contains an object under the specified key.
+     * @param key key to look for
+     * @return true if the key is present
+     * @throws ABITException
+     */
+    public boolean containsKey(String key) throws ABITException {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Get the type of the object at specified key.
+     * @param key key of the object to check the type of
+     * @return string of type: "null" / "boolean" / "integer" / "blob" / "string" / "array" / "tree"
+     * @throws ABITException
+     */
+    public String getType(String key) throws ABITException {
+        int idx = find(key);
+        if (idx < 0) {
+            throw new ABITException("Key not found");
+        }
+        return typeName(decodeType(this.buffer, idx));
+    }
+
+    /**
+     * Get object associated with key from tree
+     * @param key
+     * @return null object
+     * @throws ABITException
+     */
+    public ABITObject.NULL_t getNull(String key) throws ABITException {
+        decodeNull(this.buffer, require(key, 0));
+        return ABITObject.NULL;
+    }
+
+    /**
+     * Get object associated with key from tree
+     * @param key
+     * @return boolean
+     * @throws ABITException
+     */
+    public boolean getBoolean(String key) throws ABITException {
+        return decodeBoolean(this.buffer, require(key, 1));
+    }
+
+    /**
+     * Get object associated with key from tree
+     * @param key
+     * @return integer
+     * @throws ABITException
+     */
+    public long getInteger(String key) throws ABITException {
+        int idx = require(key, 2);
+        valueLength(this.buffer, idx, this.end);
+        return decodeInteger(this.buffer, idx, 8);
+    }
+
+    /**
+     * Get object associated with key from tree, the bytes are copied out of the document.
+     * @param key
+     * @return blob
+     * @throws ABITException
+     */
+    public byte[] getBlob(String key) throws ABITException {
+        return decodeBlob(this.buffer, require(key, 3), this.end);
+    }
+
+    /**
+     * Get object associated with key from tree without copying it.
+     * @param key
+     * @return read-only buffer spanning the blob inside the document
+     * @throws ABITException
+     */
+    public ByteBuffer getBlobBuffer(String key) throws ABITException {
+        return slice(this.buffer, require(key, 3), this.end);
+    }
+
+    /**
+     * Get object associated with key from tree
+     * @param key
+     * @return string
+     * @throws ABITException
+     */
+    public String getString(String key) throws ABITException {
+        return decodeString(this.buffer, require(key, 4), this.end);
+    }
+
+    /**
+     * Get object associated with key from tree
+     * @param key
+     * @return ABITArrayView over the nested array
+     * @throws ABITException
+     */
+    public ABITArrayView getArray(String key) throws ABITException {
+        return decodeArray(this.buffer, require(key, 5), this.end);
+    }
+
+    /**
+     * Get object associated with key from tree
+     * @param key
+     * @return ABITView over the nested tree
+     * @throws ABITException
+     */
+    public ABITView getTree(String key) throws ABITException {
+        return decodeTree(this.buffer, require(key, 6), this.end);
+    }
+
+    /**
+     * Get the encoded bytes of this tree without copying them.
+     * @return read-only buffer spanning the tree entries
+     */
+    public ByteBuffer getBuffer() {
+        return this.buffer.slice(this.offset, this.end - this.offset).asReadOnlyBuffer();
+    }
+
+    /**
+     * Fully decode the viewed tree.
+     * @return ABITObject containing every entry of this tree
+     * @throws ABITException
+     */
+    public ABITObject toABITObject() throws ABITException {
+        byte[] document = new byte[this.end - this.offset];
+        this.buffer.get(this.offset, document, 0, document.length);
+        return new ABITObject(document);
+    }
+}
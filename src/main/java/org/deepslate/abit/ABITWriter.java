@@ -0,0 +1,484 @@
+package org.deepslate.abit;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+
+// Streaming writer emitting an abit document straight to a stream or channel.
+// Entries of the document itself are written through as they come, nested arrays and trees are
+// buffered until they are closed as their length has to be written in front of them.
+
+public class ABITWriter implements Closeable, Flushable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final OutputStream out;
+    private final WritableByteChannel channel;
+    private final int flushSize;
+
+    // One entry per open array or tree, index 0 is the document itself.
+    private byte[][] buffers = new byte[16][];
+    private int[] lengths = new int[16];
+    private boolean[] trees = new boolean[16];
+    private byte[][] keys = new byte[16][];
+    private int[] keyLengths = new int[16];
+    private int depth = -1;
+    private boolean started = false;
+    private boolean afterKey = false;
+
+    /**
+     * Initialize an ABITWriter writing a document to a stream.
+     * @param out stream to write the abit document to.
+     */
+    public ABITWriter(OutputStream out) {
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Initialize an ABITWriter writing a document to a stream.
+     * @param out stream to write the abit document to.
+     * @param bufferSize number of bytes of the document itself which are collected before writing them out.
+     */
+    public ABITWriter(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.channel = null;
+        this.flushSize = Math.max(bufferSize, 16);
+    }
+
+    /**
+     * Initialize an ABITWriter writing a document to a channel.
+     * @param channel channel to write the abit document to.
+     */
+    public ABITWriter(WritableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Initialize an ABITWriter writing a document to a channel.
+     * @param channel channel to write the abit document to.
+     * @param bufferSize number of bytes of the document itself which are collected before writing them out.
+     */
+    public ABITWriter(WritableByteChannel channel, int bufferSize) {
+        this.out = null;
+        this.channel = channel;
+        this.flushSize = Math.max(bufferSize, 16);
+    }
+
+    private void writeSink(byte[] b, int off, int len) throws IOException {
+        if (this.out != null) {
+            this.out.write(b, off, len);
+            return;
+        }
+        ByteBuffer src = ByteBuffer.wrap(b, off, len);
+        while (src.hasRemaining()) {
+            this.channel.write(src);
+        }
+    }
+
+    private void flushDocument() throws IOException {
+        if (this.depth >= 0 && this.lengths[0] > 0) {
+            writeSink(this.buffers[0], 0, this.lengths[0]);
+            this.lengths[0] = 0;
+        }
+    }
+
+    /**
+     * Make room for n more bytes at the current depth and return the buffer to write them into.
+     */
+    private byte[] reserve(int n) throws IOException {
+        if (this.depth == 0 && this.lengths[0] + n > this.flushSize) {
+            flushDocument();
+        }
+        byte[] buffer = this.buffers[this.depth];
+        int length = this.lengths[this.depth];
+        if (length + n > buffer.length) {
+            if ((long) length + n > Integer.MAX_VALUE) {
+                throw new ABITException("Incompatible object, it's too long to encode");
+            }
+            buffer = Arrays.copyOf(buffer, (int) Math.max(length + n, Math.min(Integer.MAX_VALUE, buffer.length*2L)));
+            this.buffers[this.depth] = buffer;
+        }
+        return buffer;
+    }
+
+    private void put(byte b) throws IOException {
+        byte[] buffer = reserve(1);
+        buffer[this.lengths[this.depth]++] = b;
+    }
+
+    private void put(byte[] b, int off, int len) throws IOException {
+        if (this.depth == 0 && len > this.flushSize) {
+            // Big payloads of the document itself go straight to the sink
+            flushDocument();
+            writeSink(b, off, len);
+            return;
+        }
+        byte[] buffer = reserve(len);
+        System.arraycopy(b, off, buffer, this.lengths[this.depth], len);
+        this.lengths[this.depth]+= len;
+    }
+
+    private void putInteger(long integer, int type) throws IOException {
+        int size = ABITObject.integerSize(integer);
+        byte[] buffer = reserve(1 + size);
+        int idx = this.lengths[this.depth];
+        buffer[idx++] = (byte) ((type & 0x0f) | ((size-1) << 4));
+        for (int i = 0; i < size; i++) {
+            buffer[idx++] = (byte) ((integer >> (i * 8))&0xff);
+        }
+        this.lengths[this.depth] = idx;
+    }
+
+    private void push(boolean tree) {
+        this.depth++;
+        if (this.depth == this.buffers.length) {
+            this.buffers = Arrays.copyOf(this.buffers, this.depth*2);
+            this.lengths = Arrays.copyOf(this.lengths, this.depth*2);
+            this.trees = Arrays.copyOf(this.trees, this.depth*2);
+            this.keys = Arrays.copyOf(this.keys, this.depth*2);
+            this.keyLengths = Arrays.copyOf(this.keyLengths, this.depth*2);
+        }
+        if (this.buffers[this.depth] == null) {
+            this.buffers[this.depth] = new byte[this.depth == 0 ? this.flushSize : 256];
+        }
+        this.lengths[this.depth] = 0;
+        this.trees[this.depth] = tree;
+        this.keyLengths[this.depth] = 0;
+    }
+
+    private void pop(boolean tree) throws IOException {
+        if (this.depth < 0 || this.trees[this.depth] != tree) {
+            throw new IllegalStateException(tree ? "No tree to end" : "No array to end");
+        }
+        if (this.afterKey) {
+            throw new IllegalStateException("Missing value for the last key");
+        }
+        if (this.depth == 0) {
+            flushDocument();
+            this.depth--;
+            return;
+        }
+        byte[] content = this.buffers[this.depth];
+        int length = this.lengths[this.depth];
+        this.depth--;
+        putInteger(length, tree ? 6 : 5);
+        put(content, 0, length);
+        if (content.length > 1 << 16) {
+            // Don't hold on to the buffer of an unusually big subtree
+            this.buffers[this.depth+1] = null;
+        }
+    }
+
+    private void beforeValue() {
+        if (this.depth < 0) {
+            throw new IllegalStateException(this.started ? "The document has already ended" : "The document has to start with beginTree()");
+        }
+        if (this.trees[this.depth]) {
+            if (!this.afterKey) {
+                throw new IllegalStateException("Values inside a tree need a key");
+            }
+            this.afterKey = false;
+        }
+    }
+
+    /**
+     * Start a tree, the first call starts the document itself.
+     * @return this writer
+     * @throws IOException
+     */
+    public ABITWriter beginTree() throws IOException {
+        if (!this.started) {
+            this.started = true;
+            push(true);
+            return this;
+        }
+        beforeValue();
+        push(true);
+        return this;
+    }
+
+    /**
+     * End the current tree, ending the document itself flushes it to the output.
+     * @return this writer
+     * @throws IOException
+     */
+    public ABITWriter endTree() throws IOException {
+        pop(true);
+        return this;
+    }
+
+    /**
+     * Start an array.
+     * @return this writer
+     * @throws IOException
+     */
+    public ABITWriter beginArray() throws IOException {
+        beforeValue();
+        push(false);
+        return this;
+    }
+
+    /**
+     * End the current array.
+     * @return this writer
+     * @throws IOException
+     */
+    public ABITWriter endArray() throws IOException {
+        pop(false);
+        return this;
+    }
+
+    /**
+     * Write the key of the next value inside a tree, keys have to be written in abit key order.
+     * @param key key of the next value
+     * @return this writer
+     * @throws IOException
+     * @throws ABITException if the key isn't greater than the previous key of this tree
+     * @throws IllegalArgumentException if the key is incompatible
+     */
+    public ABITWriter key(String key) throws IOException, ABITException, IllegalArgumentException {
+        byte[] keyRaw = ABITKey.of(key).bytes;
+        return key(keyRaw, 0, keyRaw.length);
+    }
+
+    /**
+     * Write the UTF-8 encoding of a key, it has to be 1 - 256 bytes long.
+     */
+    ABITWriter key(byte[] keyRaw, int offset, int length) throws IOException, ABITException {
+        if (this.depth < 0 || !this.trees[this.depth] || this.afterKey) {
+            throw new IllegalStateException("A key can only be written inside a tree before a value");
+        }
+
+        if (this.keys[this.depth] == null) {
+            this.keys[this.depth] = new byte[256];
+        }
+        byte[] lastKey = this.keys[this.depth];
+        int lastKeyLength = this.keyLengths[this.depth];
+        if (lastKeyLength != 0) {
+            // Same order as ABITObject.keyCompare
+            int cmp = Integer.compare(length, lastKeyLength);
+            for (int i = 0; cmp == 0 && i < length; i++) {
+                cmp = Byte.compare(keyRaw[offset+i], lastKey[i]);
+            }
+            if (0 >= cmp) {
+                throw new ABITException("Invalid key order or identical keys");
+            }
+        }
+        System.arraycopy(keyRaw, offset, lastKey, 0, length);
+        this.keyLengths[this.depth] = length;
+
+        byte[] buffer = reserve(1 + length);
+        buffer[this.lengths[this.depth]] = (byte) (length-1);
+        System.arraycopy(keyRaw, offset, buffer, this.lengths[this.depth]+1, length);
+        this.lengths[this.depth]+= 1 + length;
+        this.afterKey = true;
+        return this;
+    }
+
+    /**
+     * Write a null.
+     * @return this writer
+     * @throws IOException
+     */
+    public ABITWriter writeNull() throws IOException {
+        beforeValue();
+        put((byte) 0);
+        return this;
+    }
+
+    /**
+     * Write a boolean.
+     * @param bool
+     * @return this writer
+     * @throws IOException
+     */
+    public ABITWriter writeBoolean(boolean bool) throws IOException {
+        beforeValue();
+        put(bool ? (byte) 0b00010001 : (byte) 0b00000001);
+        return this;
+    }
+
+    /**
+     * Write an integer.
+     * @param integer
+     * @return this writer
+     * @throws IOException
+     */
+    public ABITWriter writeInteger(long integer) throws IOException {
+        beforeValue();
+        putInteger(integer, 2);
+        return this;
+    }
+
+    /**
+     * Write a blob.
+     * @param blob
+     * @return this writer
+     * @throws IOException
+     */
+    public ABITWriter writeBlob(byte[] blob) throws IOException {
+        return writeBlob(blob, 0, blob.length);
+    }
+
+    /**
+     * Write part of a byte array as a blob.
+     * @param blob array holding the blob
+     * @param offset offset of the blob inside the array
+     * @param length length of the blob
+     * @return this writer
+     * @throws IOException
+     */
+    public ABITWriter writeBlob(byte[] blob, int offset, int length) throws IOException {
+        beforeValue();
+        putInteger(length, 3);
+        put(blob, offset, length);
+        return this;
+    }
+
+    /**
+     * Write a blob of known length read from a stream, inside the document itself it is copied
+     * to the output without being held in memory.
+     * @param blob stream to read the blob from
+     * @param length number of bytes to read from the stream
+     * @return this writer
+     * @throws IOException if the stream ends before length bytes have been read
+     */
+    public ABITWriter writeBlob(InputStream blob, int length) throws IOException {
+        beforeValue();
+        putInteger(length, 3);
+        byte[] chunk = new byte[Math.min(length, DEFAULT_BUFFER_SIZE)];
+        int left = length;
+        while (left > 0) {
+            int read = blob.read(chunk, 0, Math.min(left, chunk.length));
+            if (read < 0) {
+                throw new IOException("Blob stream ended "+left+" bytes early");
+            }
+            put(chunk, 0, read);
+            left-= read;
+        }
+        return this;
+    }
+
+    /**
+     * Write a string.
+     * @param str
+     * @return this writer
+     * @throws IOException
+     * @throws ABITException if the string is too long
+     */
+    public ABITWriter writeString(String str) throws IOException, ABITException {
+        ABITObject.isCompatibleString(str);
+        beforeValue();
+        byte[] raw = str.getBytes(StandardCharsets.UTF_8);
+        putInteger(raw.length, 4);
+        put(raw, 0, raw.length);
+        return this;
+    }
+
+    private void writeValue(ABITObject obj) throws IOException, ABITException {
+        Lock lock = obj.lock(true);
+        try {
+            ABITObject.EncodePlan plan = new ABITObject.EncodePlan();
+            int size = (int) ABITObject.checkedLength(ABITObject.sizeValue(obj, plan));
+            if (this.depth == 0 && size > this.flushSize) {
+                byte[] encoded = new byte[size];
+                ABITObject.writeValue(obj, ByteBuffer.wrap(encoded), plan);
+                put(encoded, 0, size);
+                return;
+            }
+            byte[] buffer = reserve(size);
+            ABITObject.writeValue(obj, ByteBuffer.wrap(buffer, this.lengths[this.depth], size), plan);
+            this.lengths[this.depth]+= size;
+        }
+        finally {
+            ABITObject.unlock(lock);
+        }
+    }
+
+    /**
+     * Write a value of any type.
+     */
+    ABITWriter write(ABITObject obj) throws IOException, ABITException {
+        beforeValue();
+        writeValue(obj);
+        return this;
+    }
+
+    /**
+     * Write a value that is already encoded, it's copied as it is.
+     */
+    ABITWriter writeEncoded(byte[] blob, int offset, int length) throws IOException {
+        beforeValue();
+        put(blob, offset, length);
+        return this;
+    }
+
+    /**
+     * Write a whole array, its size is computed up front so it's encoded without buffering.
+     * @param array
+     * @return this writer
+     * @throws IOException
+     * @throws ABITException if the array is too big to be encoded
+     */
+    public ABITWriter writeArray(ABITArray array) throws IOException, ABITException {
+        beforeValue();
+        writeValue(array.node);
+        return this;
+    }
+
+    /**
+     * Write a whole tree, its size is computed up front so it's encoded without buffering.
+     * @param tree
+     * @return this writer
+     * @throws IOException
+     * @throws ABITException if the tree is too big to be encoded
+     */
+    public ABITWriter writeTree(ABITObject tree) throws IOException, ABITException {
+        beforeValue();
+        writeValue(tree);
+        return this;
+    }
+
+    /**
+     * Write a whole persistent tree, the first call writes the document itself.
+     * @param tree
+     * @return this writer
+     * @throws IOException
+     * @throws ABITException if the tree is too big to be encoded
+     */
+    public ABITWriter writeTree(ABITPersistent tree) throws IOException, ABITException {
+        beginTree();
+        tree.writeEntries(this);
+        return endTree();
+    }
+
+    /**
+     * Write out everything that has been written to the document itself so far.
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        flushDocument();
+        if (this.out != null) {
+            this.out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushDocument();
+        if (this.out != null) {
+            this.out.close();
+        }
+        else {
+            this.channel.close();
+        }
+    }
+}
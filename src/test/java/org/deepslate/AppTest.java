@@ -2,12 +2,42 @@ package org.deepslate;
 
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 import org.deepslate.abit.ABITArray;
+import org.deepslate.abit.ABITArrayView;
+import org.deepslate.abit.ABITDiff;
 import org.deepslate.abit.ABITException;
+import org.deepslate.abit.ABITHash;
+import org.deepslate.abit.ABITJson;
+import org.deepslate.abit.ABITMappedArrayView;
+import org.deepslate.abit.ABITMappedFile;
+import org.deepslate.abit.ABITMappedView;
+import org.deepslate.abit.ABITMapper;
+import org.deepslate.abit.ABITMultibase;
 import org.deepslate.abit.ABITObject;
+import org.deepslate.abit.ABITPatch;
+import org.deepslate.abit.ABITPersistent;
+import org.deepslate.abit.ABITProjection;
+import org.deepslate.abit.ABITString;
+import org.deepslate.abit.ABITQuery;
+import org.deepslate.abit.ABITReader;
+import org.deepslate.abit.ABITRecordFile;
+import org.deepslate.abit.ABITSchema;
+import org.deepslate.abit.ABITValidator;
+import org.deepslate.abit.ABITView;
+import org.deepslate.abit.ABITWriter;
+import java.util.List;
 import java.util.Random;
 import org.junit.Test;
 
@@ -301,4 +331,1755 @@ public class AppTest
         System.out.println("ABIT Size: "+treeblob1.length+" JSON Size: "+tree.getJson().toString().getBytes(StandardCharsets.UTF_8).length);
 
     }
+
+    @Test
+    public void viewGenericTest() throws Exception {
+        ABITObject tree = new ABITObject();
+        tree.put("null obj", ABITObject.NULL);
+        tree.put("boolean t obj", true);
+        tree.put("boolean f obj", false);
+        tree.put("integer n big", -69696969420L);
+        tree.put("integer p small", 69L);
+        byte[] blobb = new byte[300];
+        new Random().nextBytes(blobb);
+        tree.put("big blob obj", blobb);
+        tree.put("string small", "Hello 💀");
+        ABITArray arr = new ABITArray();
+        arr.add("1");
+        arr.add(2L);
+        arr.add(true);
+        ABITObject nestedTree = new ABITObject();
+        nestedTree.put("thing", "AMOGUS");
+        arr.add(nestedTree);
+        tree.put("array obj", arr);
+        tree.put("nesty", nestedTree);
+
+        ABITView view = new ABITView(tree.toByteArray());
+        assertTrue(view.getNull("null obj") == ABITObject.NULL);
+        assertTrue(view.getBoolean("boolean t obj"));
+        assertTrue(!view.getBoolean("boolean f obj"));
+        assertTrue(view.getInteger("integer n big") == -69696969420L);
+        assertTrue(view.getInteger("integer p small") == 69L);
+        assertTrue(compareArray(blobb, view.getBlob("big blob obj")));
+        assertTrue(view.getBlobBuffer("big blob obj").remaining() == blobb.length);
+        assertTrue(view.getString("string small").equals("Hello 💀"));
+        assertTrue(view.getType("nesty").equals("tree"));
+        assertTrue(view.getTree("nesty").getString("thing").equals("AMOGUS"));
+        assertTrue(!view.containsKey("missing"));
+        assertTrue(!view.containsKey("zzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzz"));
+
+        ABITArrayView arrView = view.getArray("array obj");
+        assertTrue(arrView.size() == 4);
+        assertTrue(arrView.getString(0).equals("1"));
+        assertTrue(arrView.getInteger(1) == 2L);
+        assertTrue(arrView.getBoolean(2));
+        assertTrue(arrView.getTree(3).getString("thing").equals("AMOGUS"));
+        try {
+            view.getString("integer p small");
+            throw new Exception("This shouldn't succeed");
+        }
+        catch (ABITException e) {}
+
+        assertTrue(compareArray(tree.toByteArray(), view.toABITObject().toByteArray()));
+
+        // A null is the byte 0x00, not just anything with a null type
+        byte[] nulls = nullsWithWidth();
+        try {
+            new ABITView(nulls).getNull("n");
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        try {
+            new ABITView(nulls).getArray("a").getNull(0);
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+    }
+
+    // {"a": [null], "n": null} with both nulls written as 0x10
+    private static byte[] nullsWithWidth() throws Exception {
+        ABITObject tree = new ABITObject();
+        ABITArray arr = new ABITArray();
+        arr.add(ABITObject.NULL);
+        tree.put("a", arr);
+        tree.put("n", ABITObject.NULL);
+        byte[] document = tree.toByteArray();
+        assertTrue(document.length == 8 && document[4] == 0 && document[7] == 0);
+        document[4] = 0x10;
+        document[7] = 0x10;
+        return document;
+    }
+
+    @Test
+    public void treeEncodeSizes() throws Exception {
+        ABITObject tree = new ABITObject();
+        ABITObject nested = tree;
+        // Deep enough for the length headers of the outer trees to grow past one byte
+        for (int i = 0; i < 40; i++) {
+            ABITObject child = new ABITObject();
+            nested.put("level", child);
+            nested.put("padding", " ".repeat(i*3));
+            nested = child;
+        }
+        nested.put("surrogates", "a\ud83d b\udc80 \ud83d\udc80 é €");
+        nested.put("blob", new byte[200]);
+
+        byte[] encoded = tree.toByteArray();
+        assertTrue(tree.encodedSize() == encoded.length);
+        assertTrue(compareArray(encoded, (new ABITObject(encoded)).toByteArray()));
+
+        java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(encoded.length + 10);
+        buffer.position(5);
+        assertTrue(tree.writeTo(buffer) == encoded.length);
+        byte[] written = new byte[encoded.length];
+        buffer.get(5, written);
+        assertTrue(compareArray(encoded, written));
+
+        ABITObject decoded = new ABITObject(encoded);
+        for (int i = 0; i < 40; i++) {
+            decoded = decoded.getTree("level");
+        }
+        String expected = new String("a\ud83d b\udc80 \ud83d\udc80 é €".getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+        assertTrue(expected.equals(decoded.getString("surrogates")));
+    }
+
+    private ABITObject readTree(ABITReader reader) throws Exception {
+        ABITObject tree = new ABITObject();
+        for (ABITReader.Token token = reader.nextToken(); token != ABITReader.Token.END_TREE; token = reader.nextToken()) {
+            String key = reader.getKey();
+            switch (reader.nextToken()) {
+                case NULL -> tree.put(key, ABITObject.NULL);
+                case BOOLEAN -> tree.put(key, reader.getBoolean());
+                case INTEGER -> tree.put(key, reader.getInteger());
+                case BLOB -> tree.put(key, reader.getBlobStream().readAllBytes());
+                case STRING -> tree.put(key, reader.getString());
+                case START_ARRAY -> tree.put(key, readArray(reader));
+                case START_TREE -> tree.put(key, readTree(reader));
+                default -> throw new Exception("Unexpected token");
+            }
+        }
+        return tree;
+    }
+
+    private ABITArray readArray(ABITReader reader) throws Exception {
+        ABITArray array = new ABITArray();
+        for (ABITReader.Token token = reader.nextToken(); token != ABITReader.Token.END_ARRAY; token = reader.nextToken()) {
+            switch (token) {
+                case NULL -> array.add(ABITObject.NULL);
+                case BOOLEAN -> array.add(reader.getBoolean());
+                case INTEGER -> array.add(reader.getInteger());
+                case BLOB -> array.add(reader.getBlob());
+                case STRING -> array.add(reader.getString());
+                case START_ARRAY -> array.add(readArray(reader));
+                case START_TREE -> array.add(readTree(reader));
+                default -> throw new Exception("Unexpected token");
+            }
+        }
+        return array;
+    }
+
+    @Test
+    public void readerGenericTest() throws Exception {
+        Random random = new Random();
+        ABITObject tree = new ABITObject();
+        tree.put("null obj", ABITObject.NULL);
+        tree.put("boolean t obj", true);
+        tree.put("integer n big", -69696969420L);
+        byte[] blobb = new byte[5000];
+        random.nextBytes(blobb);
+        tree.put("big blob obj", blobb);
+        tree.put("string big", "Lorem ipsum 💀 ".repeat(300));
+        ABITArray arr = new ABITArray();
+        arr.add("1");
+        arr.add(blobb);
+        ABITObject nestedTree = new ABITObject();
+        nestedTree.put("thing", "AMOGUS");
+        arr.add(nestedTree);
+        arr.add(new ABITArray());
+        tree.put("array obj", arr);
+        tree.put("nesty", nestedTree);
+        tree.put("zz last", 7L);
+        byte[] document = tree.toByteArray();
+
+        ABITReader reader = new ABITReader(new ByteArrayInputStream(document), 512);
+        assertTrue(reader.nextToken() == ABITReader.Token.START_TREE);
+        assertTrue(compareArray(document, readTree(reader).toByteArray()));
+        assertTrue(reader.nextToken() == null);
+
+        reader = new ABITReader(Channels.newChannel(new ByteArrayInputStream(document)));
+        assertTrue(reader.nextToken() == ABITReader.Token.START_TREE);
+        assertTrue(compareArray(document, readTree(reader).toByteArray()));
+
+        // Skip everything except the last key
+        reader = new ABITReader(new ByteArrayInputStream(document), 512);
+        reader.nextToken();
+        long last = 0;
+        while (reader.nextToken() == ABITReader.Token.KEY) {
+            if (reader.getKey().equals("zz last")) {
+                reader.nextToken();
+                last = reader.getInteger();
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        assertTrue(last == 7L);
+        assertTrue(reader.currentToken() == ABITReader.Token.END_TREE);
+
+        // Truncated documents are rejected
+        reader = new ABITReader(new ByteArrayInputStream(document, 0, document.length - 1));
+        try {
+            reader.nextToken();
+            while (reader.nextToken() != null) {
+                reader.skipValue();
+            }
+            throw new Exception("This shouldn't succeed");
+        }
+        catch (ABITException e) {}
+    }
+
+    @Test
+    public void writerGenericTest() throws Exception {
+        Random random = new Random();
+        byte[] blobb = new byte[20000];
+        random.nextBytes(blobb);
+        ABITObject nestedTree = new ABITObject();
+        nestedTree.put("thing", "AMOGUS");
+        ABITArray arr = new ABITArray();
+        arr.add(1L);
+        arr.add(nestedTree);
+
+        ABITObject tree = new ABITObject();
+        tree.put("a", ABITObject.NULL);
+        tree.put("b", true);
+        tree.put("c", -69696969420L);
+        tree.put("dd", blobb);
+        tree.put("ee", "Hello 💀");
+        tree.put("fff", arr);
+        tree.put("ggg", nestedTree);
+        ABITObject deep = new ABITObject();
+        deep.put("x", blobb);
+        ABITArray deepArr = new ABITArray();
+        deepArr.add("string");
+        deepArr.add(new ABITArray());
+        deepArr.add(nestedTree);
+        deep.put("yy", deepArr);
+        tree.put("hhhh", deep);
+        tree.put("iiii", blobb);
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ABITWriter writer = new ABITWriter(os, 1024);
+        writer.beginTree()
+            .key("a").writeNull()
+            .key("b").writeBoolean(true)
+            .key("c").writeInteger(-69696969420L)
+            .key("dd").writeBlob(blobb)
+            .key("ee").writeString("Hello 💀")
+            .key("fff").writeArray(arr)
+            .key("ggg").writeTree(nestedTree)
+            .key("hhhh").beginTree()
+                .key("x").writeBlob(blobb)
+                .key("yy").beginArray()
+                    .writeString("string")
+                    .beginArray().endArray()
+                    .writeTree(nestedTree)
+                .endArray()
+            .endTree()
+            .key("iiii").writeBlob(new ByteArrayInputStream(blobb), blobb.length)
+            .endTree();
+        writer.close();
+
+        assertTrue(compareArray(tree.toByteArray(), os.toByteArray()));
+
+        writer = new ABITWriter(new ByteArrayOutputStream());
+        writer.beginTree().key("bb");
+        writer.writeInteger(1);
+        try {
+            writer.key("a");
+            throw new Exception("This shouldn't succeed");
+        }
+        catch (ABITException e) {}
+        try {
+            writer.key("bb");
+            throw new Exception("This shouldn't succeed");
+        }
+        catch (ABITException e) {}
+        try {
+            writer.key(" ".repeat(257));
+            throw new Exception("This shouldn't succeed");
+        }
+        catch (IllegalArgumentException e) {}
+        try {
+            writer.writeInteger(1);
+            throw new Exception("This shouldn't succeed");
+        }
+        catch (IllegalStateException e) {}
+    }
+
+    @Test
+    public void treeProjection() throws Exception {
+        ABITObject tree = new ABITObject();
+        for (int i = 0; i < 100; i++) {
+            tree.put("key "+i, (long) i);
+        }
+        ABITObject nestedTree = new ABITObject();
+        nestedTree.put("thing", "AMOGUS");
+        nestedTree.put("other thing", new byte[1000]);
+        tree.put("nesty", nestedTree);
+        ABITArray arr = new ABITArray();
+        arr.add("1");
+        tree.put("array obj", arr);
+
+        ABITProjection projection = new ABITProjection()
+            .include("key 42")
+            .include("key 7")
+            .include("nesty", "thing")
+            .include("array obj")
+            .include("missing")
+            .include("zzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzz");
+        ABITObject sparse = new ABITObject(tree.toByteArray(), projection);
+
+        assertTrue(sparse.getInteger("key 42") == 42L);
+        assertTrue(sparse.getInteger("key 7") == 7L);
+        assertTrue(sparse.getTree("nesty").getString("thing").equals("AMOGUS"));
+        assertTrue(sparse.getArray("array obj").getString(0).equals("1"));
+
+        ABITObject expected = new ABITObject();
+        expected.put("key 42", 42L);
+        expected.put("key 7", 7L);
+        ABITObject expectedNested = new ABITObject();
+        expectedNested.put("thing", "AMOGUS");
+        expected.put("nesty", expectedNested);
+        expected.put("array obj", arr);
+        assertTrue(compareArray(expected.toByteArray(), sparse.toByteArray()));
+
+        // Including a whole tree wins over including parts of it
+        projection = new ABITProjection().include("nesty", "thing").include("nesty");
+        assertTrue(compareArray(nestedTree.toByteArray(), new ABITObject(tree.toByteArray(), projection).getTree("nesty").toByteArray()));
+
+        // A path going on below something other than a tree isn't dropped silently
+        try {
+            new ABITObject(tree.toByteArray(), new ABITProjection().include("key 7", "thing"));
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {
+            assertTrue(e.getMessage().equals("Object is not of type tree"));
+        }
+        try {
+            new ABITObject(tree.toByteArray(), new ABITProjection().include("array obj", "thing"));
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        // Missing keys are still skipped
+        assertTrue(new ABITObject(tree.toByteArray(), new ABITProjection().include("missing", "thing")).toByteArray().length == 0);
+    }
+
+    @Test
+    public void validatorGenericTest() throws Exception {
+        ABITObject tree = new ABITObject();
+        tree.put("null", ABITObject.NULL);
+        tree.put("bool", true);
+        tree.put("int", -1234567L);
+        tree.put("blob", new byte[300]);
+        tree.put("string", "AMOGUS \u00e9\u4e2d\ud83d\ude00");
+        ABITObject nestedTree = new ABITObject();
+        nestedTree.put("thing", 12L);
+        ABITArray arr = new ABITArray();
+        arr.add(nestedTree);
+        arr.add("1");
+        tree.put("arr", arr);
+        tree.put("nesty", nestedTree);
+        byte[] document = tree.toByteArray();
+
+        ABITValidator validator = new ABITValidator();
+        assertTrue(validator.validate(document) == null);
+        assertTrue(validator.validate(new byte[0]) == null);
+        assertTrue(validator.validate(java.nio.ByteBuffer.allocateDirect(document.length).put(document).flip()) == null);
+
+        // Truncating the document is only valid between its 7 entries
+        int validPrefixes = 0;
+        for (int i = 1; i < document.length; i++) {
+            if (validator.validate(document, 0, i) == null) {
+                validPrefixes++;
+            }
+        }
+        assertTrue(validPrefixes == 6);
+
+        // Key out of order
+        byte[] keys = new byte[]{0x00, 'b', 0x00, 0x00, 'a', 0x00};
+        assertTrue(validator.validate(keys) == ABITValidator.Error.INVALID_KEY_ORDER);
+        assertTrue(validator.getErrorOffset() == 3);
+        // Duplicate key
+        keys = new byte[]{0x00, 'a', 0x00, 0x00, 'a', 0x00};
+        assertTrue(validator.validate(keys) == ABITValidator.Error.INVALID_KEY_ORDER);
+        // Non-minimal integer
+        assertTrue(validator.validate(new byte[]{0x00, 'a', 0x12, 0x01, 0x00}) == ABITValidator.Error.NON_MINIMAL_INTEGER);
+        // Non-minimal length
+        assertTrue(validator.validate(new byte[]{0x00, 'a', 0x14, 0x01, 0x00, 'x'}) == ABITValidator.Error.NON_MINIMAL_INTEGER);
+        // Negative length
+        assertTrue(validator.validate(new byte[]{0x00, 'a', 0x03, (byte) 0xff}) == ABITValidator.Error.INVALID_LENGTH);
+        // Bad null and boolean encodings
+        assertTrue(validator.validate(new byte[]{0x00, 'a', 0x10}) == ABITValidator.Error.INVALID_NULL);
+        assertTrue(validator.validate(new byte[]{0x00, 'a', 0x21}) == ABITValidator.Error.INVALID_BOOLEAN);
+        // Unknown type
+        assertTrue(validator.validate(new byte[]{0x00, 'a', 0x07}) == ABITValidator.Error.INVALID_TYPE);
+        assertTrue(validator.getErrorOffset() == 2);
+        // Overlong and surrogate UTF-8
+        assertTrue(validator.validate(new byte[]{0x00, 'a', 0x04, 0x02, (byte) 0xc0, (byte) 0x80}) == ABITValidator.Error.INVALID_UTF8);
+        assertTrue(validator.validate(new byte[]{0x00, 'a', 0x04, 0x03, (byte) 0xed, (byte) 0xa0, (byte) 0x80}) == ABITValidator.Error.INVALID_UTF8);
+        // Key without a value
+        assertTrue(validator.validate(new byte[]{0x00, 'a'}) == ABITValidator.Error.MISSING_VALUE);
+        // Length past the end of the enclosing container
+        assertTrue(validator.validate(new byte[]{0x00, 'a', 0x05, 0x02, 0x03, 0x01}) == ABITValidator.Error.OUT_OF_BOUNDS);
+
+        // Nesting limit
+        byte[] deep = new byte[]{0x00, 'a', 0x05, 0x04, 0x05, 0x02, 0x05, 0x00};
+        assertTrue(validator.validate(deep) == null);
+        assertTrue(new ABITValidator(2).validate(deep) == ABITValidator.Error.TOO_DEEP);
+
+        try {
+            validator.check(keys);
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        validator.check(document);
+    }
+
+    @Test
+    public void treeParallelDecode() throws Exception {
+        Random rand = new Random(42);
+        ABITObject tree = new ABITObject();
+        for (int i = 0; i < 50; i++) {
+            ABITObject nestedTree = new ABITObject();
+            ABITArray arr = new ABITArray();
+            for (int j = 0; j < 200; j++) {
+                nestedTree.put("key "+j, rand.nextLong());
+                ABITObject element = new ABITObject();
+                element.put("thing", "AMOGUS "+j);
+                element.put("blob", new byte[rand.nextInt(64)]);
+                arr.add(element);
+            }
+            nestedTree.put("array", arr);
+            tree.put("subtree "+i, nestedTree);
+            tree.put("small "+i, (long) i);
+        }
+        byte[] document = tree.toByteArray();
+
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+        try {
+            assertTrue(compareArray(document, new ABITObject(document, pool).toByteArray()));
+            assertTrue(compareArray(document, new ABITObject(document, pool, 256).toByteArray()));
+            assertTrue(new ABITObject(document, pool, 256).getTree("subtree 7").getArray("array").getTree(3).getString("thing").equals("AMOGUS 3"));
+
+            // Corrupt documents fail the same way as with the sequential decoder
+            byte[] corrupt = document.clone();
+            corrupt[1 + (corrupt[0]&0xff) + 1] = 0x07;
+            try {
+                new ABITObject(corrupt, pool, 256);
+                throw new Exception("This shouldn't succeed");
+            } catch (ABITException e) {}
+            try {
+                new ABITObject(corrupt);
+                throw new Exception("This shouldn't succeed");
+            } catch (ABITException e) {}
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void treeRetainedEncoding() throws Exception {
+        Random rand = new Random(7);
+        ABITObject tree = new ABITObject();
+        for (int i = 0; i < 20; i++) {
+            ABITObject nestedTree = new ABITObject();
+            ABITArray arr = new ABITArray();
+            for (int j = 0; j < 10; j++) {
+                nestedTree.put("key "+j, rand.nextLong());
+                ABITObject element = new ABITObject();
+                element.put("thing", "AMOGUS "+j);
+                arr.add(element);
+            }
+            nestedTree.put("array", arr);
+            tree.put("subtree "+i, nestedTree);
+        }
+        byte[] document = tree.toByteArray();
+
+        // Every change is applied to a retained document and to one encoded from scratch every time
+        ABITObject retained = new ABITObject(document, true);
+        ABITObject plain = new ABITObject(document);
+        assertTrue(compareArray(document, retained.toByteArray()));
+
+        // The retained encoding is a copy, the input can be reused once decoded
+        byte[] scratch = document.clone();
+        ABITObject decoded = new ABITObject(scratch, true);
+        for (int i = 0; i < scratch.length; i++) {
+            scratch[i] = 0;
+        }
+        assertTrue(compareArray(plain.getTree("subtree 5").toByteArray(), decoded.getTree("subtree 5").toByteArray()));
+        decoded.getTree("subtree 5").getArray("array").getTree(2).put("thing", "SUS");
+        plain.getTree("subtree 5").getArray("array").getTree(2).put("thing", "SUS");
+        assertTrue(compareArray(plain.toByteArray(), decoded.toByteArray()));
+        assertTrue(compareArray(plain.getTree("subtree 6").toByteArray(), decoded.getTree("subtree 6").toByteArray()));
+        plain = new ABITObject(document);
+
+        for (int round = 0; round < 500; round++) {
+            String key = "subtree "+rand.nextInt(20);
+            long value = rand.nextLong();
+            switch (rand.nextInt(5)) {
+                case 0:
+                    String leaf = "key "+rand.nextInt(12);
+                    retained.getTree(key).put(leaf, value);
+                    plain.getTree(key).put(leaf, value);
+                    break;
+                case 1:
+                    retained.getTree(key).getArray("array").add(value);
+                    plain.getTree(key).getArray("array").add(value);
+                    break;
+                case 2:
+                    if (!plain.getTree(key).getArray("array").isEmpty()) {
+                        retained.getTree(key).getArray("array").remove(0);
+                        plain.getTree(key).getArray("array").remove(0);
+                    }
+                    break;
+                case 3:
+                    ABITArray plainArr = plain.getTree(key).getArray("array");
+                    if (!plainArr.isEmpty() && plainArr.getType(0).equals("tree")) {
+                        retained.getTree(key).getArray("array").getTree(0).put("thing", value);
+                        plainArr.getTree(0).put("thing", value);
+                    }
+                    break;
+                case 4:
+                    // The same tree ends up under two keys
+                    String other = "subtree "+rand.nextInt(20);
+                    retained.put(other, retained.getTree(key));
+                    plain.put(other, plain.getTree(key));
+                    break;
+            }
+            if (rand.nextBoolean()) {
+                assertTrue(compareArray(plain.toByteArray(), retained.toByteArray()));
+            }
+        }
+        assertTrue(compareArray(plain.toByteArray(), retained.toByteArray()));
+        assertTrue(retained.encodedSize() == plain.encodedSize());
+
+        // Nested trees of a retained document encode on their own as well
+        assertTrue(compareArray(plain.getTree("subtree 3").toByteArray(), retained.getTree("subtree 3").toByteArray()));
+    }
+
+    @Test
+    public void patchGenericTest() throws Exception {
+        ABITObject tree = new ABITObject();
+        ABITObject inner = new ABITObject();
+        inner.put("thing", "AMOGUS");
+        ABITObject nestedTree = new ABITObject();
+        nestedTree.put("inner", inner);
+        nestedTree.put("count", 1L);
+        tree.put("nesty", nestedTree);
+        tree.put("a", true);
+        tree.put("zzz", "last");
+
+        // Every patch is compared with the same change made to the decoded tree
+        ABITPatch patch = new ABITPatch(tree.toByteArray());
+        patch.put(new String[]{"nesty", "count"}, 2L);
+        nestedTree.put("count", 2L);
+        assertTrue(compareArray(tree.toByteArray(), patch.toByteArray()));
+
+        // Same size, changed in place
+        patch.put(new String[]{"nesty", "count"}, 3L);
+        nestedTree.put("count", 3L);
+        assertTrue(compareArray(tree.toByteArray(), patch.toByteArray()));
+
+        // Headers of both nested trees grow from one to three bytes
+        patch.put(new String[]{"nesty", "inner", "big"}, new byte[40000]);
+        inner.put("big", new byte[40000]);
+        assertTrue(compareArray(tree.toByteArray(), patch.toByteArray()));
+
+        // Inserting before, between and after existing keys
+        patch.put(new String[]{"nesty", "inner", "b"}, ABITObject.NULL);
+        inner.put("b", ABITObject.NULL);
+        patch.put(new String[]{"nesty", "inner", "zzzzzzzzzzzz"}, "end");
+        inner.put("zzzzzzzzzzzz", "end");
+        patch.put(new String[]{"nesty", "inner", "thinf"}, -5L);
+        inner.put("thinf", -5L);
+        ABITArray arr = new ABITArray();
+        arr.add("1");
+        patch.put(new String[]{"arr"}, arr);
+        tree.put("arr", arr);
+        assertTrue(compareArray(tree.toByteArray(), patch.toByteArray()));
+
+        // Headers shrink again
+        patch.remove("nesty", "inner", "big");
+        inner.put("big", false);
+        patch.put(new String[]{"nesty", "inner", "big"}, false);
+        assertTrue(compareArray(tree.toByteArray(), patch.toByteArray()));
+
+        // Replacing a whole tree
+        ABITObject replacement = new ABITObject();
+        replacement.put("x", 1L);
+        patch.put(new String[]{"nesty"}, replacement);
+        tree.put("nesty", replacement);
+        assertTrue(compareArray(tree.toByteArray(), patch.toByteArray()));
+
+        // Removing a missing key changes nothing
+        patch.remove("nesty", "missing");
+        patch.remove("missing");
+        assertTrue(compareArray(tree.toByteArray(), patch.toByteArray()));
+        assertTrue(patch.encodedSize() == tree.encodedSize());
+
+        try {
+            patch.put(new String[]{"missing", "x"}, 1L);
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        try {
+            patch.put(new String[]{"a", "x"}, 1L);
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        try {
+            patch.remove();
+            throw new Exception("This shouldn't succeed");
+        } catch (IllegalArgumentException e) {}
+    }
+
+    @Test
+    public void diffGenericTest() throws Exception {
+        ABITObject from = new ABITObject();
+        ABITObject inner = new ABITObject();
+        inner.put("thing", "AMOGUS");
+        inner.put("count", 1L);
+        from.put("nesty", inner);
+        from.put("a", true);
+        from.put("gone", "soon");
+        ABITArray arr = new ABITArray();
+        for (int i = 0; i < 10; i++) {
+            arr.add(i);
+        }
+        from.put("arr", arr);
+        byte[] fromBytes = from.toByteArray();
+
+        // Identical documents give an empty delta
+        assertTrue(ABITDiff.diff(from, new ABITObject(fromBytes)).length == 0);
+        assertTrue(ABITDiff.diff(fromBytes, fromBytes).length == 0);
+
+        // Changed, added, removed and nested keys and a splice in the middle of an array
+        ABITPatch patch = new ABITPatch(fromBytes);
+        patch.remove("gone");
+        patch.put(new String[]{"nesty", "count"}, 2L);
+        patch.put(new String[]{"nesty", "new"}, new byte[]{1, 2, 3});
+        patch.put(new String[]{"a"}, "not a bool");
+        patch.put(new String[]{"added"}, ABITObject.NULL);
+        ABITArray changedArr = new ABITArray();
+        for (int i = 0; i < 10; i++) {
+            if (i == 4) {
+                changedArr.add("four");
+                changedArr.add("and a half");
+            }
+            else if (i != 5) {
+                changedArr.add(i);
+            }
+        }
+        patch.put(new String[]{"arr"}, changedArr);
+        byte[] toBytes = patch.toByteArray();
+        ABITObject to = new ABITObject(toBytes);
+
+        // Both ways of diffing give the same delta, and both ways of applying it give the new document
+        byte[] delta = ABITDiff.diff(from, to);
+        assertTrue(compareArray(delta, ABITDiff.diff(fromBytes, toBytes)));
+        assertTrue(compareArray(toBytes, ABITDiff.apply(fromBytes, delta)));
+        ABITDiff.apply(from, delta);
+        assertTrue(compareArray(toBytes, from.toByteArray()));
+
+        // And backwards
+        byte[] back = ABITDiff.diff(toBytes, fromBytes);
+        assertTrue(compareArray(fromBytes, ABITDiff.apply(toBytes, back)));
+        ABITDiff.apply(to, back);
+        assertTrue(compareArray(fromBytes, to.toByteArray()));
+
+        try {
+            ABITDiff.apply(new ABITObject(), delta);
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        try {
+            ABITDiff.apply(fromBytes, new byte[]{0, 'x', 0x02, 0x05});
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+    }
+
+    @Test
+    public void hashGenericTest() throws Exception {
+        ABITObject tree = new ABITObject();
+        ABITObject inner = new ABITObject();
+        inner.put("thing", "AMOGUS");
+        inner.put("blob", new byte[]{1, 2, 3});
+        ABITArray arr = new ABITArray();
+        arr.add(inner);
+        arr.add(-300L);
+        tree.put("nesty", inner);
+        tree.put("arr", arr);
+        tree.put("a", true);
+        tree.put("n", ABITObject.NULL);
+        tree.setCacheHashes(true);
+
+        // Hashing the bytes and hashing the tree agree
+        byte[] hash = tree.hash();
+        assertTrue(hash.length == 32);
+        assertTrue(compareArray(hash, ABITHash.hash(tree.toByteArray())));
+        assertTrue(compareArray(inner.hash(), ABITHash.hash(inner.toByteArray())));
+        assertTrue(tree.contentAddress().equals(ABITHash.contentAddress(tree.toByteArray())));
+        assertTrue(tree.contentAddress().startsWith("zQm"));
+
+        // Without nested containers the hash is the SHA-256 of the bytes
+        ABITObject flat = new ABITObject();
+        flat.put("x", 1L);
+        flat.put("yy", "z");
+        assertTrue(compareArray(flat.hash(), java.security.MessageDigest.getInstance("SHA-256").digest(flat.toByteArray())));
+
+        // Changing a nested container changes every hash above it, changing it back restores them
+        inner.put("thing", "SUS");
+        byte[] changed = tree.hash();
+        assertTrue(!compareArray(hash, changed));
+        assertTrue(compareArray(changed, ABITHash.hash(tree.toByteArray())));
+        assertTrue(compareArray(changed, new ABITObject(tree.toByteArray()).hash()));
+        inner.put("thing", "AMOGUS");
+        assertTrue(compareArray(hash, tree.hash()));
+
+        // Through the array holding the same tree too
+        arr.add(1L);
+        assertTrue(compareArray(tree.hash(), ABITHash.hash(tree.toByteArray())));
+        arr.remove(2);
+        assertTrue(compareArray(hash, tree.hash()));
+
+        // Retained encodings and hashes don't get in each others way
+        ABITObject retained = new ABITObject(tree.toByteArray(), true);
+        retained.setCacheHashes(true);
+        assertTrue(compareArray(hash, retained.hash()));
+        retained.getTree("nesty").put("thing", "SUS");
+        byte[] retainedHash = retained.hash();
+        assertTrue(!compareArray(hash, retainedHash));
+        assertTrue(compareArray(retainedHash, ABITHash.hash(retained.toByteArray())));
+        retained.getTree("nesty").put("thing", "AMOGUS");
+        assertTrue(compareArray(hash, retained.hash()));
+        assertTrue(compareArray(hash, ABITHash.hash(retained.toByteArray())));
+
+        try {
+            ABITHash.hash(new byte[]{0, 'x', 0x15, 0x01});
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+    }
+
+    @Test
+    public void persistentGenericTest() throws Exception {
+        ABITObject tree = new ABITObject();
+        ABITObject inner = new ABITObject();
+        inner.put("thing", "AMOGUS");
+        tree.put("nesty", inner);
+        ABITArray arr = new ABITArray();
+        arr.add(new byte[]{1, 2});
+        arr.add(inner);
+        tree.put("arr", arr);
+        Random rand = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            tree.put("key "+i, (long) i);
+        }
+
+        ABITPersistent first = new ABITPersistent(tree.toByteArray());
+        assertTrue(compareArray(tree.toByteArray(), first.toByteArray()));
+        assertTrue(compareArray(tree.toByteArray(), first.toABITObject().toByteArray()));
+        assertTrue(first.size() == 202);
+
+        // Random changes made to both, older versions never change
+        ABITPersistent version = first;
+        byte[] firstBytes = first.toByteArray();
+        for (int i = 0; i < 1000; i++) {
+            String key = "key "+rand.nextInt(300);
+            if (rand.nextInt(3) == 0) {
+                version = version.without(key);
+                ABITPatch patch = new ABITPatch(tree.toByteArray());
+                tree = new ABITObject(patch.remove(key).toByteArray());
+            }
+            else {
+                version = version.with(key, (long) i);
+                tree.put(key, (long) i);
+            }
+        }
+        assertTrue(compareArray(tree.toByteArray(), version.toByteArray()));
+        assertTrue(compareArray(firstBytes, first.toByteArray()));
+
+        // Unchanged subtrees are shared, unchanged versions are the same
+        assertTrue(version.getTree("nesty") == first.getTree("nesty"));
+        assertTrue(version.without("missing") == version);
+        assertTrue(version.with("nesty", version.getTree("nesty")) == version);
+        ABITPersistent nested = version.with("nesty", version.getTree("nesty").with("thing", "SUS"));
+        assertTrue(nested.getTree("nesty").getString("thing").equals("SUS"));
+        assertTrue(version.getTree("nesty").getString("thing").equals("AMOGUS"));
+
+        // Nothing handed in or out changes a version
+        byte[] blob = new byte[]{1, 2, 3};
+        ABITPersistent withBlob = version.with("blob", blob);
+        blob[0] = 9;
+        withBlob.getBlob("blob")[1] = 9;
+        assertTrue(compareArray(new byte[]{1, 2, 3}, withBlob.getBlob("blob")));
+        withBlob.getArray("arr").add(1L);
+        withBlob.getArray("arr").getTree(1).put("thing", "SUS");
+        inner.put("thing", "SUS");
+        assertTrue(withBlob.getArray("arr").size() == 2);
+        assertTrue(withBlob.getArray("arr").getTree(1).getString("thing").equals("AMOGUS"));
+        assertTrue(withBlob.getType("arr").equals("array") && withBlob.getType("nesty").equals("tree"));
+        assertTrue(withBlob.hasKey("blob") && !withBlob.hasKey("missing"));
+
+        // Readers keep their snapshot while writers swap in new versions
+        java.util.concurrent.atomic.AtomicReference<ABITPersistent> ref = new java.util.concurrent.atomic.AtomicReference<>(new ABITPersistent());
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int id = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 250; i++) {
+                    final int n = i;
+                    ref.updateAndGet(current -> current.with("w"+id+" "+n, (long) n));
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer: writers) {
+            writer.join();
+        }
+        assertTrue(ref.get().size() == 1000);
+        assertTrue(ref.get().getInteger("w3 249") == 249);
+
+        try {
+            version.getInteger("missing");
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        try {
+            version.getInteger("nesty");
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        try {
+            version.with("", 1L);
+            throw new Exception("This shouldn't succeed");
+        } catch (IllegalArgumentException e) {}
+    }
+
+    @Test
+    public void treeConcurrentWriters() throws Exception {
+        ABITObject tree = ABITObject.concurrent();
+        ABITObject nested = new ABITObject();
+        ABITArray arr = new ABITArray();
+        tree.put("nesty", nested);
+        tree.put("arr", arr);
+
+        // Writers put into the tree, a nested tree and an array while snapshots are taken
+        Thread[] writers = new Thread[8];
+        for (int t = 0; t < writers.length; t++) {
+            final int id = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    tree.put("w"+id+" "+i, (long) i);
+                    nested.put("w"+id+" "+i, "s"+i);
+                    arr.add((long) id);
+                }
+            });
+            writers[t].start();
+        }
+        ABITValidator validator = new ABITValidator();
+        for (int i = 0; i < 20; i++) {
+            assertTrue(validator.validate(tree.toByteArray()) == null);
+        }
+        for (Thread writer: writers) {
+            writer.join();
+        }
+
+        assertTrue(tree.getTree("nesty").getString("w7 499").equals("s499"));
+        assertTrue(tree.getArray("arr").size() == 4000);
+        ABITObject copy = new ABITObject(tree.toByteArray());
+        assertTrue(compareArray(copy.toByteArray(), tree.toByteArray()));
+        assertTrue(compareArray(copy.toByteArray(), ABITObject.concurrent(tree.toByteArray()).toByteArray()));
+        assertTrue(compareArray(copy.hash(), tree.hash()));
+
+        // Inserts and removals move elements while others are appended
+        ABITArray moving = new ABITArray();
+        tree.put("moving", moving);
+        for (int t = 0; t < writers.length; t++) {
+            final int id = t;
+            writers[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 500; i++) {
+                        if (id % 2 == 0) {
+                            moving.add((long) i);
+                        }
+                        else {
+                            moving.add(0, (long) -1);
+                            moving.remove(0);
+                        }
+                        assertTrue(moving.getType(0).equals("integer"));
+                    }
+                } catch (ABITException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer: writers) {
+            writer.join();
+        }
+        assertTrue(moving.size() == 2000);
+        for (int i = 0; i < moving.size(); i++) {
+            assertTrue(moving.getInteger(i) >= 0);
+        }
+
+        // A plain tree put by many threads at once is converted once, nothing written through it is lost
+        ABITObject adopted = new ABITObject();
+        for (int i = 0; i < 1000; i++) {
+            adopted.put("old "+i, (long) i);
+        }
+        for (int t = 0; t < writers.length; t++) {
+            final int id = t;
+            writers[t] = new Thread(() -> {
+                try {
+                    tree.put("adopted "+id, adopted);
+                    for (int i = 0; i < 100; i++) {
+                        adopted.put("w"+id+" "+i, (long) i);
+                    }
+                } catch (ABITException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            writers[t].start();
+        }
+        for (Thread writer: writers) {
+            writer.join();
+        }
+        assertTrue(adopted.getJson().length() == 1000 + 100 * writers.length);
+        assertTrue(tree.getTree("adopted 3").getInteger("w5 99") == 99);
+
+        try {
+            ABITObject.concurrent().put("nesty", nested);
+            throw new Exception("This shouldn't succeed");
+        } catch (IllegalStateException e) {}
+    }
+
+    public enum Shade { LIGHT, DARK }
+
+    public record Point(int x, long y, String name, byte[] data, Shade shade, Boolean flag, List<Point> children) {}
+
+    public static class Bean {
+        private long count;
+        private boolean on;
+        private String label;
+        private Point point;
+
+        public long getCount() { return this.count; }
+        public void setCount(long count) { this.count = count; }
+        public boolean isOn() { return this.on; }
+        public void setOn(boolean on) { this.on = on; }
+        public String getLabel() { return this.label; }
+        public void setLabel(String label) { this.label = label; }
+        public Point getPoint() { return this.point; }
+        public void setPoint(Point point) { this.point = point; }
+    }
+
+    public static class NumberBean {
+        private Number v;
+
+        public Number getV() { return this.v; }
+        public void setV(Number v) { this.v = v; }
+    }
+
+    public static class LongBean extends NumberBean {
+        @Override
+        public Long getV() { return (Long) super.getV(); }
+    }
+
+    @Test
+    public void mapperGenericTest() throws Exception {
+        ABITMapper mapper = new ABITMapper();
+        Point child = new Point(-1, 1L << 40, "child", null, Shade.DARK, null, List.of());
+        Point point = new Point(3, -300L, "AMOGUS", new byte[]{1, 2}, Shade.LIGHT, true, List.of(child));
+
+        // Same bytes as building the tree by hand
+        ABITObject childTree = new ABITObject();
+        childTree.put("x", -1L);
+        childTree.put("y", 1L << 40);
+        childTree.put("name", "child");
+        childTree.put("data", ABITObject.NULL);
+        childTree.put("shade", "DARK");
+        childTree.put("flag", ABITObject.NULL);
+        childTree.put("children", new ABITArray());
+        ABITObject tree = new ABITObject();
+        tree.put("x", 3L);
+        tree.put("y", -300L);
+        tree.put("name", "AMOGUS");
+        tree.put("data", new byte[]{1, 2});
+        tree.put("shade", "LIGHT");
+        tree.put("flag", true);
+        ABITArray children = new ABITArray();
+        children.add(childTree);
+        tree.put("children", children);
+        byte[] encoded = mapper.encode(point);
+        assertTrue(compareArray(tree.toByteArray(), encoded));
+
+        Point decoded = mapper.decode(encoded, Point.class);
+        assertTrue(decoded.x() == 3 && decoded.y() == -300L && decoded.name().equals("AMOGUS") && decoded.flag());
+        assertTrue(compareArray(decoded.data(), new byte[]{1, 2}) && decoded.shade() == Shade.LIGHT);
+        assertTrue(decoded.children().size() == 1 && decoded.children().get(0).y() == 1L << 40);
+        assertTrue(decoded.children().get(0).data() == null && decoded.children().get(0).shade() == Shade.DARK);
+
+        // Unknown entries are skipped, missing ones are left at their default
+        ABITObject partial = new ABITObject();
+        partial.put("a", 1L);
+        partial.put("name", "x");
+        partial.put("zzzzzzzzzzzzzzzzz", 1L);
+        Point sparse = mapper.decode(partial.toByteArray(), Point.class);
+        assertTrue(sparse.x() == 0 && sparse.name().equals("x") && sparse.children() == null);
+
+        Bean bean = new Bean();
+        bean.setCount(42);
+        bean.setOn(true);
+        bean.setPoint(child);
+        ABITObject beanTree = new ABITObject();
+        beanTree.put("count", 42L);
+        beanTree.put("on", true);
+        beanTree.put("label", ABITObject.NULL);
+        beanTree.put("point", childTree);
+        assertTrue(compareArray(beanTree.toByteArray(), mapper.encode(bean)));
+        Bean decodedBean = mapper.decode(mapper.encode(bean), Bean.class);
+        assertTrue(decodedBean.getCount() == 42 && decodedBean.isOn() && decodedBean.getLabel() == null);
+        assertTrue(decodedBean.getPoint().name().equals("child"));
+
+        // A getter overridden with a covariant return type is one property
+        LongBean longBean = new LongBean();
+        longBean.setV(7L);
+        ABITObject longTree = new ABITObject();
+        longTree.put("v", 7L);
+        byte[] longEncoded = mapper.encode(longBean);
+        assertTrue(compareArray(longTree.toByteArray(), longEncoded));
+        assertTrue(new ABITValidator().validate(longEncoded) == null);
+        assertTrue(mapper.decode(longEncoded, LongBean.class).getV() == 7L);
+
+        try {
+            ABITObject wrong = new ABITObject();
+            wrong.put("x", "not an integer");
+            mapper.decode(wrong.toByteArray(), Point.class);
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        try {
+            ABITObject wrong = new ABITObject();
+            wrong.put("x", 1L << 40);
+            mapper.decode(wrong.toByteArray(), Point.class);
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        try {
+            mapper.encode(Integer.valueOf(1));
+            throw new Exception("This shouldn't succeed");
+        } catch (IllegalArgumentException e) {}
+    }
+
+    @Test
+    public void schemaGenericTest() throws Exception {
+        ABITSchema pointSchema = new ABITSchema()
+                .required("x", ABITSchema.INTEGER)
+                .optional("label", ABITSchema.STRING);
+        ABITSchema schema = new ABITSchema()
+                .required("id", ABITSchema.INTEGER)
+                .required("name", ABITSchema.STRING)
+                .optional("flag", ABITSchema.BOOLEAN)
+                .optional("point", pointSchema)
+                .required("points", ABITSchema.arrayOf(pointSchema))
+                .optional("extra", ABITSchema.ANY);
+
+        ABITObject point = new ABITObject();
+        point.put("x", 3L);
+        ABITArray points = new ABITArray();
+        points.add(point);
+        ABITObject tree = new ABITObject();
+        tree.put("id", 7L);
+        tree.put("name", "seven");
+        tree.put("points", points);
+        tree.put("extra", new byte[]{1, 2});
+        byte[] document = tree.toByteArray();
+
+        ABITObject decoded = new ABITObject(document, schema);
+        assertTrue(compareArray(document, decoded.toByteArray()));
+        assertTrue(decoded.getArray("points").getTree(0).getInteger("x") == 3);
+        schema.check(tree);
+
+        // Missing required key, also inside an array
+        ABITObject missing = new ABITObject();
+        missing.put("id", 7L);
+        missing.put("points", points);
+        try {
+            new ABITObject(missing.toByteArray(), schema);
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        try {
+            schema.check(missing);
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        ABITObject missingNested = new ABITObject(document);
+        missingNested.getArray("points").add(new ABITObject());
+        try {
+            new ABITObject(missingNested.toByteArray(), schema);
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {
+            assertTrue(e.getMessage().contains("points[1].x"));
+        }
+
+        // Wrong types
+        ABITObject wrongType = new ABITObject(document);
+        wrongType.put("id", "7");
+        try {
+            new ABITObject(wrongType.toByteArray(), schema);
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {
+            assertTrue(e.getMessage().contains("id"));
+        }
+        try {
+            schema.check(wrongType);
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        ABITObject wrongElement = new ABITObject(document);
+        wrongElement.getArray("points").add(1L);
+        try {
+            new ABITObject(wrongElement.toByteArray(), schema);
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+
+        // Unknown keys are rejected unless allowed
+        ABITObject unknown = new ABITObject(document);
+        unknown.put("zzz", true);
+        unknown.put("a", 1L);
+        try {
+            new ABITObject(unknown.toByteArray(), schema);
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        try {
+            schema.check(unknown);
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        schema.allowUnknownKeys(true);
+        ABITObject open = new ABITObject(unknown.toByteArray(), schema);
+        assertTrue(compareArray(unknown.toByteArray(), open.toByteArray()));
+        schema.check(unknown);
+
+        try {
+            ABITSchema.INTEGER.required("x", ABITSchema.ANY);
+            throw new Exception("This shouldn't succeed");
+        } catch (IllegalStateException e) {}
+        assertTrue(compareArray(new ABITObject(document, ABITSchema.ANY).toByteArray(), document));
+        try {
+            new ABITObject(document, ABITSchema.INTEGER);
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {
+            assertTrue(e.getMessage().startsWith("Expected tree at document"));
+        }
+    }
+
+    @Test
+    public void recordFileGenericTest() throws Exception {
+        Path dir = Files.createTempDirectory("abit");
+        Path path = dir.resolve("records.abit");
+        Random random = new Random(19);
+        ABITObject[] documents = new ABITObject[3000];
+        try (ABITRecordFile file = new ABITRecordFile(path, 4096)) {
+            for (int i = 0; i < documents.length; i++) {
+                documents[i] = new ABITObject();
+                documents[i].put("n", i);
+                // Some documents don't fit the append buffer
+                byte[] blob = new byte[i % 500 == 0 ? 10000 : random.nextInt(64)];
+                random.nextBytes(blob);
+                documents[i].put("blob", blob);
+                long record = i % 2 == 0 ? file.append(documents[i]) : file.append(documents[i].toByteArray());
+                assertTrue(record == i);
+            }
+            assertTrue(file.size() == documents.length);
+            // Buffered records are readable as well
+            assertTrue(compareArray(documents[2999].toByteArray(), file.read(2999)));
+            assertTrue(compareArray(documents[5].toByteArray(), file.read(5)));
+            try {
+                file.read(documents.length);
+                throw new Exception("This shouldn't succeed");
+            } catch (IndexOutOfBoundsException e) {}
+
+            ABITRecordFile.Cursor cursor = file.scan(1500);
+            long n = 1500;
+            while (cursor.next()) {
+                assertTrue(cursor.record() == n);
+                assertTrue(cursor.view().getInteger("n") == n);
+                n++;
+            }
+            assertTrue(n == documents.length);
+        }
+        assertTrue(Files.size(dir.resolve("records.abit.idx")) == documents.length * 8L);
+
+        // A torn record at the tail is truncated away and the index is rebuilt from the records
+        long validSize = Files.size(path);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(java.nio.ByteBuffer.wrap(new byte[]{100, 0, 0, 0, 1, 2, 3, 4, 5, 6}));
+        }
+        try (FileChannel channel = FileChannel.open(dir.resolve("records.abit.idx"), StandardOpenOption.WRITE)) {
+            channel.truncate(1000 * 8L);
+        }
+        try (ABITRecordFile file = new ABITRecordFile(path)) {
+            assertTrue(file.size() == documents.length);
+            assertTrue(Files.size(path) == validSize);
+            assertTrue(compareArray(documents[2500].toByteArray(), file.read(2500)));
+            assertTrue(file.append(documents[0]) == documents.length);
+            ABITRecordFile.Cursor cursor = file.scan();
+            long n = 0;
+            while (cursor.next()) {
+                assertTrue(compareArray(documents[(int) (n % documents.length)].toByteArray(), cursor.object().toByteArray()));
+                n++;
+            }
+            assertTrue(n == documents.length + 1);
+        }
+
+        // A corrupted record ends the recovered file
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(java.nio.ByteBuffer.wrap(new byte[]{0x7f}), validSize - 1);
+            channel.truncate(validSize);
+        }
+        try (ABITRecordFile file = new ABITRecordFile(path)) {
+            assertTrue(file.size() == documents.length - 1);
+        }
+
+        // A concurrent tree changing while it's appended is appended whole
+        Path concurrentPath = dir.resolve("concurrent.abit");
+        ABITObject shared = ABITObject.concurrent();
+        java.util.concurrent.atomic.AtomicBoolean running = new java.util.concurrent.atomic.AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            for (long i = 0; running.get(); i++) {
+                shared.put("k"+(i % 64), i);
+            }
+        });
+        writer.start();
+        try (ABITRecordFile file = new ABITRecordFile(concurrentPath, 4096)) {
+            for (int i = 0; i < 20000; i++) {
+                file.append(shared);
+            }
+        }
+        finally {
+            running.set(false);
+            writer.join();
+        }
+        try (ABITRecordFile file = new ABITRecordFile(concurrentPath)) {
+            assertTrue(file.size() == 20000);
+            ABITRecordFile.Cursor cursor = file.scan();
+            while (cursor.next()) {
+                cursor.object();
+            }
+        }
+
+        Files.write(dir.resolve("other.abit"), new byte[]{1, 2, 3});
+        try {
+            new ABITRecordFile(dir.resolve("other.abit"));
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        deleteDirectory(dir);
+    }
+
+    private static void deleteDirectory(Path dir) throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+            for (Path file: (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void mappedGenericTest() throws Exception {
+        Random random = new Random(20);
+        ABITObject tree = new ABITObject();
+        ABITArray array = new ABITArray();
+        for (int i = 0; i < 200; i++) {
+            ABITObject element = new ABITObject();
+            element.put("n", (long) i * 1000003);
+            byte[] blob = new byte[random.nextInt(300)];
+            random.nextBytes(blob);
+            element.put("blob", blob);
+            element.put("name", "element "+i);
+            array.add(element);
+        }
+        array.add(true);
+        array.add(ABITObject.NULL);
+        tree.put("array", array);
+        tree.put("flag", false);
+        tree.put("negative", -123456789L);
+        tree.put("title", "mapped");
+        byte[] document = tree.toByteArray();
+        Path path = Files.createTempFile("abit", ".abit");
+        Files.write(path, document);
+
+        // Small chunks put plenty of values across chunk boundaries
+        try (ABITMappedFile file = new ABITMappedFile(path, 64)) {
+            ABITMappedView root = file.root();
+            assertTrue(file.size() == document.length);
+            assertTrue(!root.getBoolean("flag") && root.getInteger("negative") == -123456789L);
+            assertTrue(root.getString("title").equals("mapped") && root.getType("array").equals("array"));
+            assertTrue(!root.containsKey("missing"));
+            assertTrue(compareArray(document, root.toABITObject().toByteArray()));
+
+            ABITMappedArrayView mapped = root.getArray("array");
+            assertTrue(mapped.size() == 202 && mapped.getBoolean(200) && mapped.getNull(201) == ABITObject.NULL);
+            Thread[] threads = new Thread[4];
+            boolean[] failed = new boolean[1];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            ABITMappedView element = mapped.getTree(i);
+                            ABITObject expected = array.getTree(i);
+                            java.nio.ByteBuffer buffer = element.getBlobBuffer("blob");
+                            byte[] fromBuffer = new byte[buffer.remaining()];
+                            buffer.get(fromBuffer);
+                            if (element.getInteger("n") != expected.getInteger("n")
+                                    || !element.getString("name").equals(expected.getString("name"))
+                                    || !compareArray(element.getBlob("blob"), expected.getBlob("blob"))
+                                    || !compareArray(fromBuffer, expected.getBlob("blob"))) {
+                                failed[0] = true;
+                            }
+                        }
+                    } catch (Exception e) {
+                        failed[0] = true;
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread: threads) {
+                thread.join();
+            }
+            assertTrue(!failed[0]);
+
+            try {
+                root.getInteger("title");
+                throw new Exception("This shouldn't succeed");
+            } catch (ABITException e) {}
+            try {
+                mapped.getTree(202);
+                throw new Exception("This shouldn't succeed");
+            } catch (IndexOutOfBoundsException e) {}
+            try {
+                file.view(document.length - 1, 2);
+                throw new Exception("This shouldn't succeed");
+            } catch (IndexOutOfBoundsException e) {}
+        }
+        try {
+            new ABITMappedFile(path, 100);
+            throw new Exception("This shouldn't succeed");
+        } catch (IllegalArgumentException e) {}
+
+        // The default chunking reads the same values
+        try (ABITMappedFile file = new ABITMappedFile(path)) {
+            assertTrue(file.root().getArray("array").getTree(199).getString("name").equals("element 199"));
+        }
+        Files.delete(path);
+
+        Files.write(path, nullsWithWidth());
+        try (ABITMappedFile file = new ABITMappedFile(path)) {
+            try {
+                file.root().getNull("n");
+                throw new Exception("This shouldn't succeed");
+            } catch (ABITException e) {}
+            try {
+                file.root().getArray("a").getNull(0);
+                throw new Exception("This shouldn't succeed");
+            } catch (ABITException e) {}
+        }
+        Files.delete(path);
+    }
+
+    @Test
+    public void queryGenericTest() throws Exception {
+        ABITObject inner = new ABITObject();
+        inner.put("age", 42L);
+        inner.put("name", "Anton");
+        ABITObject tree = new ABITObject();
+        tree.put("user", inner);
+        tree.put("active", true);
+        tree.put("deleted", ABITObject.NULL);
+        tree.put("tags", new ABITArray());
+        byte[] document = tree.toByteArray();
+
+        assertTrue(ABITQuery.where("user", "age").between(18, 65).test(document));
+        assertTrue(!ABITQuery.where("user", "age").between(43, 65).test(document));
+        assertTrue(ABITQuery.where("user", "age").equalTo(42).test(document));
+        assertTrue(ABITQuery.where("user", "name").equalTo("Anton").test(document));
+        assertTrue(!ABITQuery.where("user", "name").equalTo("Antonia").test(document));
+        assertTrue(!ABITQuery.where("user", "name").between(0, 100).test(document));
+        assertTrue(ABITQuery.where("active").equalTo(true).test(document));
+        assertTrue(!ABITQuery.where("active").equalTo(false).test(document));
+        assertTrue(ABITQuery.where("deleted").isNull().test(document));
+        assertTrue(ABITQuery.where("tags").exists().test(document));
+        assertTrue(!ABITQuery.where("missing").exists().test(document));
+        assertTrue(!ABITQuery.where("tags", "age").exists().test(document));
+        assertTrue(ABITQuery.where("missing").exists().negate().test(document));
+        ABITQuery query = ABITQuery.where("active").equalTo(true).and(ABITQuery.where("user", "age").between(0, 10));
+        assertTrue(!query.test(document));
+        assertTrue(query.or(ABITQuery.where("deleted").isNull()).test(document));
+        assertTrue(ABITQuery.where("user", "age").equalTo(42).test(new ABITView(document)));
+        try {
+            ABITQuery.where();
+            throw new Exception("This shouldn't succeed");
+        } catch (IllegalArgumentException e) {}
+
+        Path dir = Files.createTempDirectory("abit");
+        try (ABITRecordFile file = new ABITRecordFile(dir.resolve("query.abit"))) {
+            int expected = 0;
+            for (int i = 0; i < 10000; i++) {
+                ABITObject record = new ABITObject();
+                record.put("n", i);
+                record.put("kind", i % 3 == 0 ? "even" : "odd");
+                file.append(record);
+                if (i % 3 == 0 && i >= 2000 && i < 8000) {
+                    expected++;
+                }
+            }
+            ABITQuery range = ABITQuery.where("n").between(2000, 7999).and(ABITQuery.where("kind").equalTo("even"));
+            assertTrue(range.filter(file).count() == expected);
+            assertTrue(range.filter(file).parallel().count() == expected);
+            long[] numbers = range.filter(file).parallel().mapToLong(d -> new ABITObject(d).getInteger("n")).toArray();
+            assertTrue(numbers.length == expected && numbers[0] == 2001 && numbers[numbers.length - 1] == 7998);
+            for (int i = 1; i < numbers.length; i++) {
+                assertTrue(numbers[i] == numbers[i - 1] + 3);
+            }
+        }
+        deleteDirectory(dir);
+    }
+
+    @Test
+    public void jsonStreamGenericTest() throws Exception {
+        Random random = new Random(22);
+        ABITObject tree = new ABITObject();
+        ABITArray binaries = new ABITArray();
+        for (int i = 0; i < 5; i++) {
+            byte[] blob = new byte[random.nextInt(64)];
+            random.nextBytes(blob);
+            binaries.add(blob);
+        }
+        tree.put("binList", binaries);
+        tree.put("binOne", new byte[]{0, 1, 2, 3});
+        tree.put("text", "quote \" backslash \\ newline \n tab \t unicode \u00e9\u2603 \ud83d\ude00 control \u0001");
+        tree.put("negative", -1234567890123L);
+        tree.put("flag", true);
+        tree.put("nothing", ABITObject.NULL);
+        ABITArray nested = new ABITArray();
+        ABITObject element = new ABITObject();
+        element.put("zeta", 1L);
+        element.put("alpha", "a");
+        element.put("mu", new ABITArray());
+        nested.add(element);
+        nested.add(new ABITObject());
+        nested.add(Long.MAX_VALUE);
+        tree.put("nested", nested);
+        for (int i = 0; i < 40; i++) {
+            tree.put("key"+random.nextInt(1000), i);
+        }
+        byte[] document = tree.toByteArray();
+
+        // org.json writes the keys in hash order, the transcoder has to sort them
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ABITJson.readJson(new StringReader(tree.getJson().toString(2)), out, "bin.*");
+        assertTrue(compareArray(document, out.toByteArray()));
+        assertTrue(compareArray(document, new ABITObject(tree.getJson(), "bin.*").toByteArray()));
+
+        StringWriter text = new StringWriter();
+        ABITJson.writeJson(new ByteArrayInputStream(document), text, 32);
+        assertTrue(new org.json.JSONObject(text.toString()).similar(tree.getJson()));
+        out.reset();
+        ABITJson.readJson(new StringReader(text.toString()), out, "bin.*");
+        assertTrue(compareArray(document, out.toByteArray()));
+
+        out.reset();
+        ABITJson.readJson(new StringReader("{\"e\":1e3,\"f\":-2.0}"), out, "$^");
+        assertTrue(new ABITObject(out.toByteArray()).getInteger("e") == 1000 && new ABITObject(out.toByteArray()).getInteger("f") == -2);
+        out.reset();
+        ABITJson.readJson(new StringReader(" {\"b\" : [ ] , \"a\":{}}\n"), out, "$^");
+        ABITObject small = new ABITObject(out.toByteArray());
+        assertTrue(small.getArray("b").size() == 0 && small.getTree("a").toByteArray().length == 0);
+
+        String[] invalid = new String[]{"", "[]", "{", "{\"a\":}", "{\"a\":1,}", "{\"a\" 1}", "{\"a\":1} 2",
+                "{\"a\":1.5}", "{\"a\":99999999999999999999}", "{\"a\":1,\"a\":2}", "{\"b\":1,\"a\":2,\"b\":3}",
+                "{\"a\":\"\\x\"}", "{\"a\":[1 2]}", "{\"a\":tru}", "{\"a\":\"unterminated}"};
+        for (String json: invalid) {
+            try {
+                ABITJson.readJson(new StringReader(json), new ByteArrayOutputStream(), "$^");
+                throw new Exception("This shouldn't succeed: "+json);
+            } catch (ABITException e) {}
+        }
+    }
+
+    @Test
+    public void jsonImportGenericTest() throws Exception {
+        org.json.JSONObject json = new org.json.JSONObject();
+        json.put("int", 7);
+        json.put("long", Long.MIN_VALUE);
+        json.put("bigInteger", new java.math.BigInteger("9223372036854775807"));
+        json.put("bigDecimal", new java.math.BigDecimal("1E3"));
+        json.put("binary", "z2");
+        ABITObject imported = new ABITObject(json, java.util.regex.Pattern.compile("bin.*"));
+        assertTrue(imported.getInteger("int") == 7 && imported.getInteger("long") == Long.MIN_VALUE);
+        assertTrue(imported.getInteger("bigInteger") == Long.MAX_VALUE && imported.getInteger("bigDecimal") == 1000);
+        assertTrue(compareArray(imported.getBlob("binary"), new byte[]{1}));
+
+        Object[] unsupported = new Object[]{new java.math.BigInteger("9223372036854775808"), new java.math.BigDecimal("1.5"), 0.5};
+        for (Object number: unsupported) {
+            org.json.JSONObject wrong = new org.json.JSONObject();
+            wrong.put("n", number);
+            try {
+                new ABITObject(wrong, "$^");
+                throw new Exception("This shouldn't succeed");
+            } catch (ABITException e) {}
+        }
+
+        // Big arrays and objects are converted in ranges, the result has to match the sequential import
+        Random random = new Random(23);
+        org.json.JSONObject big = new org.json.JSONObject();
+        for (int i = 0; i < 2000; i++) {
+            org.json.JSONObject element = new org.json.JSONObject();
+            element.put("n", random.nextLong());
+            element.put("binary", i % 2 == 0 ? "z2" : "uAQ");
+            org.json.JSONArray list = new org.json.JSONArray();
+            for (int j = 0; j < 600; j += 1 + random.nextInt(200)) {
+                list.put("z"+(1 + random.nextInt(9)));
+            }
+            element.put("binaries", list);
+            big.put("key"+i, element);
+        }
+        java.util.regex.Pattern binary = java.util.regex.Pattern.compile("binar.*");
+        byte[] sequential = new ABITObject(big, binary).toByteArray();
+        java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(4);
+        assertTrue(compareArray(sequential, new ABITObject(big, binary, pool).toByteArray()));
+        org.json.JSONArray array = new org.json.JSONArray();
+        for (int i = 0; i < 3000; i++) {
+            array.put(i % 3 == 0 ? (Object) ("z"+(1 + i % 9)) : (Object) big.opt("key"+(i % 2000)));
+        }
+        org.json.JSONObject holder = new org.json.JSONObject();
+        holder.put("binaries", array);
+        org.json.JSONArray nulls = new org.json.JSONArray();
+        nulls.put((Object) null);
+        holder.put("nulls", nulls);
+        ABITObject nested = new ABITObject(holder, binary);
+        assertTrue(compareArray(nested.toByteArray(), new ABITObject(holder, binary, pool).toByteArray()));
+        assertTrue(nested.getArray("nulls").getType(0).equals("null"));
+        pool.shutdown();
+    }
+
+    @Test
+    public void multibaseGenericTest() throws Exception {
+        byte[] hello = "Hello World!".getBytes(StandardCharsets.UTF_8);
+        assertTrue(ABITMultibase.encodeBase58btc(hello).equals("z2NEpo7TZRRrLZSi2U"));
+        assertTrue(ABITMultibase.encodeBase64url(hello).equals("uSGVsbG8gV29ybGQh"));
+        assertTrue(ABITMultibase.encodeBase58btc(new byte[]{0, 0, 0x28, 0x7f, (byte) 0xb4, (byte) 0xcd}).equals("z11233QC4"));
+        assertTrue(ABITMultibase.encodeBase58btc(new byte[0]).equals("z"));
+        assertTrue(ABITMultibase.encodeBase64url(new byte[0]).equals("u"));
+        assertTrue(compareArray(ABITMultibase.decode("z2NEpo7TZRRrLZSi2U"), hello));
+        assertTrue(compareArray(ABITMultibase.decode("mSGVsbG8gV29ybGQh"), hello));
+        assertTrue(compareArray(ABITMultibase.decode("USGVsbA=="), "Hell".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(compareArray(ABITMultibase.decode("z11233QC4"), new byte[]{0, 0, 0x28, 0x7f, (byte) 0xb4, (byte) 0xcd}));
+
+        java.util.Random random = new java.util.Random(24);
+        char[] text = new char[ABITMultibase.maxEncodedLength(300, true)];
+        for (int length = 0; length < 300; length++) {
+            byte[] blob = new byte[length];
+            random.nextBytes(blob);
+            if (length > 2) {
+                blob[0] = 0;
+            }
+            String base58 = ABITMultibase.encodeBase58btc(blob);
+            String base64 = ABITMultibase.encodeBase64url(blob);
+            assertTrue(base58.equals(io.ipfs.multibase.Multibase.encode(io.ipfs.multibase.Multibase.Base.Base58BTC, blob)));
+            assertTrue(base64.equals("u" + java.util.Base64.getUrlEncoder().withoutPadding().encodeToString(blob)));
+            assertTrue(base58.length() <= ABITMultibase.maxEncodedLength(length, true));
+            assertTrue(compareArray(ABITMultibase.decode(base58), blob));
+            assertTrue(compareArray(ABITMultibase.decode(base64), blob));
+            int chars = ABITMultibase.encodeBase58btc(blob, 0, length, text, 0);
+            assertTrue(new String(text, 0, chars).equals(base58));
+        }
+
+        try {
+            ABITMultibase.decode("z0OIl");
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        try {
+            ABITMultibase.decode("uA");
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+        try {
+            ABITMultibase.decode("");
+            throw new Exception("This shouldn't succeed");
+        } catch (ABITException e) {}
+    }
+
+    @Test
+    public void lazyStringGenericTest() throws Exception {
+        ABITObject source = new ABITObject();
+        source.put("name", "zürich");
+        source.put("count", 1);
+        ABITArray tags = new ABITArray();
+        tags.add("a");
+        tags.add("\uD83D\uDE00");
+        source.put("tags", tags);
+        byte[] document = source.toByteArray();
+
+        ABITObject decoded = new ABITObject(document);
+        ABITString probe = ABITString.of("zürich");
+        assertTrue(decoded.getStringUtf8("name").equals(probe));
+        assertTrue(probe.equals(decoded.getStringUtf8("name")));
+        assertTrue(decoded.getStringUtf8("name").hashCode() == probe.hashCode());
+        assertTrue(decoded.getStringUtf8("name").length() == 7);
+        assertTrue(!decoded.getStringUtf8("name").equals(ABITString.of("zurich")));
+        assertTrue(decoded.getStringUtf8("name").compareTo(ABITString.of("zz")) > 0);
+        assertTrue(decoded.getArray("tags").getStringUtf8(1).compareTo(ABITString.of("\uFFFF")) > 0);
+        assertTrue(decoded.getString("name").equals("zürich"));
+
+        // Unpaired surrogates encode to '?', strings are equal when their encodings are
+        ABITObject surrogate = new ABITObject();
+        surrogate.put("a", "\uD800");
+        surrogate.put("b", "?");
+        assertTrue(surrogate.getStringUtf8("a").equals(surrogate.getStringUtf8("b")));
+        assertTrue(surrogate.getStringUtf8("a").equals(ABITString.of("?")));
+        assertTrue(surrogate.getStringUtf8("a").hashCode() == surrogate.getStringUtf8("b").hashCode());
+
+        // Pass-through keeps the bytes, even when they aren't valid UTF-8
+        decoded.put("count", 2);
+        source.put("count", 2);
+        assertTrue(compareArray(decoded.toByteArray(), source.toByteArray()));
+        byte[] invalid = new byte[]{0x00, 'k', 0x04, 0x02, (byte) 0xff, (byte) 0xfe};
+        assertTrue(compareArray(new ABITObject(invalid).toByteArray(), invalid));
+
+        // A string moved between documents is equal to the same string put from Java
+        ABITObject copy = new ABITObject();
+        copy.put("name", decoded.getStringUtf8("name"));
+        ABITArray copyTags = new ABITArray();
+        copyTags.add(decoded.getArray("tags").getStringUtf8(1));
+        copyTags.add(0, decoded.getArray("tags").getStringUtf8(0));
+        copy.put("tags", copyTags);
+        copy.put("count", 2);
+        assertTrue(compareArray(copy.toByteArray(), source.toByteArray()));
+        assertTrue(ABITHash.contentAddress(copy.toByteArray()).equals(source.contentAddress()));
+        assertTrue(copy.contentAddress().equals(source.contentAddress()));
+        assertTrue(ABITDiff.diff(copy, source).length == 0);
+    }
+
+    @Test
+    public void keyOrderGenericTest() throws Exception {
+        // Shorter keys first, keys of equal length by their signed UTF-8 bytes, so "\u00e9" comes before "zz"
+        String[] keys = new String[]{"zz", "\u00e9", "b", "\u20ac", "a", "Z", "ab", "\u00ff", "\uD83D\uDE00", "aaa", "~", "\u4e2d", "\u00e9\u00e9", "\u00e9a"};
+        ABITObject tree = new ABITObject();
+        for (int i = 0; i < keys.length; i++) {
+            tree.put(keys[i], (long) i);
+        }
+        List<byte[]> expected = new java.util.ArrayList<>();
+        for (String key: keys) {
+            expected.add(key.getBytes(StandardCharsets.UTF_8));
+        }
+        expected.sort((a, b) -> {
+            if (a.length != b.length) {
+                return Integer.compare(a.length, b.length);
+            }
+            for (int i = 0; i < a.length; i++) {
+                if (a[i] != b[i]) {
+                    return Byte.compare(a[i], b[i]);
+                }
+            }
+            return 0;
+        });
+
+        byte[] document = tree.toByteArray();
+        assertTrue(compareArray(document, new ABITObject(document).toByteArray()));
+        ABITReader reader = new ABITReader(new ByteArrayInputStream(document));
+        assertTrue(reader.nextToken() == ABITReader.Token.START_TREE);
+        for (byte[] key: expected) {
+            assertTrue(reader.nextToken() == ABITReader.Token.KEY);
+            assertTrue(compareArray(key, reader.getKey().getBytes(StandardCharsets.UTF_8)));
+            reader.skipValue();
+        }
+        assertTrue(reader.nextToken() == ABITReader.Token.END_TREE);
+
+        // JSON has no key order of its own, coming back from it gives the same document
+        ABITObject imported = new ABITObject(tree.getJson(), "$^");
+        assertTrue(compareArray(document, imported.toByteArray()));
+        StringWriter text = new StringWriter();
+        ABITJson.writeJson(new ByteArrayInputStream(document), text, 32);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ABITJson.readJson(new StringReader(text.toString()), out, "$^");
+        assertTrue(compareArray(document, out.toByteArray()));
+        for (int i = 0; i < keys.length; i++) {
+            assertTrue(imported.getInteger(keys[i]) == i);
+        }
+    }
+
+    private static int parentCount(ABITObject container) throws Exception {
+        java.lang.reflect.Field field = ABITObject.class.getDeclaredField("encoding");
+        field.setAccessible(true);
+        Object encoding = field.get(container);
+        if (encoding == null) {
+            return 0;
+        }
+        java.lang.reflect.Method parents = field.getType().getDeclaredMethod("parents");
+        parents.setAccessible(true);
+        return ((Object[]) parents.invoke(encoding)).length;
+    }
+
+    @Test
+    public void sharedSubtreeGenericTest() throws Exception {
+        ABITObject shared = new ABITObject();
+        shared.put("v", 1);
+
+        // Without caching, hashing leaves the tree untouched
+        ABITObject plain = new ABITObject();
+        plain.put("s", shared);
+        plain.hash();
+        assertTrue(parentCount(shared) == 0);
+
+        // Moving a subtree through many documents doesn't make it collect their containers
+        java.util.List<ABITObject> documents = new java.util.ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            ABITObject document = new ABITObject();
+            document.setRetainEncoding(i % 2 == 0);
+            document.setCacheHashes(true);
+            document.put("s", shared);
+            document.hash();
+            document.toByteArray();
+            document.put("s", i);
+            document.hash();
+            document.toByteArray();
+            documents.add(document);
+        }
+        shared.put("v", 2);
+        assertTrue(parentCount(shared) == 0);
+
+        ABITArray array = new ABITArray();
+        array.add(shared);
+        array.add(shared);
+        ABITObject holder = new ABITObject();
+        holder.setCacheHashes(true);
+        holder.put("a", array);
+        holder.hash();
+        assertTrue(parentCount(shared) == 1);
+        array.remove(0);
+        byte[] before = holder.hash();
+        shared.put("v", 3);
+        assertTrue(parentCount(shared) == 1);
+        assertTrue(!compareArray(before, holder.hash()));
+        array.clear();
+        holder.hash();
+        shared.put("v", 4);
+        assertTrue(parentCount(shared) == 0);
+
+        // Replacing many nested containers of a hashed tree doesn't scan it
+        ABITObject wide = new ABITObject();
+        wide.setCacheHashes(true);
+        for (int i = 0; i < 20000; i++) {
+            wide.put("k"+i, new ABITObject());
+        }
+        wide.hash();
+        for (int i = 0; i < 20000; i++) {
+            wide.put("k"+i, new ABITObject());
+        }
+        assertTrue(compareArray(wide.hash(), ABITHash.hash(wide.toByteArray())));
+
+        // Hashing a subtree shared by many documents stays linear
+        for (int i = 0; i < 100000; i++) {
+            ABITObject document = new ABITObject();
+            document.setCacheHashes(true);
+            document.put("s", shared);
+            document.hash();
+        }
+    }
 }